@@ -0,0 +1,83 @@
+package almacen;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Benchmarks de las operaciones por código de {@link Almacen}: consulta, suma y resta de
+ * unidades, y el alta rechazada por nombre y marca repetidos.
+ *
+ * <p>
+ * {@link Almacen} no es seguro para hilos, así que cada hilo del benchmark trabaja con su propio
+ * almacén. Con varios hilos se mide cómo escala el acceso a memoria, no la contención; la
+ * contención se mide en {@link BenchConcurrentAlmacen}.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchAlmacen {
+
+  /**
+   * Número de artículos del almacén
+   */
+  @Param({"1000", "10000", "100000", "1000000"})
+  int tamano;
+
+  private Almacen almacen;
+  private int[] codigos;
+
+  @Setup(Level.Trial)
+  public void preparar() throws Exception {
+    almacen = EstadoCatalogo.crearAlmacen(tamano);
+    codigos = EstadoCatalogo.codigos(almacen, tamano);
+  }
+
+  @Benchmark
+  public Articulo get() throws CodigoNotFound {
+    return almacen.get(EstadoCatalogo.codigoAlAzar(codigos));
+  }
+
+  @Benchmark
+  public void addUnidades() throws Exception {
+    almacen.addUnidades(EstadoCatalogo.codigoAlAzar(codigos), 1);
+  }
+
+  @Benchmark
+  public void removeUnidades() throws Exception {
+    almacen.removeUnidades(EstadoCatalogo.codigoAlAzar(codigos), 1);
+  }
+
+  /**
+   * Alta de un artículo que ya existe: mide la comprobación de nombre y marca repetidos
+   */
+  @Benchmark
+  public boolean addRepetido() throws Exception {
+    int i = EstadoCatalogo.codigoAlAzar(codigos) % tamano;
+    try {
+      almacen.add(EstadoCatalogo.nombre(i), EstadoCatalogo.marca(i), 10, 20, 1, 0, 0);
+      return true;
+    } catch (AlmacenNombreMarcaException e) {
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,78 @@
+package almacen;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Benchmarks de las altas y bajas de {@link Almacen}.
+ *
+ * <p>
+ * Las altas y bajas cambian el tamaño del almacén, así que no pueden repetirse indefinidamente
+ * sobre el mismo catálogo. Cada iteración parte de un catálogo nuevo del tamaño indicado y mide el
+ * tiempo de {@link #LOTE} altas o bajas seguidas.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = BenchAltasBajas.LOTE)
+@Measurement(iterations = 10, batchSize = BenchAltasBajas.LOTE)
+@Fork(1)
+public class BenchAltasBajas {
+
+  /**
+   * Operaciones medidas en cada iteración
+   */
+  static final int LOTE = 1000;
+
+  /**
+   * Número de artículos del almacén al comenzar cada iteración
+   */
+  @Param({"1000", "10000", "100000", "1000000"})
+  int tamano;
+
+  private Almacen almacen;
+  private int[] codigos;
+  private int siguiente;
+
+  @Setup(Level.Iteration)
+  public void preparar() throws Exception {
+    almacen = EstadoCatalogo.crearAlmacen(tamano);
+    codigos = EstadoCatalogo.codigos(almacen, tamano);
+    siguiente = 0;
+  }
+
+  /**
+   * Alta de un artículo nuevo, incluida la comprobación de nombre y marca repetidos
+   */
+  @Benchmark
+  public void add() throws Exception {
+    int i = tamano + siguiente++;
+    almacen.add(EstadoCatalogo.nombre(i), EstadoCatalogo.marca(i), 10, 20, 1, 0, 0);
+  }
+
+  /**
+   * Baja de un artículo existente. Se salta por el catálogo con un paso primo para no borrar
+   * siempre del final de la lista, que sería el caso más barato.
+   */
+  @Benchmark
+  public void delete() throws Exception {
+    almacen.delete(codigos[(int) ((long) siguiente++ * 7919 % codigos.length)]);
+  }
+
+}
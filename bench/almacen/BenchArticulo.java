@@ -0,0 +1,55 @@
+package almacen;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Benchmarks del contador de unidades de {@link Articulo} cuando todos los hilos mueven el stock
+ * del mismo artículo, el peor caso para las operaciones compare-and-set.
+ *
+ * @author Javier Sánchez López
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchArticulo {
+
+  private Articulo articulo;
+
+  @Setup(Level.Iteration)
+  public void preparar() throws Exception {
+    articulo = new Articulo("Articulo", "Marca", 10, 20, EstadoCatalogo.UNIDADES_INICIALES, 0,
+        Integer.MAX_VALUE);
+  }
+
+  @Benchmark
+  public ResultadoStock tryAddUnidades() {
+    return articulo.tryAddUnidades(1);
+  }
+
+  @Benchmark
+  public ResultadoStock tryEliminarUnidades() {
+    return articulo.tryEliminarUnidades(1);
+  }
+
+  @Benchmark
+  public void addUnidades() throws Exception {
+    articulo.addUnidades(1);
+  }
+
+}
@@ -0,0 +1,63 @@
+package almacen;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Benchmarks de {@link ConcurrentAlmacen} con todos los hilos trabajando sobre el mismo almacén,
+ * para medir la contención de los movimientos de stock.
+ *
+ * @author Javier Sánchez López
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchConcurrentAlmacen {
+
+  /**
+   * Número de artículos del almacén
+   */
+  @Param({"1000", "10000", "100000", "1000000"})
+  int tamano;
+
+  private ConcurrentAlmacen almacen;
+  private int[] codigos;
+
+  @Setup(Level.Trial)
+  public void preparar() throws Exception {
+    codigos = new int[tamano];
+    almacen = EstadoCatalogo.crearConcurrentAlmacen(tamano, codigos);
+  }
+
+  @Benchmark
+  public Articulo get() throws CodigoNotFound {
+    return almacen.get(EstadoCatalogo.codigoAlAzar(codigos));
+  }
+
+  @Benchmark
+  public void addUnidades() throws Exception {
+    almacen.addUnidades(EstadoCatalogo.codigoAlAzar(codigos), 1);
+  }
+
+  @Benchmark
+  public void removeUnidades() throws Exception {
+    almacen.removeUnidades(EstadoCatalogo.codigoAlAzar(codigos), 1);
+  }
+
+}
@@ -0,0 +1,92 @@
+package almacen;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Benchmarks del guardado y la carga del almacén en json y en XML.
+ *
+ * <p>
+ * Cada hilo usa sus propios archivos para que varios hilos no escriban en el mismo. Los archivos
+ * json se crean en "src/almacen" bajo el directorio de trabajo, igual que hace
+ * {@link Almacen#save(String)}; los XML, en el directorio temporal del sistema.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BenchPersistencia {
+
+  /**
+   * Número de artículos del almacén
+   */
+  @Param({"1000", "10000", "100000", "1000000"})
+  int tamano;
+
+  private Almacen almacen;
+  private String json;
+  private String xml;
+
+  @Setup(Level.Trial)
+  public void preparar() throws Exception {
+    almacen = EstadoCatalogo.crearAlmacen(tamano);
+    Files.createDirectories(Path.of("src", "almacen"));
+    String sufijo = tamano + "-" + Integer.toHexString(System.identityHashCode(this));
+    json = "bench-" + sufijo;
+    xml = Files.createTempFile("bench-" + sufijo, ".xml").toString();
+    almacen.save(json);
+    almacen.changeFormatToXml(xml);
+  }
+
+  @TearDown(Level.Trial)
+  public void limpiar() throws IOException {
+    Files.deleteIfExists(Path.of("src", "almacen", json + ".json"));
+    Files.deleteIfExists(Path.of(xml));
+  }
+
+  @Benchmark
+  public void save() throws IOException {
+    almacen.save(json);
+  }
+
+  @Benchmark
+  public Almacen load() throws IOException {
+    Almacen cargado = new Almacen();
+    cargado.load(json);
+    return cargado;
+  }
+
+  @Benchmark
+  public void changeFormatToXml() throws IOException {
+    almacen.changeFormatToXml(xml);
+  }
+
+  @Benchmark
+  public List<String> loadFromXml() throws IOException {
+    return new Almacen().loadFromXml(xml);
+  }
+
+}
@@ -0,0 +1,47 @@
+package almacen;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *
+ * Lanza todos los benchmarks del almacén una vez por cada número de hilos y guarda los
+ * resultados en json, un archivo por número de hilos, para poder compararlos entre versiones.
+ *
+ * <p>
+ * Uso: {@code EjecutarBenchmarks [filtro] [hilos...]}. El filtro es una expresión regular sobre el
+ * nombre de los benchmarks (por defecto todos los del paquete) y los hilos por defecto son 1, 2, 4
+ * y 8. Los resultados se escriben en "jmh-resultados-N-hilos.json".
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public class EjecutarBenchmarks {
+
+  public static void main(String[] args) throws Exception {
+
+    String filtro = args.length > 0 ? args[0] : "almacen\\.Bench.*";
+    int[] hilos = {1, 2, 4, 8};
+    if (args.length > 1) {
+      hilos = new int[args.length - 1];
+      for (int i = 1; i < args.length; i++) {
+        hilos[i - 1] = Integer.parseInt(args[i]);
+      }
+    }
+
+    for (int numHilos : hilos) {
+      Options opciones = new OptionsBuilder()
+          .include(filtro)
+          .threads(numHilos)
+          .jvmArgsAppend("-Xmx4g", "-Dfile.encoding=UTF-8")
+          .resultFormat(ResultFormatType.JSON)
+          .result("jmh-resultados-" + numHilos + "-hilos.json")
+          .build();
+      new Runner(opciones).run();
+    }
+  }
+
+}
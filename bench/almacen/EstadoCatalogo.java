@@ -0,0 +1,111 @@
+package almacen;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *
+ * Utilidades compartidas por los benchmarks para crear catálogos de prueba.
+ *
+ * <p>
+ * Los artículos se generan siempre igual, con nombre "Articulo" seguido del número y una de
+ * cien marcas, para que los resultados de distintas ejecuciones sean comparables.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+final class EstadoCatalogo {
+
+  /**
+   * Número de marcas distintas de los catálogos generados
+   */
+  static final int MARCAS = 100;
+
+  /**
+   * Unidades iniciales de cada artículo, suficientes para que los benchmarks que retiran
+   * unidades no agoten el stock
+   */
+  static final int UNIDADES_INICIALES = 1_000_000_000;
+
+  private EstadoCatalogo() {
+  }
+
+  /**
+   *
+   * Crea un almacén con el número de artículos pedido
+   *
+   * @param tamano Número de artículos
+   * @return Devuelve el almacén lleno
+   * @throws Exception Se lanza si no se puede crear algún artículo
+   */
+  static Almacen crearAlmacen(int tamano) throws Exception {
+    Almacen almacen = new Almacen();
+    for (int i = 0; i < tamano; i++) {
+      almacen.add(nombre(i), marca(i), 10, 20, UNIDADES_INICIALES, 0, 0);
+    }
+    return almacen;
+  }
+
+  /**
+   *
+   * Crea un almacén concurrente con el número de artículos pedido
+   *
+   * @param tamano Número de artículos
+   * @param codigos Array donde se guardan los códigos asignados, de longitud tamano
+   * @return Devuelve el almacén lleno
+   * @throws Exception Se lanza si no se puede crear algún artículo
+   */
+  static ConcurrentAlmacen crearConcurrentAlmacen(int tamano, int[] codigos) throws Exception {
+    ConcurrentAlmacen almacen = new ConcurrentAlmacen();
+    for (int i = 0; i < tamano; i++) {
+      codigos[i] = almacen.add(nombre(i), marca(i), 10, 20, UNIDADES_INICIALES, 0, 0);
+    }
+    return almacen;
+  }
+
+  /**
+   *
+   * Devuelve los códigos de los artículos de un almacén creado con {@link #crearAlmacen(int)}
+   *
+   * @param almacen Almacén creado con {@link #crearAlmacen(int)}
+   * @param tamano Número de artículos
+   * @return Devuelve los códigos en el orden en que se añadieron los artículos
+   */
+  static int[] codigos(Almacen almacen, int tamano) {
+    int[] codigos = new int[tamano];
+    for (int i = 0; i < tamano; i++) {
+      codigos[i] = almacen.findByNombreMarca(nombre(i), marca(i)).get().getCodigo();
+    }
+    return codigos;
+  }
+
+  /**
+   *
+   * Elige un código al azar
+   *
+   * @param codigos Códigos entre los que se elige
+   * @return Devuelve uno de los códigos
+   */
+  static int codigoAlAzar(int[] codigos) {
+    return codigos[ThreadLocalRandom.current().nextInt(codigos.length)];
+  }
+
+  /**
+   *
+   * @param i Número del artículo
+   * @return Devuelve el nombre del artículo i
+   */
+  static String nombre(int i) {
+    return "Articulo" + i;
+  }
+
+  /**
+   *
+   * @param i Número del artículo
+   * @return Devuelve la marca del artículo i
+   */
+  static String marca(int i) {
+    return "Marca" + (i % MARCAS);
+  }
+
+}
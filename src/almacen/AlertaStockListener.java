@@ -0,0 +1,36 @@
+package almacen;
+
+/**
+ * Recibe los avisos de un almacén cuando un artículo cruza su stock de seguridad.
+ *
+ * <p>
+ * Un artículo está bajo stock cuando su número de unidades es menor que su stock de seguridad. El
+ * aviso se da solo al cruzar el umbral, no en cada movimiento, y se ejecuta en el mismo hilo que
+ * hizo el movimiento, después de aplicarlo.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+@FunctionalInterface
+public interface AlertaStockListener {
+
+  /**
+   *
+   * Se llama cuando un artículo queda por debajo de su stock de seguridad, también cuando se da de
+   * alta un artículo que ya está por debajo
+   *
+   * @param articulo Artículo que ha quedado bajo stock
+   */
+  void stockBajo(Articulo articulo);
+
+  /**
+   *
+   * Se llama cuando un artículo que estaba bajo stock alcanza de nuevo su stock de seguridad
+   *
+   * @param articulo Artículo que ha recuperado el stock
+   */
+  default void stockRecuperado(Articulo articulo) {
+  }
+
+}
@@ -1,35 +1,55 @@
 package almacen;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.OutputStreamWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.EnumMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.DOMImplementation;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Text;
-import org.xml.sax.SAXException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 /**
  * 
@@ -64,6 +84,157 @@ public class Almacen {
    */
   private List<Articulo> almacen = new ArrayList<>();
 
+  /**
+   * Conversor json de los artículos, es seguro para hilos y se comparte
+   */
+  private static final Gson GSON = new Gson();
+
+  /**
+   * Índice primario de los artículos por código. No se guarda en el json, se reconstruye al cargar
+   */
+  private transient MapaIntArticulo indice = new MapaIntArticulo();
+
+  /**
+   * Posición de cada artículo en la lista, por código, para darlo de baja sin recorrerla
+   */
+  private transient MapaIntInt posiciones = new MapaIntInt();
+
+  /**
+   * Da los códigos de los artículos nuevos de este almacén
+   */
+  private final transient GeneradorCodigos generador = new GeneradorCodigos();
+
+  /**
+   * Índice único por nombre y marca para detectar artículos repetidos
+   */
+  private transient IndiceNombreMarca nombreMarca;
+
+  /**
+   * Artículos por debajo de su stock de seguridad
+   */
+  private final transient IndiceBajoStock bajoStock = new IndiceBajoStock();
+
+  /**
+   * Totales del inventario que se actualizan con cada movimiento
+   */
+  private final transient TotalesInventario totales = new TotalesInventario();
+
+  /**
+   * Estructuras derivadas que se actualizan con cada alta, baja o cambio de un artículo
+   */
+  private final transient List<ObservadorArticulos> observadores = new ArrayList<>();
+
+  /**
+   * Reparte los avisos de los artículos entre todos los observadores
+   */
+  private final transient ObservadorArticulos difusor = new Difusor();
+
+  /**
+   * Vistas abiertas con {@link #instantanea()}, que guardan el estado anterior de los artículos
+   * que cambian
+   */
+  private final transient List<InstantaneaAlmacen> instantaneas = new CopyOnWriteArrayList<>();
+  /**
+   * Protege la lista de artículos y las modificaciones de artículos mientras se crea una vista,
+   * para poder crearla desde otro hilo, como el de los guardados en segundo plano
+   */
+  private final transient ReentrantLock cerrojoLista = new ReentrantLock();
+  /**
+   * Cerrojos que hacen atómicos los lotes de movimientos, elegidos según el código del artículo
+   * entre un conjunto fijo (lock striping). Los movimientos de unidades toman el de su artículo en
+   * modo compartido, así que no compiten entre sí; los lotes y las modificaciones toman en modo
+   * exclusivo los de sus artículos, y las vistas toman todos en modo compartido para no ver un lote
+   * a medias. Su número es potencia de 2.
+   */
+  private final transient ReentrantReadWriteLock[] cerrojosUnidades = crearCerrojos();
+  /**
+   * Guardados en segundo plano
+   */
+  private final transient GuardadoAsincrono guardados = new GuardadoAsincrono();
+
+  /**
+   * Número de llamadas, latencias y fallos de las operaciones del almacén
+   */
+  private final transient MetricasAlmacen metricas = new MetricasAlmacen();
+
+  /**
+   * Índices ordenados creados con {@link #crearIndiceOrdenado(CampoOrdenable)}
+   */
+  private final transient Map<CampoOrdenable, IndiceOrdenado> indicesOrdenados =
+      new EnumMap<>(CampoOrdenable.class);
+
+  /**
+   * Índice de búsqueda por nombre y marca, null hasta que se crea con
+   * {@link #crearIndiceBusqueda()}
+   */
+  private transient IndiceBusqueda busqueda;
+
+  /**
+   * Diario donde se registran los movimientos, null si no está activado
+   */
+  private transient DiarioMovimientos diario;
+  /**
+   * Snapshot que se regenera al compactar el diario
+   */
+  private transient Path rutaSnapshot;
+  /**
+   * Ruta a la que se mueve el diario mientras se compacta
+   */
+  private transient Path rutaDiarioAnterior;
+  /**
+   * Escribe los snapshots de las compactaciones, aparte del hilo que sincroniza el diario para no
+   * retrasar la sincronización
+   */
+  private transient ExecutorService compactador;
+  /**
+   * Última compactación del diario lanzada, null si no se ha lanzado ninguna
+   */
+  private transient CompletableFuture<Void> compactacion;
+  /**
+   * Número de registros del diario a partir del cual se compacta automáticamente
+   */
+  private transient long umbralCompactacion = 1_000_000;
+  /**
+   * Base de la cadena de snapshots incrementales que se está guardando, null si no hay ninguna
+   */
+  private transient Path baseIncremental;
+  /**
+   * Identificador de la cadena de snapshots incrementales
+   */
+  private transient long cadenaIncremental;
+  /**
+   * Número de incrementos guardados desde la última base
+   */
+  private transient int secuenciaIncremental;
+  /**
+   * Códigos dados de baja desde el último snapshot incremental
+   */
+  private final transient Set<Integer> bajasIncrementales = new HashSet<>();
+  /**
+   * Número de incrementos a partir del cual el siguiente guardado escribe una base nueva
+   */
+  private transient int maxIncrementos = 16;
+
+  /**
+   * Crea un almacén vacío que distingue mayúsculas y acentos al comparar nombre y marca
+   */
+  public Almacen() {
+    this(false, false);
+  }
+
+  /**
+   *
+   * Crea un almacén vacío indicando cómo se comparan nombre y marca al detectar repetidos
+   *
+   * @param ignorarMayusculas Verdadero si "Marca" y "marca" se consideran iguales
+   * @param ignorarAcentos Verdadero si "Camión" y "Camion" se consideran iguales
+   */
+  public Almacen(boolean ignorarMayusculas, boolean ignorarAcentos) {
+    nombreMarca = new IndiceNombreMarca(new HashMap<>(), ignorarMayusculas, ignorarAcentos);
+    observadores.add(bajoStock);
+    observadores.add(totales);
+  }
+
   /**
    * 
    * Añade artículos al arraylist
@@ -82,10 +253,121 @@ public class Almacen {
       int numeroDeUnidades, int stockDeSeguridad, int stockMaximo)
       throws AlmacenNombreMarcaException, ArticuloIllegalErrorArgumentException {
 
-    lanzaExcepcionSiNombreYMarca2ProductosSonIguales(nombre, marca);
-    almacen.add(new Articulo(nombre, marca, precioDeCompra, precioDeVenta, numeroDeUnidades,
-        stockDeSeguridad, stockMaximo));
+    long inicio = System.nanoTime();
+    try {
+      lanzaExcepcionSiNombreYMarca2ProductosSonIguales(nombre, marca);
+      indexar(new Articulo(generador.siguiente(), nombre, marca, precioDeCompra, precioDeVenta,
+          numeroDeUnidades, stockDeSeguridad, stockMaximo));
+    } catch (AlmacenNombreMarcaException | ArticuloIllegalErrorArgumentException e) {
+      metricas.fallo(e);
+      throw e;
+    } finally {
+      metricas.registrar(MetricasAlmacen.Operacion.ADD, inicio);
+    }
+
+  }
+
+  /**
+   *
+   * Añade un artículo que ya tiene código, por ejemplo al moverlo desde otro almacén. El código
+   * queda registrado para no darlo a otro artículo.
+   *
+   * @param articulo Artículo a añadir, que pasa a ser del almacén
+   * @throws AlmacenNombreMarcaException Se lanza si ya hay un artículo con su nombre y marca
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si el código ya existe en el almacén
+   */
+  void add(Articulo articulo)
+      throws AlmacenNombreMarcaException, ArticuloIllegalErrorArgumentException {
+    long inicio = System.nanoTime();
+    try {
+      if (containsCod(articulo.getCodigo())) {
+        throw new ArticuloIllegalErrorArgumentException(
+            "El código " + articulo.getCodigo() + " ya existe en el almacén.");
+      }
+      lanzaExcepcionSiNombreYMarca2ProductosSonIguales(articulo.getNombre(), articulo.getMarca());
+      generador.registrar(articulo.getCodigo());
+      indexar(articulo);
+    } catch (AlmacenNombreMarcaException | ArticuloIllegalErrorArgumentException e) {
+      metricas.fallo(e);
+      throw e;
+    } finally {
+      metricas.registrar(MetricasAlmacen.Operacion.ADD, inicio);
+    }
+  }
+
+  /**
+   *
+   * Añade el artículo a la lista y a los índices
+   *
+   * @param articulo Artículo a añadir
+   */
+  private void indexar(Articulo articulo) {
+    cerrojoLista.lock();
+    try {
+      posiciones.put(articulo.getCodigo(), almacen.size());
+      almacen.add(articulo);
+    } finally {
+      cerrojoLista.unlock();
+    }
+    indice.put(articulo.getCodigo(), articulo);
+    nombreMarca.put(articulo);
+    articulo.setObservador(difusor);
+    difusor.alta(articulo);
+    registrar(d -> d.registrarAlta(articulo));
+  }
+
+  /**
+   *
+   * Sustituye todos los artículos del almacén y reconstruye los índices. Los códigos nuevos serán
+   * mayores que los de los artículos y que el último código guardado.
+   *
+   * @param articulos Artículos nuevos
+   * @param ultimoCodigo Último código que había dado el almacén guardado, 0 si no se conoce
+   */
+  private void sustituir(List<Articulo> articulos, int ultimoCodigo) {
+    for (Articulo art : almacen) {
+      art.setObservador(null);
+    }
+    MapaIntInt nuevasPosiciones = new MapaIntInt(articulos.size());
+    for (int i = 0; i < articulos.size(); i++) {
+      nuevasPosiciones.put(articulos.get(i).getCodigo(), i);
+    }
+    cerrojoLista.lock();
+    try {
+      this.almacen = articulos;
+      this.posiciones = nuevasPosiciones;
+    } finally {
+      cerrojoLista.unlock();
+    }
+    indice = new MapaIntArticulo(almacen.size());
+    nombreMarca.clear();
+    int maximo = ultimoCodigo;
+    for (Articulo art : almacen) {
+      indice.put(art.getCodigo(), art);
+      nombreMarca.put(art);
+      art.setObservador(difusor);
+      maximo = Math.max(maximo, art.getCodigo());
+    }
+    generador.registrar(maximo);
+    difusor.reconstruir(almacen);
+    baseIncremental = null;
+    bajasIncrementales.clear();
+  }
 
+  /**
+   *
+   * Busca un artículo por su código en el índice
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el artículo
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  private Articulo buscar(int codigo) throws CodigoNotFound {
+    Articulo articulo = indice.get(codigo);
+    if (articulo == null) {
+      throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
+    }
+    return articulo;
   }
 
 
@@ -99,25 +381,60 @@ public class Almacen {
    */
   private void lanzaExcepcionSiNombreYMarca2ProductosSonIguales(String nombre, String marca)
       throws AlmacenNombreMarcaException {
-    for (Articulo art : almacen) {
-      if (nombre.equals(art.getNombre()) && marca.equals(art.getMarca())) {
-        throw new AlmacenNombreMarcaException("El nombre y la marca no pueden ser iguales.");
-      }
+    if (nombreMarca.contains(nombre, marca)) {
+      throw new AlmacenNombreMarcaException("El nombre y la marca no pueden ser iguales.");
     }
   }
 
   /**
    * 
-   * Borra un artículo que existe en el almacén con el código pasado
+   * Borra un artículo que existe en el almacén con el código pasado. Tarda lo mismo sea cual sea
+   * el tamaño del almacén: el último artículo de la lista pasa al lugar del borrado.
    * 
    * @param codigo Codigo del artículo a comprobar
    * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
    */
   public void delete(int codigo) throws CodigoNotFound {
-    if (!containsCod(codigo)) {
-      throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
+    long inicio = System.nanoTime();
+    try {
+      Articulo articulo = indice.remove(codigo);
+      if (articulo == null) {
+        metricas.fallo(MetricasAlmacen.Fallo.CODIGO_NO_ENCONTRADO);
+        throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
+      }
+      nombreMarca.remove(articulo);
+      cerrojoLista.lock();
+      try {
+        quitarDeLista(articulo);
+      } finally {
+        cerrojoLista.unlock();
+      }
+      articulo.setObservador(null);
+      difusor.baja(articulo);
+      if (baseIncremental != null) {
+        bajasIncrementales.add(codigo);
+      }
+      registrar(d -> d.registrarBaja(codigo));
+    } finally {
+      metricas.registrar(MetricasAlmacen.Operacion.DELETE, inicio);
+    }
+  }
+
+  /**
+   *
+   * Quita un artículo de la lista en tiempo constante: el último artículo pasa a ocupar su hueco,
+   * así que la baja no desplaza el resto de la lista pero cambia el orden de los artículos. Se
+   * llama con la lista bloqueada.
+   *
+   * @param articulo Artículo a quitar, que está en la lista
+   */
+  private void quitarDeLista(Articulo articulo) {
+    int pos = posiciones.remove(articulo.getCodigo());
+    Articulo ultimo = almacen.remove(almacen.size() - 1);
+    if (ultimo != articulo) {
+      almacen.set(pos, ultimo);
+      posiciones.put(ultimo.getCodigo(), pos);
     }
-    almacen.removeIf(art -> art.getCodigo() == codigo);
   }
 
   /**
@@ -128,12 +445,7 @@ public class Almacen {
    * @return Devuelve falso si el código no existe y verdadero si existe.
    */
   private boolean containsCod(int codigo) {
-    for (Articulo art : almacen) {
-      if (art.getCodigo() == codigo) {
-        return true;
-      }
-    }
-    return false;
+    return indice.containsKey(codigo);
   }
 
 
@@ -144,16 +456,29 @@ public class Almacen {
    * @param codigo Código del artículo a incrementar
    * @param unidades Numero de unidades a incrementar
    * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   * @throws ArticuloStockException Se lanza si se supera el stock máximo del artículo
    * @throws ArticuloIllegalErrorArgumentException 
    */
   public void addUnidades(int codigo, int unidades) throws CodigoNotFound, ArticuloIllegalErrorArgumentException {
-    for (Articulo art : almacen) {
-      if (codigo == art.getCodigo()) {
-        art.addUnidades(unidades);
-        return;
-      }
+    lanzaExcepcion(codigo, unidades, tryAddUnidades(codigo, unidades));
+  }
+
+  /**
+   *
+   * Incrementa las unidades de un artículo sin lanzar excepciones. Si el movimiento se rechaza no
+   * se crea ningún objeto, así que se puede usar cuando los rechazos son frecuentes.
+   *
+   * @param codigo Código del artículo a incrementar
+   * @param unidades Numero de unidades a incrementar
+   * @return Devuelve {@link ResultadoStock#OK} si se han añadido las unidades
+   */
+  public ResultadoStock tryAddUnidades(int codigo, int unidades) {
+    long inicio = System.nanoTime();
+    try {
+      return moverUnidades(codigo, unidades, true);
+    } finally {
+      metricas.registrar(MetricasAlmacen.Operacion.ADD_UNIDADES, inicio);
     }
-    throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
   }
 
   /**
@@ -168,221 +493,1631 @@ public class Almacen {
    */
   public void removeUnidades(int codigo, int unidades)
       throws CodigoNotFound, ArticuloStockException, ArticuloIllegalErrorArgumentException {
-    for (Articulo art : almacen) {
-      if (codigo == art.getCodigo()) {
-        art.eliminarUnidades(unidades);
-        return;
-      }
-    }
-    throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
+    lanzaExcepcion(codigo, unidades, tryRemoveUnidades(codigo, unidades));
   }
 
-
   /**
-   * 
-   * Modifica cualquier parámetro de un artículo existente en el almacén.
-   * 
-   * @param codigo Código del artículo a modificar
-   * @param nombre Nombre del artículo que se va a añadir
-   * @param marca Marca del artículo que se va a añadir
-   * @param precioDeCompra Precio de compra del artículo que se va a añadir
-   * @param precioDeVenta Precio de venta del artículo que se va a añadir
-   * @param numeroDeUnidades Número de unidades del artículo que se va a añadir
-   * @param stockDeSeguridad Cantidad máxima que tiene que haber del artículo
-   * @param StockMaximo Cantidad máxima que puede haber del artículo
-   * @throws AlmacenNombreMarcaException Se lanza si la marca y nombre pasados son iguales
-   * @throws ArticuloIllegalErrorArgumentException Se lanza si falta por pasar algún parámetro
-   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   *
+   * Decrementa las unidades de un artículo sin lanzar excepciones ni bajar de 0. Si el movimiento
+   * se rechaza no se crea ningún objeto, así que se puede usar cuando los rechazos son frecuentes.
+   *
+   * @param codigo Código del artículo a decrementar
+   * @param unidades Cantidad de unidades a decrementar
+   * @return Devuelve {@link ResultadoStock#OK} si se han decrementado las unidades
    */
-  public void modificarArticulo(int codigo, String nombre, String marca, double precioDeCompra,
-      double precioDeVenta, int numeroDeUnidades, int stockDeSeguridad, int StockMaximo)
-      throws AlmacenNombreMarcaException, CodigoNotFound, ArticuloIllegalErrorArgumentException {
-
-    for (Articulo art : almacen) {
-      if (codigo == art.getCodigo()) {
-        if (art.getNombre().equals(nombre) || art.getMarca().equals(marca)) {
-          throw new AlmacenNombreMarcaException("El artículo ya existe en el almacén");
-        }
-        art.set(nombre, marca, precioDeCompra, precioDeVenta, numeroDeUnidades, StockMaximo,
-            stockDeSeguridad);
-        return;
-      }
+  public ResultadoStock tryRemoveUnidades(int codigo, int unidades) {
+    long inicio = System.nanoTime();
+    try {
+      return moverUnidades(codigo, unidades, false);
+    } finally {
+      metricas.registrar(MetricasAlmacen.Operacion.REMOVE_UNIDADES, inicio);
     }
-    throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
   }
-  
+
   /**
-   * 
-   * Devuelve un artículo pasándole el código si no existe da error
-   * 
-   * @param codigo Código del artículo a mostrar
-   * @return Devuelve un artículo
-   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   *
+   * Incrementa o decrementa las unidades de un artículo con el cerrojo de su artículo tomado en
+   * modo compartido, para no mezclarse con un lote que lo incluya
+   *
+   * @param codigo Código del artículo
+   * @param unidades Unidades del movimiento
+   * @param incrementar Verdadero para añadir las unidades, falso para eliminarlas
+   * @return Devuelve el resultado del movimiento
    */
-  public Articulo get(int codigo) throws CodigoNotFound {
-    for (Articulo articulo : almacen) {
-      if (articulo.getCodigo() == codigo) {
-        return articulo;
+  private ResultadoStock moverUnidades(int codigo, int unidades, boolean incrementar) {
+    Articulo articulo = indice.get(codigo);
+    if (articulo == null) {
+      metricas.fallo(ResultadoStock.CODIGO_NO_ENCONTRADO);
+      return ResultadoStock.CODIGO_NO_ENCONTRADO;
+    }
+    ResultadoStock resultado;
+    Lock cerrojo = cerrojosUnidades[numCerrojo(codigo)].readLock();
+    cerrojo.lock();
+    try {
+      resultado = incrementar ? articulo.tryAddUnidades(unidades)
+          : articulo.tryEliminarUnidades(unidades);
+      if (resultado.isOk()) {
+        escribirEnDiario(d -> d.registrarUnidades(codigo, incrementar ? unidades : -unidades));
       }
+    } finally {
+      cerrojo.unlock();
+    }
+    if (resultado.isOk()) {
+      compactarSiHaCrecido();
+    } else {
+      metricas.fallo(resultado);
     }
-    throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
+    return resultado;
   }
 
   /**
-   * 
-   * Guarda el contenido del almacén en un archivo json
-   * 
-   * @param filename Nombre del archivo para guardar el contenido
-   * @throws IOException Se lanza cuando hay un error en la escritura
+   *
+   * Convierte el resultado de un movimiento de unidades en la excepción correspondiente
+   *
+   * @param codigo Código del artículo
+   * @param unidades Unidades del movimiento
+   * @param resultado Resultado del movimiento
+   * @throws CodigoNotFound Se lanza si el código no existe
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si las unidades son negativas
    */
-  public void save(String filename) throws IOException {
-
-    Gson gson = new GsonBuilder().setPrettyPrinting().create();
-    String stringGson = gson.toJson(this);
-    BufferedWriter bw = new BufferedWriter(new FileWriter("src/almacen/" + filename + ".json"));
-
-    bw.write(stringGson);
-    bw.close();
-
+  private void lanzaExcepcion(int codigo, int unidades, ResultadoStock resultado)
+      throws CodigoNotFound, ArticuloIllegalErrorArgumentException {
+    switch (resultado) {
+      case OK -> {
+      }
+      case CODIGO_NO_ENCONTRADO -> throw new CodigoNotFound(
+          "El código " + codigo + " no existe en el almacén.");
+      case UNIDADES_NEGATIVAS -> throw new ArticuloIllegalErrorArgumentException(
+          "Las unidades no pueden ser menores a 0.");
+      case STOCK_INSUFICIENTE -> throw new ArticuloStockException(
+          "No hay unidades suficientes para decrementar " + unidades + " unidades.");
+      case STOCK_MAXIMO_SUPERADO -> throw new ArticuloStockException("No se pueden añadir "
+          + unidades + " unidades sin superar el stock máximo de "
+          + indice.get(codigo).getStockMaximo() + ".");
+    }
   }
 
 
   /**
-   * 
-   * Carga el contenido de un archivo json al almacén.
-   * 
-   * @param filename Nombre del archivo para cargar el contenido
-   * @throws IOException Se lanza cuando hay un error en la escritura
+   *
+   * Aplica un lote de movimientos de stock, por ejemplo la recepción de un camión. Todos los
+   * códigos se resuelven y validan en una sola pasada teniendo en cuenta los movimientos
+   * anteriores del mismo lote, y después cada artículo afectado se actualiza una sola vez con el
+   * total de sus movimientos válidos. Ninguna línea lanza excepciones: el motivo del rechazo se
+   * indica en el resultado de la línea.
+   *
+   * <p>
+   * Mientras se valida y se aplica, el lote toma en modo exclusivo los cerrojos de sus artículos,
+   * siempre en el mismo orden para no bloquearse con otro lote. Los movimientos de unidades que
+   * otros hilos hagan a través del almacén sobre esos artículos esperan a que termine, así que un
+   * lote con todo o nada se aplica entero o no cambia nada, y las vistas de
+   * {@link #instantanea()} nunca ven un lote a medias. Los cambios hechos directamente sobre un
+   * {@link Articulo} no pasan por los cerrojos.
+   * </p>
+   *
+   * @param movimientos Movimientos del lote
+   * @param todoONada Verdadero para no aplicar nada si alguna línea no es válida, falso para
+   *        aplicar las líneas válidas y rechazar el resto
+   * @return Devuelve el resultado de cada línea y si se ha aplicado el lote
    */
-  public void load(String filename) throws IOException {
+  public ResultadoLote aplicarMovimientos(List<Movimiento> movimientos, boolean todoONada) {
+    int n = movimientos.size();
+    ResultadoStock[] resultados = new ResultadoStock[n];
+    MapaIntInt posiciones = new MapaIntInt(n);
+    Articulo[] afectados = new Articulo[n];
+    int numAfectados = 0;
+    int rechazados = 0;
 
-    BufferedReader lector = new BufferedReader(new FileReader("src/almacen/" + filename + ".json"));
-    StringBuilder cadena = new StringBuilder();
-    String line = null;
+    for (int i = 0; i < n; i++) {
+      Movimiento mov = movimientos.get(i);
+      if (posiciones.get(mov.getCodigo()) != MapaIntInt.NO_ENCONTRADO) {
+        continue;
+      }
+      Articulo art = indice.get(mov.getCodigo());
+      if (art == null) {
+        resultados[i] = ResultadoStock.CODIGO_NO_ENCONTRADO;
+        rechazados++;
+        continue;
+      }
+      posiciones.put(mov.getCodigo(), numAfectados);
+      afectados[numAfectados++] = art;
+    }
 
-    while ((line = lector.readLine()) != null) {
-      cadena.append(line);
+    ResultadoLote resultado;
+    int[] tomados = bloquearLote(afectados, numAfectados);
+    try {
+      resultado = aplicarBloqueado(movimientos, todoONada, resultados, rechazados, posiciones,
+          afectados, numAfectados);
+    } finally {
+      desbloquear(tomados);
+    }
+    compactarSiHaCrecido();
+    return resultado;
+  }
 
+  /**
+   *
+   * Valida y aplica un lote con los cerrojos de sus artículos ya tomados. Las unidades de los
+   * artículos no pueden cambiar a través del almacén mientras tanto, así que los totales que se
+   * validan son los que se aplican.
+   *
+   * @param movimientos Movimientos del lote
+   * @param todoONada Verdadero para no aplicar nada si alguna línea no es válida
+   * @param resultados Resultado de cada línea, con los códigos inexistentes ya rechazados
+   * @param rechazados Número de líneas ya rechazadas
+   * @param posiciones Posición de cada código en los artículos afectados
+   * @param afectados Artículos afectados por el lote
+   * @param numAfectados Número de artículos afectados
+   * @return Devuelve el resultado de cada línea y si se ha aplicado el lote
+   */
+  private ResultadoLote aplicarBloqueado(List<Movimiento> movimientos, boolean todoONada,
+      ResultadoStock[] resultados, int rechazados, MapaIntInt posiciones, Articulo[] afectados,
+      int numAfectados) {
+    int n = movimientos.size();
+    long[] proyectadas = new long[numAfectados];
+    long[] netos = new long[numAfectados];
+    for (int pos = 0; pos < numAfectados; pos++) {
+      proyectadas[pos] = afectados[pos].getNumeroDeUnidades();
     }
-    lector.close();
 
-    Almacen data = new Gson().fromJson(cadena.toString(), Almacen.class);
-    this.almacen = data.almacen;
+    for (int i = 0; i < n; i++) {
+      if (resultados[i] != null) {
+        continue;
+      }
+      Movimiento mov = movimientos.get(i);
+      int pos = posiciones.get(mov.getCodigo());
+      long unidades = proyectadas[pos] + mov.getUnidades();
+      int maximo = afectados[pos].getStockMaximo();
+      if (unidades < 0) {
+        resultados[i] = ResultadoStock.STOCK_INSUFICIENTE;
+      } else if (mov.getUnidades() > 0 && unidades > (maximo != 0 ? maximo : Integer.MAX_VALUE)) {
+        resultados[i] = ResultadoStock.STOCK_MAXIMO_SUPERADO;
+      } else {
+        resultados[i] = ResultadoStock.OK;
+        proyectadas[pos] = unidades;
+        netos[pos] += mov.getUnidades();
+        continue;
+      }
+      rechazados++;
+    }
 
+    if (todoONada && rechazados > 0) {
+      return new ResultadoLote(false, resultados, rechazados);
+    }
+    for (int pos = 0; pos < numAfectados; pos++) {
+      // el total cabe en int porque las unidades proyectadas no han salido de 0 a Integer.MAX_VALUE
+      ResultadoStock resultado = sumar(afectados[pos], (int) netos[pos]);
+      if (resultado.isOk()) {
+        continue;
+      }
+      // solo puede pasar si el artículo se ha cambiado directamente, sin pasar por el almacén
+      rechazados += rechazarLineas(movimientos, resultados, afectados[pos].getCodigo(), resultado);
+      if (todoONada) {
+        for (int anterior = 0; anterior < pos; anterior++) {
+          if (!sumar(afectados[anterior], (int) -netos[anterior]).isOk()) {
+            throw new IllegalStateException("No se puede deshacer el lote: el artículo "
+                + afectados[anterior].getCodigo() + " se ha cambiado fuera del almacén.");
+          }
+        }
+        for (int otro = 0; otro < numAfectados; otro++) {
+          rechazados += rechazarLineas(movimientos, resultados, afectados[otro].getCodigo(),
+              resultado);
+        }
+        return new ResultadoLote(false, resultados, rechazados);
+      }
+    }
+    return new ResultadoLote(true, resultados, rechazados);
+  }
 
+  /**
+   *
+   * Toma en modo exclusivo los cerrojos de los artículos de un lote, de menor a mayor para que dos
+   * lotes con artículos comunes no se bloqueen entre sí
+   *
+   * @param afectados Artículos del lote
+   * @param numAfectados Número de artículos del lote
+   * @return Devuelve los números de los cerrojos tomados, en orden
+   */
+  private int[] bloquearLote(Articulo[] afectados, int numAfectados) {
+    int[] numeros = new int[numAfectados];
+    for (int pos = 0; pos < numAfectados; pos++) {
+      numeros[pos] = numCerrojo(afectados[pos].getCodigo());
+    }
+    Arrays.sort(numeros);
+    int distintos = 0;
+    for (int numero : numeros) {
+      if (distintos == 0 || numeros[distintos - 1] != numero) {
+        numeros[distintos++] = numero;
+      }
+    }
+    int[] tomados = Arrays.copyOf(numeros, distintos);
+    for (int numero : tomados) {
+      cerrojosUnidades[numero].writeLock().lock();
+    }
+    return tomados;
   }
 
   /**
-   * 
-   * Crea un archivo XML con el contenido del almacén
-   * 
-   * @param archive Nombre del archivo en el que se guarda el almacen
-   * @throws ParserConfigurationException 
-   * @throws TransformerFactoryConfigurationError 
-   * @throws TransformerException 
+   *
+   * Suelta los cerrojos tomados por {@link #bloquearLote(Articulo[], int)}
+   *
+   * @param tomados Números de los cerrojos tomados
    */
-  void changeFormatToXml(String archive) throws ParserConfigurationException, TransformerFactoryConfigurationError, TransformerException {
-  
-      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      DocumentBuilder builder = factory.newDocumentBuilder();
-      DOMImplementation implementation = builder.getDOMImplementation();
+  private void desbloquear(int[] tomados) {
+    for (int i = tomados.length - 1; i >= 0; i--) {
+      cerrojosUnidades[tomados[i]].writeLock().unlock();
+    }
+  }
 
-      Document documento = implementation.createDocument(null, "almacen", null);
-      documento.setXmlVersion("1.0");
+  /**
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el número del cerrojo que protege las unidades del artículo
+   */
+  private int numCerrojo(int codigo) {
+    int h = codigo * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (cerrojosUnidades.length - 1);
+  }
 
-      Element stock = documento.createElement("Almacen");
+  /**
+   *
+   * @return Devuelve los cerrojos de las unidades, un múltiplo del número de procesadores
+   */
+  private static ReentrantReadWriteLock[] crearCerrojos() {
+    ReentrantReadWriteLock[] cerrojos = new ReentrantReadWriteLock[Integer
+        .highestOneBit(Runtime.getRuntime().availableProcessors() * 16)];
+    for (int i = 0; i < cerrojos.length; i++) {
+      cerrojos[i] = new ReentrantReadWriteLock();
+    }
+    return cerrojos;
+  }
+
+  /**
+   *
+   * Suma unidades a un artículo sin salir de sus límites y lo registra en el diario. Se llama con
+   * el cerrojo del artículo tomado, así que no lanza la compactación.
+   *
+   * @param art Artículo
+   * @param unidades Unidades a sumar, negativas para restar
+   * @return Devuelve el resultado del movimiento, {@link ResultadoStock#OK} si no hay nada que
+   *         sumar
+   */
+  private ResultadoStock sumar(Articulo art, int unidades) {
+    if (unidades == 0) {
+      return ResultadoStock.OK;
+    }
+    ResultadoStock resultado = art.trySumarUnidades(unidades);
+    if (resultado.isOk()) {
+      escribirEnDiario(d -> d.registrarUnidades(art.getCodigo(), unidades));
+    }
+    return resultado;
+  }
+
+  /**
+   *
+   * Rechaza las líneas aceptadas de un artículo de un lote cuyo total no se ha podido aplicar
+   *
+   * @param movimientos Movimientos del lote
+   * @param resultados Resultado de cada línea
+   * @param codigo Código del artículo
+   * @param motivo Motivo del rechazo
+   * @return Devuelve el número de líneas rechazadas
+   */
+  private static int rechazarLineas(List<Movimiento> movimientos, ResultadoStock[] resultados,
+      int codigo, ResultadoStock motivo) {
+    int rechazadas = 0;
+    for (int i = 0; i < resultados.length; i++) {
+      if (resultados[i].isOk() && movimientos.get(i).getCodigo() == codigo) {
+        resultados[i] = motivo;
+        rechazadas++;
+      }
+    }
+    return rechazadas;
+  }
+
+
+  /**
+   * 
+   * Modifica cualquier parámetro de un artículo existente en el almacén.
+   * 
+   * @param codigo Código del artículo a modificar
+   * @param nombre Nombre del artículo que se va a añadir
+   * @param marca Marca del artículo que se va a añadir
+   * @param precioDeCompra Precio de compra del artículo que se va a añadir
+   * @param precioDeVenta Precio de venta del artículo que se va a añadir
+   * @param numeroDeUnidades Número de unidades del artículo que se va a añadir
+   * @param stockDeSeguridad Cantidad máxima que tiene que haber del artículo
+   * @param StockMaximo Cantidad máxima que puede haber del artículo
+   * @throws AlmacenNombreMarcaException Se lanza si la marca y nombre pasados son iguales
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si falta por pasar algún parámetro
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public void modificarArticulo(int codigo, String nombre, String marca, double precioDeCompra,
+      double precioDeVenta, int numeroDeUnidades, int stockDeSeguridad, int StockMaximo)
+      throws AlmacenNombreMarcaException, CodigoNotFound, ArticuloIllegalErrorArgumentException {
+
+    long inicio = System.nanoTime();
+    try {
+      Articulo art = buscar(codigo);
+      String nombreAnterior = art.getNombre();
+      String marcaAnterior = art.getMarca();
+      Articulo existente = nombreMarca.reservar(nombre, marca, art);
+      if (existente != null && existente != art) {
+        throw new AlmacenNombreMarcaException("El artículo ya existe en el almacén");
+      }
+      Lock cerrojo = cerrojosUnidades[numCerrojo(codigo)].writeLock();
+      cerrojoLista.lock();
+      cerrojo.lock();
+      try {
+        art.set(nombre, marca, precioDeCompra, precioDeVenta, numeroDeUnidades, StockMaximo,
+            stockDeSeguridad);
+      } finally {
+        cerrojo.unlock();
+        cerrojoLista.unlock();
+        nombreMarca.reindexar(nombreAnterior, marcaAnterior, art);
+        nombreMarca.liberar(nombre, marca, art);
+        registrar(d -> d.registrarModificacion(art));
+      }
+    } catch (AlmacenNombreMarcaException | CodigoNotFound
+        | ArticuloIllegalErrorArgumentException e) {
+      metricas.fallo(e);
+      throw e;
+    } finally {
+      metricas.registrar(MetricasAlmacen.Operacion.MODIFICAR_ARTICULO, inicio);
+    }
+  }
+
+  /**
+   *
+   * Busca un artículo por su nombre y marca
+   *
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @return Devuelve el artículo o un Optional vacío si no existe
+   */
+  public Optional<Articulo> findByNombreMarca(String nombre, String marca) {
+    return Optional.ofNullable(nombreMarca.get(nombre, marca));
+  }
+  
+  /**
+   * 
+   * Devuelve un artículo pasándole el código si no existe da error
+   * 
+   * @param codigo Código del artículo a mostrar
+   * @return Devuelve un artículo
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public Articulo get(int codigo) throws CodigoNotFound {
+    Articulo articulo = consultar(codigo);
+    if (articulo == null) {
+      throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
+    }
+    return articulo;
+  }
+
+  /**
+   *
+   * Busca un artículo por su código sin lanzar excepciones. Si no existe no se crea ningún
+   * objeto, así que se puede usar cuando los códigos desconocidos son frecuentes.
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el artículo o un Optional vacío si no existe
+   */
+  public Optional<Articulo> find(int codigo) {
+    return Optional.ofNullable(consultar(codigo));
+  }
+
+  /**
+   *
+   * Busca un artículo por su código contando la consulta en las métricas
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el artículo o null si no existe
+   */
+  private Articulo consultar(int codigo) {
+    long inicio = System.nanoTime();
+    Articulo articulo = indice.get(codigo);
+    if (articulo == null) {
+      metricas.fallo(MetricasAlmacen.Fallo.CODIGO_NO_ENCONTRADO);
+    }
+    metricas.registrar(MetricasAlmacen.Operacion.GET, inicio);
+    return articulo;
+  }
+
+  /**
+   * 
+   * Guarda el contenido del almacén en un archivo json con formato legible
+   * 
+   * @param filename Nombre del archivo para guardar el contenido
+   * @throws IOException Se lanza cuando hay un error en la escritura
+   */
+  public void save(String filename) throws IOException {
+    save(filename, false);
+  }
+
+  /**
+   *
+   * Guarda el contenido del almacén en un archivo json escribiendo los artículos de uno en uno,
+   * sin construir el documento completo en memoria. El formato es
+   * {"almacen":[...],"ultimoCodigo":n}, donde ultimoCodigo es el último código que ha dado el
+   * almacén.
+   *
+   * @param filename Nombre del archivo para guardar el contenido
+   * @param compacto Verdadero para escribir sin sangrías ni saltos de línea
+   * @throws IOException Se lanza cuando hay un error en la escritura
+   */
+  public void save(String filename, boolean compacto) throws IOException {
+    long inicio = System.nanoTime();
+    try (InstantaneaAlmacen foto = instantanea()) {
+      foto.save(filename, compacto);
+      metricas.guardado(Files.size(Path.of(archivoJson(filename))), foto.size(), inicio);
+    }
+  }
+
+  /**
+   *
+   * @param filename Nombre del archivo json sin extensión
+   * @return Devuelve la ruta del archivo json
+   */
+  private static String archivoJson(String filename) {
+    return "src/almacen/" + filename + ".json";
+  }
+
+  /**
+   *
+   * Escribe artículos en un archivo json con el formato de {@link #save(String, boolean)}
+   *
+   * @param filename Nombre del archivo para guardar el contenido
+   * @param compacto Verdadero para escribir sin sangrías ni saltos de línea
+   * @param articulos Artículos a guardar
+   * @param ultimoCodigo Último código que ha dado el almacén
+   * @throws IOException Se lanza cuando hay un error en la escritura
+   */
+  static void escribirJson(String filename, boolean compacto, Iterable<Articulo> articulos,
+      int ultimoCodigo) throws IOException {
+
+    escribirAtomicamente(Path.of(archivoJson(filename)), salida -> {
+      JsonWriter writer = new JsonWriter(
+          new BufferedWriter(new OutputStreamWriter(salida, Charset.defaultCharset())));
+      if (!compacto) {
+        writer.setIndent("  ");
+      }
+      writer.beginObject();
+      writer.name("almacen");
+      writer.beginArray();
+      for (Articulo art : articulos) {
+        GSON.toJson(art, Articulo.class, writer);
+      }
+      writer.endArray();
+      writer.name("ultimoCodigo").value(ultimoCodigo);
+      writer.endObject();
+      writer.flush();
+    });
+
+  }
+
+  /**
+   *
+   * Escribe un archivo primero en un temporal del mismo directorio, lo sincroniza con el disco y
+   * después lo renombra sobre el archivo. Quien lea el archivo ve siempre el contenido anterior
+   * completo o el nuevo completo, nunca uno a medio escribir. Cada escritura usa un temporal con
+   * un nombre distinto, así dos escrituras a la vez del mismo archivo no se pisan: gana la última
+   * en renombrar.
+   *
+   * @param archivo Ruta del archivo
+   * @param escritura Escritura del contenido, que vacía sus búferes sin cerrar el flujo
+   * @throws IOException Se lanza cuando hay un error en la escritura. El archivo no cambia.
+   */
+  static void escribirAtomicamente(Path archivo, Escritura escritura) throws IOException {
+    Path temporal = archivo.resolveSibling(archivo.getFileName() + "."
+        + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+    try {
+      try (FileOutputStream salida = new FileOutputStream(temporal.toFile())) {
+        escritura.en(salida);
+        salida.getFD().sync();
+      }
+      Files.move(temporal, archivo, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporal);
+    }
+  }
+
+  /**
+   *
+   * Guarda el contenido del almacén en un archivo json en segundo plano, sin esperar a que se
+   * escriba. La vista del almacén se toma cuando el guardado empieza. Si ya hay un guardado del
+   * mismo archivo en el mismo formato esperando a empezar no se pide otro, se espera a ese, que
+   * también incluirá los cambios hechos hasta ahora. El archivo se sustituye de forma atómica.
+   * Antes de terminar el programa hay que esperar a los guardados pendientes con
+   * {@link #cerrarGuardados()}.
+   *
+   * @param filename Nombre del archivo para guardar el contenido
+   * @param compacto Verdadero para escribir sin sangrías ni saltos de línea
+   * @return Devuelve un futuro que se completa al terminar de escribir, o con la excepción si falla
+   */
+  public CompletableFuture<Void> saveAsync(String filename, boolean compacto) {
+    return guardados.guardar(clave(archivoJson(filename), compacto ? "json compacto" : "json"),
+        () -> save(filename, compacto));
+  }
+
+  /**
+   *
+   * Guarda el contenido del almacén en un archivo XML en segundo plano, igual que
+   * {@link #saveAsync(String, boolean)}
+   *
+   * @param archive Nombre del archivo en el que se guarda
+   * @return Devuelve un futuro que se completa al terminar de escribir, o con la excepción si falla
+   */
+  public CompletableFuture<Void> changeFormatToXmlAsync(String archive) {
+    return guardados.guardar(clave(archive, "xml"), () -> changeFormatToXml(archive));
+  }
+
+  /**
+   *
+   * Guarda el contenido del almacén en un archivo json en segundo plano cada cierto tiempo, con
+   * {@link #saveAsync(String, boolean)}. Los errores se muestran por la salida de errores y no
+   * detienen los guardados siguientes.
+   *
+   * @param filename Nombre del archivo para guardar el contenido
+   * @param compacto Verdadero para escribir sin sangrías ni saltos de línea
+   * @param periodo Tiempo entre que se pide un guardado y se pide el siguiente, sin contar lo que
+   *        tarda en escribirse. Se escriben en el mismo hilo, así que nunca se solapan.
+   * @param unidad Unidad del periodo
+   * @return Devuelve la tarea programada, que se cancela para dejar de guardar
+   */
+  public ScheduledFuture<?> programarGuardado(String filename, boolean compacto, long periodo,
+      TimeUnit unidad) {
+    return guardados.programar(clave(archivoJson(filename), compacto ? "json compacto" : "json"),
+        () -> save(filename, compacto), periodo, unidad);
+  }
+
+  /**
+   *
+   * Espera a que terminen los guardados en segundo plano pedidos hasta ahora, cancela los
+   * periódicos y detiene el hilo de guardado. Hay que llamarlo antes de terminar el programa: el
+   * hilo de guardado no impide que la máquina virtual termine y los guardados pendientes se
+   * perderían. Un guardado en segundo plano pedido después vuelve a arrancar el hilo.
+   *
+   * <p>
+   * Si se interrumpe la espera, el hilo que llama queda marcado como interrumpido y los guardados
+   * pendientes siguen en segundo plano.
+   * </p>
+   */
+  public void cerrarGuardados() {
+    try {
+      guardados.cerrar();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   *
+   * @param archivo Ruta de un archivo
+   * @param formato Formato en el que se guarda
+   * @return Devuelve la ruta absoluta del archivo y el formato, con los que se agrupan los
+   *         guardados pendientes
+   */
+  private static String clave(String archivo, String formato) {
+    return Path.of(archivo).toAbsolutePath().normalize() + " (" + formato + ")";
+  }
 
-      for (Articulo art : almacen) {
-        Element articulo = documento.createElement("Articulo");
 
-        Element nombre = documento.createElement("Nombre");
-        Text textNombre = documento.createTextNode(art.getNombre());
-        nombre.appendChild(textNombre);
-        articulo.appendChild(nombre);
+  /**
+   * 
+   * Carga el contenido de un archivo json al almacén leyendo los artículos de uno en uno, sin
+   * cargar el documento completo en memoria. Acepta tanto el formato legible como el compacto.
+   * 
+   * @param filename Nombre del archivo para cargar el contenido
+   * @throws IOException Se lanza cuando hay un error en la escritura
+   */
+  public void load(String filename) throws IOException {
 
-        Element marca = documento.createElement("Marca");
-        Text textMarca = documento.createTextNode(art.getMarca());
-        marca.appendChild(textMarca);
-        articulo.appendChild(marca);
+    long inicio = System.nanoTime();
+    List<Articulo> cargados = new ArrayList<>();
+    int ultimoCodigo = 0;
+    try (JsonReader reader =
+        new JsonReader(new BufferedReader(new FileReader(archivoJson(filename))))) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String nombre = reader.nextName();
+        if (nombre.equals("almacen") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+          reader.beginArray();
+          while (reader.hasNext()) {
+            cargados.add(GSON.fromJson(reader, Articulo.class));
+          }
+          reader.endArray();
+        } else if (nombre.equals("ultimoCodigo") && reader.peek() == JsonToken.NUMBER) {
+          ultimoCodigo = reader.nextInt();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    }
 
-        Element precioDeCompra = documento.createElement("PrecioDeCompra");
-        Text textPrecioDeCompra = documento.createTextNode("" + art.getPrecioDeCompra());
-        precioDeCompra.appendChild(textPrecioDeCompra);
-        articulo.appendChild(precioDeCompra);
+    sustituir(cargados, ultimoCodigo);
+    metricas.carga(Files.size(Path.of(archivoJson(filename))), cargados.size(), inicio);
+    compactarSiHayDiario();
 
-        Element precioDeVenta = documento.createElement("PrecioDeVenta");
-        Text textPrecioDeVenta = documento.createTextNode("" + art.getPrecioDeVenta());
-        precioDeVenta.appendChild(textPrecioDeVenta);
-        articulo.appendChild(precioDeVenta);
+  }
 
-        Element numUnidades = documento.createElement("NumeroDeUnidades");
-        Text textNumUnidades = documento.createTextNode("" + art.getNumeroDeUnidades());
-        numUnidades.appendChild(textNumUnidades);
-        articulo.appendChild(numUnidades);
+  /**
+   * 
+   * Crea un archivo XML con el contenido del almacén. Los artículos se escriben de uno en uno con
+   * un {@link XMLStreamWriter}, sin construir el documento completo en memoria.
+   * 
+   * @param archive Nombre del archivo en el que se guarda el almacen
+   * @throws IOException Se lanza cuando hay un error en la escritura
+   */
+  void changeFormatToXml(String archive) throws IOException {
+    long inicio = System.nanoTime();
+    try (InstantaneaAlmacen foto = instantanea()) {
+      foto.changeFormatToXml(archive);
+      metricas.guardado(Files.size(Path.of(archive)), foto.size(), inicio);
+    }
+  }
 
-        Element stockSeguridad = documento.createElement("StockDeSeguridad");
-        Text textStockSeguridad = documento.createTextNode("" + art.getStockDeSeguridad());
-        stockSeguridad.appendChild(textStockSeguridad);
-        articulo.appendChild(stockSeguridad);
+  /**
+   *
+   * Escribe artículos en un archivo XML con el formato de {@link #changeFormatToXml(String)}
+   *
+   * @param archive Nombre del archivo en el que se guardan los artículos
+   * @param articulos Artículos a guardar
+   * @throws IOException Se lanza cuando hay un error en la escritura
+   */
+  static void escribirXml(String archive, Iterable<Articulo> articulos) throws IOException {
 
-        Element stockMaximo = documento.createElement("StockMaximo");
-        Text textStockMaximo = documento.createTextNode("" + art.getStockMaximo());
-        stockMaximo.appendChild(textStockMaximo);
-        articulo.appendChild(stockMaximo);
+    escribirAtomicamente(Path.of(archive), archivo -> {
+      OutputStream salida = new BufferedOutputStream(archivo);
+      try {
+        XMLStreamWriter writer =
+            XMLOutputFactory.newInstance().createXMLStreamWriter(salida, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("almacen");
+        writer.writeStartElement("Almacen");
 
-        stock.appendChild(articulo);
+        for (Articulo art : articulos) {
+          writer.writeStartElement("Articulo");
+          escribirElemento(writer, "Codigo", String.valueOf(art.getCodigo()));
+          escribirElemento(writer, "Nombre", art.getNombre());
+          escribirElemento(writer, "Marca", art.getMarca());
+          escribirElemento(writer, "PrecioDeCompra", String.valueOf(art.getPrecioDeCompra()));
+          escribirElemento(writer, "PrecioDeVenta", String.valueOf(art.getPrecioDeVenta()));
+          escribirElemento(writer, "NumeroDeUnidades", String.valueOf(art.getNumeroDeUnidades()));
+          escribirElemento(writer, "StockDeSeguridad", String.valueOf(art.getStockDeSeguridad()));
+          escribirElemento(writer, "StockMaximo", String.valueOf(art.getStockMaximo()));
+          writer.writeEndElement();
+        }
 
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        // cerrar el escritor no cierra el flujo, lo cierra escribirAtomicamente
+        writer.close();
+      } catch (XMLStreamException e) {
+        throw new IOException("Error al escribir el XML: " + e.getMessage(), e);
       }
-      documento.getDocumentElement().appendChild(stock);
+      salida.flush();
+    });
 
-      Source source = new DOMSource(documento);
-      Result result = new StreamResult(new File(archive));
+  }
 
-      Transformer transformer = TransformerFactory.newInstance().newTransformer();
-      transformer.transform(source, result);
-    
+  /**
+   *
+   * Escribe un elemento con solo texto
+   *
+   * @param writer Escritor del documento
+   * @param nombre Nombre del elemento
+   * @param texto Texto del elemento
+   * @throws XMLStreamException Se lanza cuando hay un error en la escritura
+   */
+  private static void escribirElemento(XMLStreamWriter writer, String nombre, String texto)
+      throws XMLStreamException {
+    writer.writeStartElement(nombre);
+    writer.writeCharacters(texto);
+    writer.writeEndElement();
   }
+
   /**
    * 
-   * Guarda el contenido del almacén en un archivo XML
+   * Añade al almacén los artículos de un archivo XML. El archivo se lee de forma secuencial con un
+   * {@link XMLStreamReader}, por lo que la memoria usada no depende de su tamaño. Los artículos
+   * conservan su código si lo traen y si no se les da uno nuevo. Un artículo con datos incorrectos
+   * o repetido no detiene la carga: se descarta y se informa en la lista de errores devuelta.
    * 
    * @param filename Nombre del archivo del que se carga el almacen
-   * @throws IOException
+   * @return Devuelve los errores encontrados, uno por artículo descartado. Si está vacía se han
+   *         cargado todos.
+   * @throws IOException Se lanza cuando hay un error en la lectura
    */
-  public void loadFromXml(String filename) throws IOException {
-    try {
-      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      DocumentBuilder builder = factory.newDocumentBuilder();
-      Document documento = builder.parse(new File(filename));
+  public List<String> loadFromXml(String filename) throws IOException {
+    long inicio = System.nanoTime();
+    int antes = almacen.size();
+    List<String> errores = new ArrayList<>();
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+    try (InputStream entrada = new BufferedInputStream(new FileInputStream(filename))) {
+      XMLStreamReader reader = factory.createXMLStreamReader(entrada);
+      int numArticulo = 0;
+      try {
+        while (reader.hasNext()) {
+          if (reader.next() == XMLStreamConstants.START_ELEMENT
+              && reader.getLocalName().equals("Articulo")) {
+            numArticulo++;
+            try {
+              cargarArticuloXml(reader);
+            } catch (ArticuloIllegalErrorArgumentException | AlmacenNombreMarcaException e) {
+              errores.add("Artículo " + numArticulo + ": " + e.getMessage());
+            } catch (NumberFormatException e) {
+              errores.add("Artículo " + numArticulo + ": Número no válido. " + e.getMessage());
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      errores.add("El XML no es válido, se ha detenido la carga: " + e.getMessage());
+    }
+    metricas.carga(Files.size(Path.of(filename)), almacen.size() - antes, inicio);
+    return errores;
+  }
+
+  /**
+   *
+   * Lee los elementos de un artículo hasta su etiqueta de cierre y lo añade al almacén
+   *
+   * @param reader Lector situado en la etiqueta de apertura del artículo
+   * @throws XMLStreamException Se lanza si el XML no es válido
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si falta algún dato o no es válido
+   * @throws AlmacenNombreMarcaException Se lanza si el artículo ya existe en el almacén
+   */
+  private void cargarArticuloXml(XMLStreamReader reader) throws XMLStreamException,
+      ArticuloIllegalErrorArgumentException, AlmacenNombreMarcaException {
+    String codigo = null;
+    String nombre = null;
+    String marca = null;
+    String precioDeCompra = null;
+    String precioDeVenta = null;
+    String numUnidades = null;
+    String stockSeguridad = null;
+    String stockMaximo = null;
+
+    int evento;
+    while ((evento = reader.next()) != XMLStreamConstants.END_ELEMENT
+        || !reader.getLocalName().equals("Articulo")) {
+      if (evento == XMLStreamConstants.START_ELEMENT) {
+        switch (reader.getLocalName()) {
+          case "Codigo" -> codigo = reader.getElementText();
+          case "Nombre" -> nombre = reader.getElementText();
+          case "Marca" -> marca = reader.getElementText();
+          case "PrecioDeCompra" -> precioDeCompra = reader.getElementText();
+          case "PrecioDeVenta" -> precioDeVenta = reader.getElementText();
+          case "NumeroDeUnidades" -> numUnidades = reader.getElementText();
+          case "StockDeSeguridad" -> stockSeguridad = reader.getElementText();
+          case "StockMaximo" -> stockMaximo = reader.getElementText();
+          default -> reader.getElementText();
+        }
+      }
+    }
 
-      documento.getDocumentElement().normalize();
+    int code = codigo == null ? 0 : Integer.parseInt(codigo.trim());
+    if (code < 0) {
+      throw new ArticuloIllegalErrorArgumentException("El código no puede ser negativo.");
+    }
+    if (code != 0 && containsCod(code)) {
+      throw new ArticuloIllegalErrorArgumentException(
+          "El código " + code + " ya existe en el almacén.");
+    }
+    Articulo articulo = new Articulo(code != 0 ? code : generador.siguiente(), nombre, marca,
+        Double.parseDouble(requerido("PrecioDeCompra", precioDeCompra)),
+        Double.parseDouble(requerido("PrecioDeVenta", precioDeVenta)),
+        Integer.parseInt(requerido("NumeroDeUnidades", numUnidades)),
+        Integer.parseInt(requerido("StockDeSeguridad", stockSeguridad)),
+        Integer.parseInt(requerido("StockMaximo", stockMaximo)));
+    lanzaExcepcionSiNombreYMarca2ProductosSonIguales(nombre, marca);
+    generador.registrar(code);
+    indexar(articulo);
+  }
+
+  /**
+   *
+   * Comprueba que un elemento obligatorio del artículo está presente
+   *
+   * @param elemento Nombre del elemento
+   * @param texto Texto leído del elemento o null si no estaba
+   * @return Devuelve el texto sin espacios alrededor
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si el elemento no estaba
+   */
+  private static String requerido(String elemento, String texto)
+      throws ArticuloIllegalErrorArgumentException {
+    if (texto == null) {
+      throw new ArticuloIllegalErrorArgumentException("Falta el elemento " + elemento + ".");
+    }
+    return texto.trim();
+  }
 
-      NodeList nodes = documento.getElementsByTagName("Articulo");
+  /**
+   *
+   * Guarda el contenido del almacén en un snapshot binario, más compacto y rápido de cargar que el
+   * json o el XML
+   *
+   * @param archive Nombre del archivo en el que se guarda el almacén
+   * @throws IOException Se lanza cuando hay un error en la escritura
+   */
+  public void saveSnapshot(String archive) throws IOException {
+    long inicio = System.nanoTime();
+    try (InstantaneaAlmacen foto = instantanea()) {
+      foto.saveSnapshot(archive);
+      metricas.guardado(Files.size(Path.of(archive)), foto.size(), inicio);
+    }
+  }
 
-      for (int i = 0; i < nodes.getLength(); i++) {
-        Node node = nodes.item(i);
-        Element articulo = (Element) node;
+  /**
+   *
+   * Sustituye el contenido del almacén por el de un snapshot binario. Los artículos conservan el
+   * código con el que se guardaron.
+   *
+   * @param archive Nombre del archivo del que se carga el almacén
+   * @throws IOException Se lanza si hay un error en la lectura o el snapshot está dañado
+   */
+  public void loadSnapshot(String archive) throws IOException {
+    long inicio = System.nanoTime();
+    SnapshotBinario leido = SnapshotBinario.leer(Path.of(archive));
+    sustituir(leido.getArticulos(), leido.getUltimoCodigo());
+    metricas.carga(Files.size(Path.of(archive)), leido.getArticulos().size(), inicio);
+    compactarSiHayDiario();
+  }
 
-        String nombre = articulo.getElementsByTagName("Nombre").item(0).getTextContent();
-        String marca = articulo.getElementsByTagName("Marca").item(0).getTextContent();
-        double precioDeCompra = Double
-            .parseDouble(articulo.getElementsByTagName("PrecioDeCompra").item(0).getTextContent());
-        double precioDeVenta = Double
-            .parseDouble(articulo.getElementsByTagName("PrecioDeVenta").item(0).getTextContent());
-        int numUnidades = Integer
-            .parseInt(articulo.getElementsByTagName("NumeroDeUnidades").item(0).getTextContent());
-        int stockSeguridad = Integer
-            .parseInt(articulo.getElementsByTagName("StockDeSeguridad").item(0).getTextContent());
-        int stockMaximo =
-            Integer.parseInt(articulo.getElementsByTagName("StockMaximo").item(0).getTextContent());
+  /**
+   *
+   * Guarda solo lo que ha cambiado desde el guardado anterior en el mismo archivo: los artículos
+   * modificados o dados de alta y los códigos de los dados de baja. Cada guardado escribe un
+   * incremento nuevo junto a la base, con el nombre del archivo seguido de ".delta." y su número, y
+   * cuesta lo mismo que los cambios, no que el almacén, así que se puede llamar cada pocos
+   * segundos. Se vuelve a escribir la base completa y se borran los incrementos en el primer
+   * guardado, después de cargar otro archivo, cuando la cadena llega a
+   * {@link #setMaxIncrementos(int)} incrementos o cuando ha cambiado más de la mitad del almacén.
+   * Se carga con {@link #loadIncremental(String)}.
+   *
+   * @param archive Nombre del archivo de la base
+   * @throws IOException Se lanza cuando hay un error en la escritura. Los cambios no guardados se
+   *         incluyen en el siguiente guardado.
+   */
+  public void saveIncremental(String archive) throws IOException {
+    long inicio = System.nanoTime();
+    Path base = Path.of(archive);
+    if (!base.equals(baseIncremental) || secuenciaIncremental >= maxIncrementos
+        || !Files.exists(base)) {
+      consolidar(base, inicio);
+      return;
+    }
+    List<Articulo> cambiados = new ArrayList<>();
+    for (Articulo art : almacen) {
+      if (art.limpiarModificado()) {
+        cambiados.add(art);
+      }
+    }
+    if (cambiados.size() > almacen.size() / 2) {
+      consolidar(base, inicio);
+      return;
+    }
 
-        almacen.add(new Articulo(nombre, marca, precioDeCompra, precioDeVenta, numUnidades,
-            stockSeguridad, stockMaximo));
+    // copias para que los movimientos de otros hilos no cambien un artículo a medio escribir
+    List<Articulo> copias = new ArrayList<>(cambiados.size());
+    for (Articulo art : cambiados) {
+      copias.add(new Articulo(art));
+    }
+    int[] bajas = bajasIncrementales.stream().mapToInt(Integer::intValue).toArray();
+    Path incremento = rutaIncremento(base, secuenciaIncremental + 1);
+    try {
+      SnapshotBinario.escribir(incremento, copias, 0, generador.getUltimo(), cadenaIncremental,
+          secuenciaIncremental + 1, bajas);
+    } catch (IOException e) {
+      for (Articulo art : cambiados) {
+        art.marcarModificado();
       }
+      throw e;
+    }
+    secuenciaIncremental++;
+    bajasIncrementales.clear();
+    metricas.guardado(Files.size(incremento), copias.size() + bajas.length, inicio);
+  }
 
-    } catch (ParserConfigurationException | SAXException
-        | ArticuloIllegalErrorArgumentException e) {
-      System.err.println(e.getMessage());
+  /**
+   *
+   * Escribe una base nueva de la cadena de snapshots incrementales con todo el almacén y borra los
+   * incrementos de la anterior
+   *
+   * @param base Ruta de la base
+   * @param inicio Valor de {@link System#nanoTime()} al empezar a guardar
+   * @throws IOException Se lanza cuando hay un error en la escritura
+   */
+  private void consolidar(Path base, long inicio) throws IOException {
+    // se borran las marcas antes de copiar, un cambio posterior irá también al siguiente incremento
+    for (Articulo art : almacen) {
+      art.limpiarModificado();
+    }
+    long cadena;
+    do {
+      cadena = ThreadLocalRandom.current().nextLong();
+    } while (cadena == 0 || cadena == cadenaIncremental);
+    try (InstantaneaAlmacen foto = instantanea()) {
+      try {
+        foto.saveSnapshot(base, 0, cadena);
+      } catch (IOException e) {
+        for (Articulo art : almacen) {
+          art.marcarModificado();
+        }
+        throw e;
+      }
+      metricas.guardado(Files.size(base), foto.size(), inicio);
+    }
+    baseIncremental = base;
+    cadenaIncremental = cadena;
+    secuenciaIncremental = 0;
+    bajasIncrementales.clear();
+    // los incrementos que queden de la cadena anterior se ignoran al cargar porque no es la suya
+    int secuencia = 1;
+    while (Files.deleteIfExists(rutaIncremento(base, secuencia))) {
+      secuencia++;
+    }
+  }
+
+  /**
+   *
+   * Sustituye el contenido del almacén por el de una cadena de snapshots incrementales guardada
+   * con {@link #saveIncremental(String)}: carga la base y le aplica en orden sus incrementos. Los
+   * artículos conservan su código. También carga un snapshot normal, que no tiene incrementos.
+   *
+   * @param archive Nombre del archivo de la base
+   * @throws IOException Se lanza si hay un error en la lectura o algún archivo está dañado
+   */
+  public void loadIncremental(String archive) throws IOException {
+    long inicio = System.nanoTime();
+    Path base = Path.of(archive);
+    SnapshotBinario leido = SnapshotBinario.leer(base);
+    long bytes = Files.size(base);
+    Map<Integer, Articulo> articulos = new LinkedHashMap<>();
+    for (Articulo art : leido.getArticulos()) {
+      articulos.put(art.getCodigo(), art);
+    }
+    int ultimoCodigo = leido.getUltimoCodigo();
+    int secuencia = 0;
+    while (leido.getCadena() != 0 && Files.exists(rutaIncremento(base, secuencia + 1))) {
+      Path ruta = rutaIncremento(base, secuencia + 1);
+      SnapshotBinario incremento = SnapshotBinario.leer(ruta);
+      if (incremento.getCadena() != leido.getCadena()
+          || incremento.getSecuencia() != secuencia + 1) {
+        // resto de una cadena anterior que no se llegó a borrar
+        break;
+      }
+      for (int codigo : incremento.getBajas()) {
+        articulos.remove(codigo);
+      }
+      for (Articulo art : incremento.getArticulos()) {
+        articulos.put(art.getCodigo(), art);
+      }
+      ultimoCodigo = Math.max(ultimoCodigo, incremento.getUltimoCodigo());
+      bytes += Files.size(ruta);
+      secuencia++;
+    }
+
+    sustituir(new ArrayList<>(articulos.values()), ultimoCodigo);
+    for (Articulo art : almacen) {
+      art.limpiarModificado();
+    }
+    if (leido.getCadena() != 0) {
+      baseIncremental = base;
+      cadenaIncremental = leido.getCadena();
+      secuenciaIncremental = secuencia;
+    }
+    metricas.carga(bytes, almacen.size(), inicio);
+    compactarSiHayDiario();
+  }
+
+  /**
+   *
+   * Cambia el número de incrementos a partir del cual {@link #saveIncremental(String)} vuelve a
+   * escribir la base completa. Con cadenas más cortas cargar es más rápido y guardar algo más caro.
+   *
+   * @param maxIncrementos Número máximo de incrementos, al menos 1
+   * @throws IllegalArgumentException Se lanza si el número es menor que 1
+   */
+  public void setMaxIncrementos(int maxIncrementos) {
+    if (maxIncrementos < 1) {
+      throw new IllegalArgumentException("Tiene que haber al menos un incremento.");
+    }
+    this.maxIncrementos = maxIncrementos;
+  }
+
+  /**
+   *
+   * @param base Ruta de la base de una cadena de snapshots incrementales
+   * @param secuencia Posición del incremento en la cadena
+   * @return Devuelve la ruta del incremento
+   */
+  private static Path rutaIncremento(Path base, int secuencia) {
+    return base.resolveSibling(base.getFileName() + ".delta." + secuencia);
+  }
+
+  /**
+   *
+   * Restaura el almacén tras un reinicio o una caída y activa el diario de movimientos. Carga el
+   * último snapshot, si existe, y le aplica los movimientos del diario posteriores a él. A partir
+   * de ese momento cada alta, baja, modificación y movimiento de unidades hecho a través del
+   * almacén se registra en el diario, y cuando el diario crece se compacta en un snapshot nuevo en
+   * segundo plano.
+   *
+   * @param snapshot Ruta del snapshot binario
+   * @param diario Ruta del diario de movimientos
+   * @param loteFsync Número de movimientos que se sincronizan con el disco de una vez, 1 para
+   *        sincronizar cada movimiento
+   * @param intervaloMs Milisegundos máximos que un movimiento espera a sincronizarse
+   * @throws IOException Se lanza si hay un error al leer el snapshot o el diario
+   */
+  public void recuperar(String snapshot, String diario, int loteFsync, long intervaloMs)
+      throws IOException {
+    if (this.diario != null) {
+      throw new IllegalStateException("El diario ya está activado.");
+    }
+    Path rutaSnap = Path.of(snapshot);
+    Path rutaDiario = Path.of(diario);
+    Path rutaAnterior = Path.of(diario + ".old");
+
+    long lsn = 0;
+    if (Files.exists(rutaSnap)) {
+      SnapshotBinario leido = SnapshotBinario.leer(rutaSnap);
+      sustituir(leido.getArticulos(), leido.getUltimoCodigo());
+      lsn = leido.getLsn();
+    } else {
+      sustituir(new ArrayList<>(), 0);
+    }
+
+    DiarioMovimientos.Receptor receptor = new Reproductor();
+    lsn = DiarioMovimientos.reproducir(rutaAnterior, lsn, receptor);
+    lsn = DiarioMovimientos.reproducir(rutaDiario, lsn, receptor);
+    if (Files.exists(rutaAnterior)) {
+      // una compactación quedó a medias, se termina antes de seguir
+      SnapshotBinario.escribir(rutaSnap, almacen, lsn, generador.getUltimo());
+      Files.delete(rutaAnterior);
+    }
+
+    this.diario = new DiarioMovimientos(rutaDiario, lsn, loteFsync, intervaloMs);
+    this.rutaSnapshot = rutaSnap;
+    this.rutaDiarioAnterior = rutaAnterior;
+    this.compactador = Executors.newSingleThreadExecutor(tarea -> {
+      Thread hilo = new Thread(tarea, "compactacion-almacen");
+      hilo.setDaemon(true);
+      return hilo;
+    });
+  }
+
+  /**
+   *
+   * Compacta el diario: guarda el estado actual en un snapshot nuevo y descarta los movimientos
+   * que ya incluye. El estado se fija con una {@link InstantaneaAlmacen} en el hilo que llama, sin
+   * copiar los artículos, y el snapshot se escribe en segundo plano mientras el almacén sigue
+   * cambiando. Mientras se fija el estado y se rota el diario los movimientos de unidades
+   * esperan, para que cada uno quede en el snapshot o en el diario nuevo.
+   *
+   * @return Devuelve un futuro que se completa cuando el snapshot está en disco
+   */
+  public CompletableFuture<Void> compactar() {
+    if (diario == null) {
+      throw new IllegalStateException("El diario no está activado.");
+    }
+    InstantaneaAlmacen estado;
+    long lsn;
+    // también impide que dos hilos que han llenado el diario compacten a la vez
+    cerrojoLista.lock();
+    try {
+      if (compactacion != null) {
+        compactacion.exceptionally(e -> null).join();
+      }
+      for (ReentrantReadWriteLock cerrojo : cerrojosUnidades) {
+        cerrojo.writeLock().lock();
+      }
+      try {
+        estado = instantanea();
+        try {
+          lsn = diario.rotar(rutaDiarioAnterior);
+        } catch (IOException e) {
+          estado.close();
+          return CompletableFuture.failedFuture(e);
+        }
+      } finally {
+        for (ReentrantReadWriteLock cerrojo : cerrojosUnidades) {
+          cerrojo.writeLock().unlock();
+        }
+      }
+      Path snapshot = rutaSnapshot;
+      Path anterior = rutaDiarioAnterior;
+      compactacion = CompletableFuture.runAsync(() -> {
+        try (estado) {
+          // el LSN evita que una recuperación tras una caída antes de borrar el diario anterior
+          // vuelva a aplicar movimientos que el snapshot ya incluye
+          estado.saveSnapshot(snapshot, lsn, 0);
+          Files.delete(anterior);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }, compactador);
+      return compactacion;
+    } finally {
+      cerrojoLista.unlock();
+    }
+  }
+
+  /**
+   *
+   * Cambia el número de movimientos del diario a partir del cual se compacta automáticamente
+   *
+   * @param umbralCompactacion Número de movimientos
+   */
+  public void setUmbralCompactacion(long umbralCompactacion) {
+    this.umbralCompactacion = umbralCompactacion;
+  }
+
+  /**
+   *
+   * Espera a que termine la compactación en curso, sincroniza y cierra el diario. Los movimientos
+   * posteriores dejan de registrarse.
+   *
+   * @throws IOException Se lanza si hay un error al sincronizar el diario
+   */
+  public void cerrarDiario() throws IOException {
+    if (diario == null) {
+      return;
+    }
+    if (compactacion != null) {
+      compactacion.exceptionally(e -> null).join();
+    }
+    compactador.shutdown();
+    try {
+      diario.close();
+    } finally {
+      diario = null;
+      compactador = null;
+      compactacion = null;
+    }
+  }
+
+  /**
+   *
+   * Registra un movimiento en el diario si está activado y lanza la compactación si el diario ha
+   * crecido demasiado
+   *
+   * @param registro Escritura del movimiento en el diario
+   */
+  private void registrar(Registro registro) {
+    escribirEnDiario(registro);
+    compactarSiHaCrecido();
+  }
+
+  /**
+   *
+   * Registra un movimiento en el diario si está activado, sin lanzar la compactación. Se usa con
+   * cerrojos de unidades tomados, ya que la compactación toma todos para crear la vista.
+   *
+   * @param registro Escritura del movimiento en el diario
+   */
+  private void escribirEnDiario(Registro registro) {
+    if (diario == null) {
+      return;
+    }
+    try {
+      registro.en(diario);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error al escribir en el diario: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Lanza la compactación si el diario está activado y ha crecido demasiado
+   */
+  private void compactarSiHaCrecido() {
+    if (diario != null && diario.getRegistros() >= umbralCompactacion
+        && (compactacion == null || compactacion.isDone())) {
+      compactar();
+    }
+  }
+
+  /**
+   *
+   * Compacta el diario si está activado y espera a que el snapshot esté en disco. Se usa cuando se
+   * sustituye todo el contenido del almacén, que no se registra en el diario: hasta que el snapshot
+   * nuevo está escrito, una recuperación partiría del anterior y le aplicaría los movimientos del
+   * contenido nuevo, así que no se vuelve hasta entonces.
+   *
+   * @throws IOException Se lanza si no se puede escribir el snapshot
+   */
+  private void compactarSiHayDiario() throws IOException {
+    if (diario == null) {
+      return;
+    }
+    try {
+      compactar().join();
+    } catch (CompletionException e) {
+      Throwable causa = e.getCause() instanceof UncheckedIOException
+          ? e.getCause().getCause() : e.getCause();
+      if (causa instanceof IOException) {
+        throw (IOException) causa;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Escritura del contenido de un archivo
+   */
+  interface Escritura {
+
+    /**
+     *
+     * Escribe el contenido
+     *
+     * @param salida Flujo del archivo, que se cierra después
+     * @throws IOException Se lanza si hay un error en la escritura
+     */
+    void en(OutputStream salida) throws IOException;
+  }
+
+  /**
+   * Escritura de un movimiento en el diario
+   */
+  private interface Registro {
+
+    /**
+     *
+     * Escribe el movimiento
+     *
+     * @param diario Diario en el que se escribe
+     * @throws IOException Se lanza si hay un error en la escritura
+     */
+    void en(DiarioMovimientos diario) throws IOException;
+  }
+
+  /**
+   * Reparte los avisos de altas, bajas y cambios entre los observadores del almacén
+   */
+  private class Difusor implements ObservadorArticulos {
+
+    @Override
+    public void alta(Articulo articulo) {
+      for (ObservadorArticulos observador : observadores) {
+        observador.alta(articulo);
+      }
+    }
+
+    @Override
+    public void baja(Articulo articulo) {
+      for (InstantaneaAlmacen instantanea : instantaneas) {
+        instantanea.preservar(articulo);
+      }
+      for (ObservadorArticulos observador : observadores) {
+        observador.baja(articulo);
+      }
+    }
+
+    @Override
+    public void cambio(Articulo articulo) {
+      for (ObservadorArticulos observador : observadores) {
+        observador.cambio(articulo);
+      }
+    }
+
+    @Override
+    public void antesDeCambio(Articulo articulo) {
+      for (InstantaneaAlmacen instantanea : instantaneas) {
+        instantanea.preservar(articulo);
+      }
+    }
+
+    @Override
+    public void reconstruir(Collection<Articulo> articulos) {
+      for (ObservadorArticulos observador : observadores) {
+        observador.reconstruir(articulos);
+      }
+    }
+  }
+
+  /**
+   * Aplica al almacén los movimientos leídos del diario durante la recuperación
+   */
+  private class Reproductor implements DiarioMovimientos.Receptor {
+
+    @Override
+    public void alta(Articulo articulo) {
+      generador.registrar(articulo.getCodigo());
+      if (!indice.containsKey(articulo.getCodigo())) {
+        indexar(articulo);
+      }
+    }
+
+    @Override
+    public void baja(int codigo) {
+      try {
+        delete(codigo);
+      } catch (CodigoNotFound e) {
+        // ya no estaba en el snapshot
+      }
+    }
+
+    @Override
+    public void modificacion(Articulo estado) {
+      try {
+        modificarArticulo(estado.getCodigo(), estado.getNombre(), estado.getMarca(),
+            estado.getPrecioDeCompra(), estado.getPrecioDeVenta(), estado.getNumeroDeUnidades(),
+            estado.getStockDeSeguridad(), estado.getStockMaximo());
+      } catch (AlmacenNombreMarcaException | CodigoNotFound
+          | ArticuloIllegalErrorArgumentException e) {
+        System.err.println("ERROR: Al reproducir el diario: " + e.getMessage());
+      }
+    }
+
+    @Override
+    public void unidades(int codigo, int unidades) {
+      Articulo articulo = indice.get(codigo);
+      if (articulo != null) {
+        if (unidades >= 0) {
+          articulo.tryAddUnidades(unidades);
+        } else {
+          articulo.tryEliminarUnidades(-unidades);
+        }
+      }
+    }
+  }
+
+  /**
+   *
+   * Crea un índice ordenado sobre un campo de los artículos para poder consultarlo por rangos y
+   * obtener los mayores sin recorrer el almacén. El índice se mantiene al día con cada cambio de
+   * los artículos, también los hechos directamente sobre un {@link Articulo} del almacén. Si ya
+   * existe no hace nada.
+   *
+   * @param campo Campo por el que se ordena
+   */
+  public void crearIndiceOrdenado(CampoOrdenable campo) {
+    if (!indicesOrdenados.containsKey(campo)) {
+      IndiceOrdenado indiceOrdenado = new IndiceOrdenado(campo);
+      indiceOrdenado.reconstruir(almacen);
+      indicesOrdenados.put(campo, indiceOrdenado);
+      observadores.add(indiceOrdenado);
+    }
+  }
+
+  /**
+   *
+   * Elimina un índice ordenado, que deja de mantenerse
+   *
+   * @param campo Campo del índice
+   */
+  public void eliminarIndiceOrdenado(CampoOrdenable campo) {
+    observadores.remove(indicesOrdenados.remove(campo));
+  }
+
+  /**
+   *
+   * Recorre los artículos cuyo campo tiene un valor entre los límites, ambos incluidos, de menor a
+   * mayor. Los artículos se leen del índice a medida que se avanza, sin copiarlos.
+   *
+   * @param campo Campo indexado con {@link #crearIndiceOrdenado(CampoOrdenable)}
+   * @param desde Límite inferior
+   * @param hasta Límite superior
+   * @return Devuelve un iterador que deja de ser válido si el almacén cambia mientras se usa
+   */
+  public Iterator<Articulo> rango(CampoOrdenable campo, double desde, double hasta) {
+    return indiceOrdenado(campo).rango(desde, hasta);
+  }
+
+  /**
+   *
+   * Recorre los n artículos con mayor valor en el campo, de mayor a menor. Los artículos se leen
+   * del índice a medida que se avanza, sin copiarlos.
+   *
+   * @param campo Campo indexado con {@link #crearIndiceOrdenado(CampoOrdenable)}
+   * @param n Número máximo de artículos
+   * @return Devuelve un iterador que deja de ser válido si el almacén cambia mientras se usa
+   */
+  public Iterator<Articulo> topN(CampoOrdenable campo, int n) {
+    return indiceOrdenado(campo).mayores(n);
+  }
+
+  /**
+   *
+   * @param campo Campo del índice
+   * @return Devuelve el índice ordenado del campo
+   */
+  private IndiceOrdenado indiceOrdenado(CampoOrdenable campo) {
+    IndiceOrdenado indiceOrdenado = indicesOrdenados.get(campo);
+    if (indiceOrdenado == null) {
+      throw new IllegalStateException("No hay un índice ordenado sobre " + campo + ".");
+    }
+    return indiceOrdenado;
+  }
+
+  /**
+   *
+   * Crea el índice que permite buscar artículos por palabras de su nombre y su marca. Se mantiene
+   * al día con las altas, bajas y modificaciones. Si ya existe no hace nada.
+   */
+  public void crearIndiceBusqueda() {
+    if (busqueda == null) {
+      busqueda = new IndiceBusqueda();
+      busqueda.reconstruir(almacen);
+      observadores.add(busqueda);
+    }
+  }
+
+  /**
+   *
+   * Busca artículos mientras se escribe: cada palabra del texto tiene que ser el comienzo de
+   * alguna palabra del nombre o la marca. No distingue mayúsculas ni acentos, así que "cam"
+   * encuentra "Camión".
+   *
+   * @param texto Texto escrito
+   * @param limite Número máximo de artículos devueltos
+   * @return Devuelve los artículos encontrados, sin un orden concreto
+   */
+  public List<Articulo> buscarPorPrefijo(String texto, int limite) {
+    return indiceBusqueda().buscarPorPrefijo(texto, limite);
+  }
+
+  /**
+   *
+   * Busca artículos admitiendo errores de escritura: cada palabra del texto tiene que parecerse a
+   * alguna palabra del nombre o la marca, con un error como máximo en las palabras de 3 a 5 letras
+   * y dos en las más largas. No distingue mayúsculas ni acentos.
+   *
+   * <p>
+   * Es bastante más lenta que {@link #buscarPorPrefijo(String, int)}: tarda unos milisegundos con
+   * un vocabulario de palabras normales y puede llegar a cientos de milisegundos cuando el
+   * catálogo tiene cientos de miles de palabras distintas.
+   * </p>
+   *
+   * @param texto Texto escrito
+   * @param limite Número máximo de artículos devueltos
+   * @return Devuelve los artículos encontrados, primero los que tienen menos errores
+   */
+  public List<Articulo> buscarAproximado(String texto, int limite) {
+    return indiceBusqueda().buscarAproximado(texto, limite);
+  }
+
+  /**
+   *
+   * @return Devuelve el índice de búsqueda
+   */
+  private IndiceBusqueda indiceBusqueda() {
+    if (busqueda == null) {
+      throw new IllegalStateException("No se ha creado el índice de búsqueda.");
+    }
+    return busqueda;
+  }
+
+  /**
+   *
+   * Devuelve los artículos que tienen menos unidades que su stock de seguridad, para preparar los
+   * pedidos de reposición. El conjunto se mantiene al día con cada movimiento, así que el coste es
+   * proporcional al número de artículos bajo stock y no al tamaño del almacén.
+   *
+   * @return Devuelve una copia de los artículos bajo stock, sin un orden concreto
+   */
+  public List<Articulo> articulosBajoStock() {
+    return bajoStock.getArticulos();
+  }
+
+  /**
+   *
+   * Registra un oyente que recibe un aviso cada vez que un artículo queda por debajo de su stock de
+   * seguridad o lo recupera. Las cargas de archivos no generan avisos.
+   *
+   * @param listener Oyente a registrar
+   */
+  public void addAlertaStockListener(AlertaStockListener listener) {
+    bajoStock.addOyente(listener);
+  }
+
+  /**
+   *
+   * Elimina un oyente registrado con {@link #addAlertaStockListener(AlertaStockListener)}
+   *
+   * @param listener Oyente a eliminar
+   * @return Devuelve verdadero si el oyente estaba registrado
+   */
+  public boolean removeAlertaStockListener(AlertaStockListener listener) {
+    return bajoStock.removeOyente(listener);
+  }
+
+  /**
+   *
+   * Devuelve las unidades y el valor del stock de todo el almacén. Los totales se mantienen al día
+   * con cada movimiento, así que la consulta cuesta O(1) y no bloquea el almacén.
+   *
+   * @return Devuelve los totales del almacén en un mismo instante
+   */
+  public Totales getTotales() {
+    return totales.getTotales();
+  }
+
+  /**
+   *
+   * Devuelve las unidades y el valor del stock de una marca en O(1)
+   *
+   * @param marca Marca
+   * @return Devuelve los totales de la marca, a 0 si no tiene artículos
+   */
+  public Totales getTotales(String marca) {
+    return totales.getTotales(marca);
+  }
+
+  /**
+   *
+   * Devuelve las unidades y el valor del stock de cada marca. Todos los totales son del mismo
+   * instante y su coste es proporcional al número de marcas, no de artículos.
+   *
+   * @return Devuelve los totales de cada marca con artículos, ordenados por marca
+   */
+  public Map<String, Totales> getTotalesPorMarca() {
+    return totales.getPorMarca();
+  }
+
+  /**
+   *
+   * Crea una vista de solo lectura del almacén tal como está ahora. Crearla cuesta lo mismo que
+   * copiar las referencias a los artículos, y después se puede recorrer, exportar o analizar desde
+   * otro hilo mientras se siguen moviendo unidades, sin bloquear ni ver cambios posteriores. Se
+   * puede crear desde cualquier hilo, y hay que cerrarla al terminar.
+   *
+   * @return Devuelve la vista del almacén
+   */
+  public InstantaneaAlmacen instantanea() {
+    cerrojoLista.lock();
+    try {
+      // espera a que terminen los lotes en curso para no ver ninguno a medias
+      for (ReentrantReadWriteLock cerrojo : cerrojosUnidades) {
+        cerrojo.readLock().lock();
+      }
+      try {
+        return new InstantaneaAlmacen(almacen, generador.getUltimo(), instantaneas);
+      } finally {
+        for (ReentrantReadWriteLock cerrojo : cerrojosUnidades) {
+          cerrojo.readLock().unlock();
+        }
+      }
+    } finally {
+      cerrojoLista.unlock();
+    }
+  }
+
+  /**
+   *
+   * Devuelve las métricas de las operaciones de este almacén: número de llamadas, latencias,
+   * fallos y velocidad de guardado y carga. Se pueden publicar por JMX con
+   * {@link MetricasAlmacen#registrarMBean(String)} o enviar periódicamente con
+   * {@link MetricasAlmacen#exportarCada(ExportadorMetricas, long, java.util.concurrent.TimeUnit)}.
+   *
+   * @return Devuelve las métricas del almacén
+   */
+  public MetricasAlmacen getMetricas() {
+    return metricas;
+  }
+
+  /**
+   *
+   * Calcula la valoración del inventario, los totales por marca y la distribución de los márgenes
+   * agregando en paralelo sobre una vista del almacén tomada al llamar, ver
+   * {@link #instantanea()}. Los cambios que se hagan mientras se calcula no entran en el resultado.
+   *
+   * @return Devuelve el análisis del inventario
+   */
+  public AnalisisInventario analizar() {
+    try (InstantaneaAlmacen vista = instantanea()) {
+      return vista.analizar();
     }
   }
 
@@ -0,0 +1,575 @@
+package almacen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ *
+ * Variante de {@link Almacen} que guarda los artículos por columnas en lugar de un objeto por
+ * artículo.
+ *
+ * <p>
+ * Cada campo de los artículos es un array de tipo primitivo y un artículo es la misma posición en
+ * todos los arrays. Las marcas se guardan una sola vez en un diccionario y cada artículo solo
+ * guarda la posición de la suya. Así un catálogo grande ocupa poco más que sus datos y los
+ * recorridos para calcular totales leen memoria contigua, sin saltar de objeto en objeto.
+ * </p>
+ *
+ * <p>
+ * {@link #get(int)} devuelve una copia del artículo en forma de {@link Articulo}: cambiarla no
+ * cambia el almacén, para eso están los métodos del almacén. Al igual que {@link Almacen}, esta
+ * clase no es segura para usarse desde varios hilos.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public class AlmacenColumnar {
+
+  /**
+   * Capacidad inicial de las columnas
+   */
+  private static final int CAPACIDAD_INICIAL = 16;
+
+  /**
+   * Código de cada artículo
+   */
+  private int[] codigos;
+  /**
+   * Nombre de cada artículo
+   */
+  private String[] nombres;
+  /**
+   * Posición de la marca de cada artículo en el diccionario de marcas
+   */
+  private int[] marcas;
+  /**
+   * Precio de compra de cada artículo
+   */
+  private double[] preciosDeCompra;
+  /**
+   * Precio de venta de cada artículo
+   */
+  private double[] preciosDeVenta;
+  /**
+   * Número de unidades de cada artículo
+   */
+  private int[] unidades;
+  /**
+   * Stock de seguridad de cada artículo
+   */
+  private int[] stocksDeSeguridad;
+  /**
+   * Stock máximo de cada artículo
+   */
+  private int[] stocksMaximos;
+  /**
+   * Número de artículos, solo son válidas las primeras size posiciones de las columnas
+   */
+  private int size;
+
+  /**
+   * Da los códigos de los artículos nuevos
+   */
+  private final GeneradorCodigos generador = new GeneradorCodigos();
+
+  /**
+   * Posición de cada artículo en las columnas, por código
+   */
+  private final MapaIntInt filas = new MapaIntInt();
+  /**
+   * Diccionario de marcas: marca de cada posición
+   */
+  private final List<String> diccionarioMarcas = new ArrayList<>();
+  /**
+   * Diccionario de marcas: posición de cada marca
+   */
+  private final Map<String, Integer> posicionesMarcas = new HashMap<>();
+  /**
+   * Índice por nombre y marca para detectar repetidos: tabla hash de direccionamiento abierto que
+   * guarda la posición de cada artículo más uno, 0 en las entradas libres. No guarda claves, se
+   * comparan directamente con las columnas, así que solo ocupa un int por entrada.
+   */
+  private int[] nombreMarca = new int[CAPACIDAD_INICIAL * 2];
+
+  /**
+   * Crea un almacén vacío
+   */
+  public AlmacenColumnar() {
+    this(CAPACIDAD_INICIAL);
+  }
+
+  /**
+   *
+   * Crea un almacén vacío con sitio para el número de artículos pasado sin redimensionar
+   *
+   * @param capacidad Número de artículos que se espera guardar
+   */
+  public AlmacenColumnar(int capacidad) {
+    capacidad = Math.max(capacidad, CAPACIDAD_INICIAL);
+    codigos = new int[capacidad];
+    nombres = new String[capacidad];
+    marcas = new int[capacidad];
+    preciosDeCompra = new double[capacidad];
+    preciosDeVenta = new double[capacidad];
+    unidades = new int[capacidad];
+    stocksDeSeguridad = new int[capacidad];
+    stocksMaximos = new int[capacidad];
+  }
+
+  /**
+   *
+   * Añade artículos al almacén
+   *
+   * @param nombre Nombre del artículo que se va a añadir
+   * @param marca Marca del artículo que se va a añadir
+   * @param precioDeCompra Precio de compra del artículo que se va a añadir
+   * @param precioDeVenta Precio de venta del artículo que se va a añadir
+   * @param numeroDeUnidades Número de unidades del artículo que se va a añadir
+   * @param stockDeSeguridad Cantidad máxima que tiene que haber del artículo
+   * @param stockMaximo Cantidad máxima que puede haber del artículo
+   * @return Devuelve el código asignado al artículo
+   * @throws AlmacenNombreMarcaException Se lanza si ya existe un artículo con ese nombre y marca
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si algún parámetro no es válido
+   */
+  int add(String nombre, String marca, double precioDeCompra, double precioDeVenta,
+      int numeroDeUnidades, int stockDeSeguridad, int stockMaximo)
+      throws AlmacenNombreMarcaException, ArticuloIllegalErrorArgumentException {
+
+    if (buscar(nombre, marca) != MapaIntInt.NO_ENCONTRADO) {
+      throw new AlmacenNombreMarcaException("El nombre y la marca no pueden ser iguales.");
+    }
+    // el artículo comprueba los datos con las mismas reglas que en Almacen
+    Articulo articulo = new Articulo(generador.siguiente(), nombre, marca, precioDeCompra,
+        precioDeVenta, numeroDeUnidades, stockDeSeguridad, stockMaximo);
+    if (size == codigos.length) {
+      crecer();
+    }
+    int fila = size++;
+    codigos[fila] = articulo.getCodigo();
+    escribir(fila, articulo);
+    filas.put(articulo.getCodigo(), fila);
+    indexarNombreMarca(fila);
+    return articulo.getCodigo();
+  }
+
+  /**
+   *
+   * Borra un artículo que existe en el almacén con el código pasado. Su posición la ocupa el
+   * último artículo, así las columnas no tienen huecos.
+   *
+   * @param codigo Codigo del artículo a borrar
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public void delete(int codigo) throws CodigoNotFound {
+    int fila = buscar(codigo);
+    filas.remove(codigo);
+    desindexarNombreMarca(fila);
+    int ultima = --size;
+    if (fila != ultima) {
+      nombreMarca[entradaNombreMarca(ultima)] = fila + 1;
+      codigos[fila] = codigos[ultima];
+      nombres[fila] = nombres[ultima];
+      marcas[fila] = marcas[ultima];
+      preciosDeCompra[fila] = preciosDeCompra[ultima];
+      preciosDeVenta[fila] = preciosDeVenta[ultima];
+      unidades[fila] = unidades[ultima];
+      stocksDeSeguridad[fila] = stocksDeSeguridad[ultima];
+      stocksMaximos[fila] = stocksMaximos[ultima];
+      filas.put(codigos[fila], fila);
+    }
+    nombres[ultima] = null;
+  }
+
+  /**
+   *
+   * Incrementa las unidades de un artículo que exista en el almacén.
+   *
+   * @param codigo Código del artículo a incrementar
+   * @param unidades Numero de unidades a incrementar
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   * @throws ArticuloStockException Se lanza si se supera el stock máximo del artículo
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si las unidades son negativas
+   */
+  public void addUnidades(int codigo, int unidades)
+      throws CodigoNotFound, ArticuloIllegalErrorArgumentException {
+    lanzaExcepcionSiUnidadesNegativas(unidades);
+    int fila = buscar(codigo);
+    long nuevo = (long) this.unidades[fila] + unidades;
+    int maximo = stocksMaximos[fila];
+    if (nuevo > (maximo != 0 ? maximo : Integer.MAX_VALUE)) {
+      throw new ArticuloStockException("No se pueden añadir " + unidades
+          + " unidades sin superar el stock máximo de " + maximo + ".");
+    }
+    this.unidades[fila] = (int) nuevo;
+  }
+
+  /**
+   *
+   * Decrementa las unidades de un artículo que exista en el almacén.
+   *
+   * @param codigo Código del artículo a decrementar
+   * @param unidades Cantidad de unidades a decrementar
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   * @throws ArticuloStockException Se lanza si no hay unidades suficientes
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si las unidades son negativas
+   */
+  public void removeUnidades(int codigo, int unidades)
+      throws CodigoNotFound, ArticuloStockException, ArticuloIllegalErrorArgumentException {
+    lanzaExcepcionSiUnidadesNegativas(unidades);
+    int fila = buscar(codigo);
+    if (this.unidades[fila] < unidades) {
+      throw new ArticuloStockException(
+          "No hay unidades suficientes para decrementar " + unidades + " unidades.");
+    }
+    this.unidades[fila] -= unidades;
+  }
+
+  /**
+   *
+   * Modifica cualquier parámetro de un artículo existente en el almacén. Si algún dato no es
+   * válido el artículo no cambia.
+   *
+   * @param codigo Código del artículo a modificar
+   * @param nombre Nombre nuevo del artículo
+   * @param marca Marca nueva del artículo
+   * @param precioDeCompra Precio de compra nuevo del artículo
+   * @param precioDeVenta Precio de venta nuevo del artículo
+   * @param numeroDeUnidades Número de unidades nuevo del artículo
+   * @param stockDeSeguridad Cantidad mínima que tiene que haber del artículo
+   * @param stockMaximo Cantidad máxima que puede haber del artículo
+   * @throws AlmacenNombreMarcaException Se lanza si otro artículo ya tiene ese nombre y marca
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si algún parámetro no es válido
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public void modificarArticulo(int codigo, String nombre, String marca, double precioDeCompra,
+      double precioDeVenta, int numeroDeUnidades, int stockDeSeguridad, int stockMaximo)
+      throws AlmacenNombreMarcaException, CodigoNotFound, ArticuloIllegalErrorArgumentException {
+    int fila = buscar(codigo);
+    int existente = buscar(nombre, marca);
+    if (existente != MapaIntInt.NO_ENCONTRADO && existente != fila) {
+      throw new AlmacenNombreMarcaException("El artículo ya existe en el almacén");
+    }
+    Articulo articulo = new Articulo(codigo, nombre, marca, precioDeCompra, precioDeVenta,
+        numeroDeUnidades, stockDeSeguridad, stockMaximo);
+    desindexarNombreMarca(fila);
+    escribir(fila, articulo);
+    indexarNombreMarca(fila);
+  }
+
+  /**
+   *
+   * Devuelve una copia de un artículo pasándole el código si no existe da error
+   *
+   * @param codigo Código del artículo a mostrar
+   * @return Devuelve una copia del artículo
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public Articulo get(int codigo) throws CodigoNotFound {
+    return articulo(buscar(codigo));
+  }
+
+  /**
+   *
+   * Busca un artículo por su nombre y marca
+   *
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @return Devuelve una copia del artículo o un Optional vacío si no existe
+   */
+  public Optional<Articulo> findByNombreMarca(String nombre, String marca) {
+    int fila = buscar(nombre, marca);
+    return fila == MapaIntInt.NO_ENCONTRADO ? Optional.empty() : Optional.of(articulo(fila));
+  }
+
+  /**
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve las unidades del artículo sin crear ningún objeto
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public int getNumeroDeUnidades(int codigo) throws CodigoNotFound {
+    return unidades[buscar(codigo)];
+  }
+
+  /**
+   *
+   * @return Devuelve el número de artículos del almacén
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   *
+   * @return Devuelve el número de marcas distintas que se han guardado en el diccionario
+   */
+  public int getNumeroDeMarcas() {
+    return diccionarioMarcas.size();
+  }
+
+  /**
+   *
+   * Calcula el valor del inventario a precio de compra recorriendo solo las columnas de unidades
+   * y precios
+   *
+   * @return Devuelve la suma de unidades por precio de compra de todos los artículos
+   */
+  public double valorInventario() {
+    double total = 0;
+    for (int i = 0; i < size; i++) {
+      total += unidades[i] * preciosDeCompra[i];
+    }
+    return total;
+  }
+
+  /**
+   *
+   * Calcula el valor del inventario a precio de venta
+   *
+   * @return Devuelve la suma de unidades por precio de venta de todos los artículos
+   */
+  public double valorVenta() {
+    double total = 0;
+    for (int i = 0; i < size; i++) {
+      total += unidades[i] * preciosDeVenta[i];
+    }
+    return total;
+  }
+
+  /**
+   *
+   * Calcula el beneficio que se obtendría vendiendo todas las unidades
+   *
+   * @return Devuelve la suma de unidades por margen (venta menos compra) de todos los artículos
+   */
+  public double margenTotal() {
+    double total = 0;
+    for (int i = 0; i < size; i++) {
+      total += unidades[i] * (preciosDeVenta[i] - preciosDeCompra[i]);
+    }
+    return total;
+  }
+
+  /**
+   *
+   * Busca la posición de un artículo por su código
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve la posición del artículo en las columnas
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  private int buscar(int codigo) throws CodigoNotFound {
+    int fila = filas.get(codigo);
+    if (fila == MapaIntInt.NO_ENCONTRADO) {
+      throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
+    }
+    return fila;
+  }
+
+  /**
+   *
+   * Busca la posición de un artículo por su nombre y marca
+   *
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @return Devuelve la posición del artículo o {@link MapaIntInt#NO_ENCONTRADO} si no existe
+   */
+  private int buscar(String nombre, String marca) {
+    Integer posicionMarca = marca == null ? null : posicionesMarcas.get(marca);
+    if (nombre == null || posicionMarca == null) {
+      return MapaIntInt.NO_ENCONTRADO;
+    }
+    int mascara = nombreMarca.length - 1;
+    for (int i = hashNombreMarca(nombre, posicionMarca) & mascara; nombreMarca[i] != 0;
+        i = (i + 1) & mascara) {
+      int fila = nombreMarca[i] - 1;
+      if (marcas[fila] == posicionMarca && nombres[fila].equals(nombre)) {
+        return fila;
+      }
+    }
+    return MapaIntInt.NO_ENCONTRADO;
+  }
+
+  /**
+   *
+   * Añade una posición al índice por nombre y marca, duplicando la tabla si está llena
+   *
+   * @param fila Posición del artículo
+   */
+  private void indexarNombreMarca(int fila) {
+    if (size * 4 > nombreMarca.length * 3) {
+      nombreMarca = new int[nombreMarca.length * 2];
+      for (int i = 0; i < size; i++) {
+        if (i != fila) {
+          colocarNombreMarca(i);
+        }
+      }
+    }
+    colocarNombreMarca(fila);
+  }
+
+  /**
+   *
+   * Guarda una posición en la primera entrada libre de la tabla
+   *
+   * @param fila Posición del artículo
+   */
+  private void colocarNombreMarca(int fila) {
+    int mascara = nombreMarca.length - 1;
+    int i = hashFila(fila) & mascara;
+    while (nombreMarca[i] != 0) {
+      i = (i + 1) & mascara;
+    }
+    nombreMarca[i] = fila + 1;
+  }
+
+  /**
+   *
+   * Quita una posición del índice por nombre y marca
+   *
+   * @param fila Posición del artículo, con el nombre y la marca con que se indexó
+   */
+  private void desindexarNombreMarca(int fila) {
+    int mascara = nombreMarca.length - 1;
+    int libre = entradaNombreMarca(fila);
+    // desplaza hacia atrás los elementos del grupo que ya no serían alcanzables
+    for (int j = (libre + 1) & mascara; nombreMarca[j] != 0; j = (j + 1) & mascara) {
+      int ideal = hashFila(nombreMarca[j] - 1) & mascara;
+      if (((j - ideal) & mascara) >= ((j - libre) & mascara)) {
+        nombreMarca[libre] = nombreMarca[j];
+        libre = j;
+      }
+    }
+    nombreMarca[libre] = 0;
+  }
+
+  /**
+   *
+   * @param fila Posición del artículo
+   * @return Devuelve la entrada de la tabla que guarda la posición
+   */
+  private int entradaNombreMarca(int fila) {
+    int mascara = nombreMarca.length - 1;
+    int i = hashFila(fila) & mascara;
+    while (nombreMarca[i] != fila + 1) {
+      i = (i + 1) & mascara;
+    }
+    return i;
+  }
+
+  /**
+   *
+   * @param fila Posición del artículo
+   * @return Devuelve el hash del nombre y la marca del artículo
+   */
+  private int hashFila(int fila) {
+    return hashNombreMarca(nombres[fila], marcas[fila]);
+  }
+
+  /**
+   *
+   * @param nombre Nombre del artículo
+   * @param posicionMarca Posición de la marca en el diccionario
+   * @return Devuelve el hash del nombre y la marca
+   */
+  private static int hashNombreMarca(String nombre, int posicionMarca) {
+    int h = (nombre.hashCode() * 31 + posicionMarca) * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   *
+   * Copia los datos de un artículo, menos el código, a una posición de las columnas
+   *
+   * @param fila Posición
+   * @param articulo Artículo ya validado
+   */
+  private void escribir(int fila, Articulo articulo) {
+    nombres[fila] = articulo.getNombre();
+    marcas[fila] = posicionMarca(articulo.getMarca());
+    preciosDeCompra[fila] = articulo.getPrecioDeCompra();
+    preciosDeVenta[fila] = articulo.getPrecioDeVenta();
+    unidades[fila] = articulo.getNumeroDeUnidades();
+    stocksDeSeguridad[fila] = articulo.getStockDeSeguridad();
+    stocksMaximos[fila] = articulo.getStockMaximo();
+  }
+
+  /**
+   *
+   * Crea un artículo con los datos de una posición de las columnas
+   *
+   * @param fila Posición
+   * @return Devuelve el artículo
+   */
+  private Articulo articulo(int fila) {
+    try {
+      return new Articulo(codigos[fila], nombres[fila], diccionarioMarcas.get(marcas[fila]),
+          preciosDeCompra[fila], preciosDeVenta[fila], unidades[fila], stocksDeSeguridad[fila],
+          stocksMaximos[fila]);
+    } catch (ArticuloIllegalErrorArgumentException e) {
+      // los datos se validaron al guardarlos
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   *
+   * Devuelve la posición de una marca en el diccionario, añadiéndola si no estaba
+   *
+   * @param marca Marca
+   * @return Devuelve la posición de la marca
+   */
+  private int posicionMarca(String marca) {
+    Integer posicion = posicionesMarcas.get(marca);
+    if (posicion == null) {
+      posicion = diccionarioMarcas.size();
+      diccionarioMarcas.add(marca);
+      posicionesMarcas.put(marca, posicion);
+    }
+    return posicion;
+  }
+
+  /**
+   * Duplica la capacidad de las columnas
+   */
+  private void crecer() {
+    int capacidad = codigos.length * 2;
+    codigos = Arrays.copyOf(codigos, capacidad);
+    nombres = Arrays.copyOf(nombres, capacidad);
+    marcas = Arrays.copyOf(marcas, capacidad);
+    preciosDeCompra = Arrays.copyOf(preciosDeCompra, capacidad);
+    preciosDeVenta = Arrays.copyOf(preciosDeVenta, capacidad);
+    unidades = Arrays.copyOf(unidades, capacidad);
+    stocksDeSeguridad = Arrays.copyOf(stocksDeSeguridad, capacidad);
+    stocksMaximos = Arrays.copyOf(stocksMaximos, capacidad);
+  }
+
+  /**
+   *
+   * Lanza excepción si las unidades de un movimiento son negativas
+   *
+   * @param unidades Unidades del movimiento
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si las unidades son menores de 0
+   */
+  private static void lanzaExcepcionSiUnidadesNegativas(int unidades)
+      throws ArticuloIllegalErrorArgumentException {
+    if (unidades < 0) {
+      throw new ArticuloIllegalErrorArgumentException("Las unidades no pueden ser menores a 0.");
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("AlmacenColumnar [almacen=[");
+    for (int i = 0; i < size; i++) {
+      sb.append(i == 0 ? "" : ", ").append(articulo(i));
+    }
+    return sb.append("]]").toString();
+  }
+
+}
@@ -0,0 +1,734 @@
+package almacen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Fachada que reparte los artículos entre varios {@link Almacen}, los fragmentos, por ejemplo uno
+ * por almacén físico.
+ *
+ * <p>
+ * Los códigos los da la fachada, así que son únicos entre todos los fragmentos. Al dar de alta un
+ * artículo se puede indicar su fragmento, o dejar que se elija por el código. Una tabla de rutas
+ * guarda el fragmento de cada código, y las operaciones sobre un artículo solo bloquean su
+ * fragmento, así que las de fragmentos distintos se ejecutan en paralelo. El nombre y la marca
+ * solo tienen que ser únicos dentro de cada fragmento: el mismo producto puede estar en varios.
+ * </p>
+ *
+ * <p>
+ * Las búsquedas y los totales se calculan en paralelo en todos los fragmentos y se juntan. Cada
+ * fragmento aporta un resultado coherente, aunque los fragmentos no se consultan en el mismo
+ * instante exacto. Se pueden añadir fragmentos y mover artículos entre ellos mientras se usa la
+ * fachada. Cada artículo se mueve por separado bloqueando solo sus dos fragmentos, y nunca a la
+ * vez que una búsqueda o un total, que no lo ven ni dos veces ni ninguna.
+ * </p>
+ *
+ * <p>
+ * Los fragmentos solo se deben usar a través de la fachada.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public class AlmacenFragmentado {
+
+  /**
+   * Fragmentos por su número
+   */
+  private final List<Fragmento> fragmentos = new CopyOnWriteArrayList<>();
+  /**
+   * Fragmento de cada código
+   */
+  private final MapaIntInt rutas = new MapaIntInt();
+  /**
+   * Protege la tabla de rutas
+   */
+  private final StampedLock cerrojoRutas = new StampedLock();
+  /**
+   * Las búsquedas y los totales lo cogen para leer, y los movimientos entre fragmentos para
+   * escribir
+   */
+  private final ReentrantReadWriteLock reparto = new ReentrantReadWriteLock();
+  /**
+   * Da los códigos de todos los fragmentos
+   */
+  private final GeneradorCodigos generador = new GeneradorCodigos();
+  /**
+   * Verdadero si los fragmentos tienen índice de búsqueda
+   */
+  private volatile boolean conIndiceBusqueda;
+
+  /**
+   *
+   * Crea una fachada con fragmentos vacíos
+   *
+   * @param numeroFragmentos Número de fragmentos, al menos 1
+   * @throws IllegalArgumentException Se lanza si el número de fragmentos es menor que 1
+   */
+  public AlmacenFragmentado(int numeroFragmentos) {
+    if (numeroFragmentos < 1) {
+      throw new IllegalArgumentException("Tiene que haber al menos un fragmento.");
+    }
+    for (int i = 0; i < numeroFragmentos; i++) {
+      fragmentos.add(new Fragmento());
+    }
+  }
+
+  /**
+   *
+   * @return Devuelve el número de fragmentos
+   */
+  public int getNumeroFragmentos() {
+    return fragmentos.size();
+  }
+
+  /**
+   *
+   * Añade un fragmento vacío. Las altas siguientes que no indican fragmento también pueden ir a
+   * él, y {@link #equilibrar()} le pasa artículos de los demás.
+   *
+   * @return Devuelve el número del fragmento nuevo
+   */
+  public int addFragmento() {
+    Fragmento fragmento = new Fragmento();
+    if (conIndiceBusqueda) {
+      fragmento.almacen.crearIndiceBusqueda();
+    }
+    reparto.writeLock().lock();
+    try {
+      fragmentos.add(fragmento);
+      return fragmentos.size() - 1;
+    } finally {
+      reparto.writeLock().unlock();
+    }
+  }
+
+  /**
+   *
+   * Da de alta un artículo en el fragmento que le corresponde por su código
+   *
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @param precioDeCompra Precio de compra del artículo
+   * @param precioDeVenta Precio de venta del artículo
+   * @param numeroDeUnidades Número de unidades del artículo
+   * @param stockDeSeguridad Cantidad mínima que tiene que haber del artículo
+   * @param stockMaximo Cantidad máxima que puede haber del artículo
+   * @return Devuelve el código del artículo
+   * @throws AlmacenNombreMarcaException Se lanza si el fragmento ya tiene el nombre y la marca
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si algún parámetro no es válido
+   */
+  public int add(String nombre, String marca, double precioDeCompra, double precioDeVenta,
+      int numeroDeUnidades, int stockDeSeguridad, int stockMaximo)
+      throws AlmacenNombreMarcaException, ArticuloIllegalErrorArgumentException {
+    int codigo = generador.siguiente();
+    return alta(fragmentoDe(codigo), new Articulo(codigo, nombre, marca, precioDeCompra,
+        precioDeVenta, numeroDeUnidades, stockDeSeguridad, stockMaximo));
+  }
+
+  /**
+   *
+   * Da de alta un artículo en un fragmento concreto, por ejemplo el de su almacén físico
+   *
+   * @param fragmento Número del fragmento
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @param precioDeCompra Precio de compra del artículo
+   * @param precioDeVenta Precio de venta del artículo
+   * @param numeroDeUnidades Número de unidades del artículo
+   * @param stockDeSeguridad Cantidad mínima que tiene que haber del artículo
+   * @param stockMaximo Cantidad máxima que puede haber del artículo
+   * @return Devuelve el código del artículo
+   * @throws AlmacenNombreMarcaException Se lanza si el fragmento ya tiene el nombre y la marca
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si algún parámetro no es válido
+   * @throws IndexOutOfBoundsException Se lanza si el fragmento no existe
+   */
+  public int add(int fragmento, String nombre, String marca, double precioDeCompra,
+      double precioDeVenta, int numeroDeUnidades, int stockDeSeguridad, int stockMaximo)
+      throws AlmacenNombreMarcaException, ArticuloIllegalErrorArgumentException {
+    Fragmento destino = fragmentos.get(fragmento);
+    return alta(destino, new Articulo(generador.siguiente(), nombre, marca, precioDeCompra,
+        precioDeVenta, numeroDeUnidades, stockDeSeguridad, stockMaximo));
+  }
+
+  /**
+   *
+   * Añade el artículo a un fragmento y a la tabla de rutas
+   *
+   * @param fragmento Fragmento del artículo
+   * @param articulo Artículo con su código
+   * @return Devuelve el código del artículo
+   * @throws AlmacenNombreMarcaException Se lanza si el fragmento ya tiene el nombre y la marca
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si el código ya existe
+   */
+  private int alta(Fragmento fragmento, Articulo articulo)
+      throws AlmacenNombreMarcaException, ArticuloIllegalErrorArgumentException {
+    fragmento.cerrojo.lock();
+    try {
+      fragmento.almacen.add(articulo);
+      enrutar(articulo.getCodigo(), fragmentos.indexOf(fragmento));
+    } finally {
+      fragmento.cerrojo.unlock();
+    }
+    return articulo.getCodigo();
+  }
+
+  /**
+   *
+   * Borra un artículo
+   *
+   * @param codigo Código del artículo
+   * @throws CodigoNotFound Se lanza si el código no corresponde a ningún artículo
+   */
+  public void delete(int codigo) throws CodigoNotFound {
+    Fragmento fragmento = bloquear(codigo);
+    try {
+      fragmento.almacen.delete(codigo);
+      long sello = cerrojoRutas.writeLock();
+      try {
+        rutas.remove(codigo);
+      } finally {
+        cerrojoRutas.unlockWrite(sello);
+      }
+    } finally {
+      fragmento.cerrojo.unlock();
+    }
+  }
+
+  /**
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el artículo
+   * @throws CodigoNotFound Se lanza si el código no corresponde a ningún artículo
+   */
+  public Articulo get(int codigo) throws CodigoNotFound {
+    Fragmento fragmento = bloquear(codigo);
+    try {
+      return fragmento.almacen.get(codigo);
+    } finally {
+      fragmento.cerrojo.unlock();
+    }
+  }
+
+  /**
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el artículo o un Optional vacío si no existe, sin lanzar excepciones
+   */
+  public Optional<Articulo> find(int codigo) {
+    Fragmento fragmento = bloquearSiExiste(codigo);
+    if (fragmento == null) {
+      return Optional.empty();
+    }
+    try {
+      return fragmento.almacen.find(codigo);
+    } finally {
+      fragmento.cerrojo.unlock();
+    }
+  }
+
+  /**
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el número del fragmento del artículo
+   * @throws CodigoNotFound Se lanza si el código no corresponde a ningún artículo
+   */
+  public int getFragmento(int codigo) throws CodigoNotFound {
+    int fragmento = ruta(codigo);
+    if (fragmento == MapaIntInt.NO_ENCONTRADO) {
+      throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
+    }
+    return fragmento;
+  }
+
+  /**
+   *
+   * Incrementa las unidades de un artículo
+   *
+   * @param codigo Código del artículo a incrementar
+   * @param unidades Numero de unidades a incrementar
+   * @throws CodigoNotFound Se lanza si el código no corresponde a ningún artículo
+   * @throws ArticuloStockException Se lanza si se supera el stock máximo del artículo
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si las unidades son negativas
+   */
+  public void addUnidades(int codigo, int unidades)
+      throws CodigoNotFound, ArticuloIllegalErrorArgumentException {
+    Fragmento fragmento = bloquear(codigo);
+    try {
+      fragmento.almacen.addUnidades(codigo, unidades);
+    } finally {
+      fragmento.cerrojo.unlock();
+    }
+  }
+
+  /**
+   *
+   * Decrementa las unidades de un artículo
+   *
+   * @param codigo Código del artículo a decrementar
+   * @param unidades Cantidad de unidades a decrementar
+   * @throws CodigoNotFound Se lanza si el código no corresponde a ningún artículo
+   * @throws ArticuloStockException Se lanza si no hay unidades suficientes
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si las unidades son negativas
+   */
+  public void removeUnidades(int codigo, int unidades)
+      throws CodigoNotFound, ArticuloStockException, ArticuloIllegalErrorArgumentException {
+    Fragmento fragmento = bloquear(codigo);
+    try {
+      fragmento.almacen.removeUnidades(codigo, unidades);
+    } finally {
+      fragmento.cerrojo.unlock();
+    }
+  }
+
+  /**
+   *
+   * Incrementa las unidades de un artículo sin lanzar excepciones, ver
+   * {@link Almacen#tryAddUnidades(int, int)}
+   *
+   * @param codigo Código del artículo a incrementar
+   * @param unidades Numero de unidades a incrementar
+   * @return Devuelve {@link ResultadoStock#OK} si se han añadido las unidades
+   */
+  public ResultadoStock tryAddUnidades(int codigo, int unidades) {
+    Fragmento fragmento = bloquearSiExiste(codigo);
+    if (fragmento == null) {
+      return ResultadoStock.CODIGO_NO_ENCONTRADO;
+    }
+    try {
+      return fragmento.almacen.tryAddUnidades(codigo, unidades);
+    } finally {
+      fragmento.cerrojo.unlock();
+    }
+  }
+
+  /**
+   *
+   * Decrementa las unidades de un artículo sin lanzar excepciones, ver
+   * {@link Almacen#tryRemoveUnidades(int, int)}
+   *
+   * @param codigo Código del artículo a decrementar
+   * @param unidades Cantidad de unidades a decrementar
+   * @return Devuelve {@link ResultadoStock#OK} si se han decrementado las unidades
+   */
+  public ResultadoStock tryRemoveUnidades(int codigo, int unidades) {
+    Fragmento fragmento = bloquearSiExiste(codigo);
+    if (fragmento == null) {
+      return ResultadoStock.CODIGO_NO_ENCONTRADO;
+    }
+    try {
+      return fragmento.almacen.tryRemoveUnidades(codigo, unidades);
+    } finally {
+      fragmento.cerrojo.unlock();
+    }
+  }
+
+  /**
+   *
+   * Busca un artículo por su nombre y marca en todos los fragmentos a la vez
+   *
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @return Devuelve el artículo de cada fragmento que lo tiene, ordenados por fragmento
+   */
+  public Map<Integer, Articulo> findByNombreMarca(String nombre, String marca) {
+    List<Optional<Articulo>> encontrados =
+        enTodos(fragmento -> fragmento.findByNombreMarca(nombre, marca));
+    Map<Integer, Articulo> porFragmento = new TreeMap<>();
+    for (int i = 0; i < encontrados.size(); i++) {
+      int numero = i;
+      encontrados.get(i).ifPresent(articulo -> porFragmento.put(numero, articulo));
+    }
+    return porFragmento;
+  }
+
+  /**
+   *
+   * Devuelve cuántas unidades de un producto hay en cada fragmento
+   *
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @return Devuelve las unidades de cada fragmento que tiene alguna, ordenadas por fragmento
+   */
+  public Map<Integer, Integer> getExistencias(String nombre, String marca) {
+    Map<Integer, Integer> existencias = new TreeMap<>();
+    findByNombreMarca(nombre, marca).forEach((fragmento, articulo) -> {
+      if (articulo.getNumeroDeUnidades() > 0) {
+        existencias.put(fragmento, articulo.getNumeroDeUnidades());
+      }
+    });
+    return existencias;
+  }
+
+  /**
+   * Crea el índice de búsqueda en todos los fragmentos, ver {@link Almacen#crearIndiceBusqueda()}
+   */
+  public void crearIndiceBusqueda() {
+    conIndiceBusqueda = true;
+    enTodos(fragmento -> {
+      fragmento.crearIndiceBusqueda();
+      return null;
+    });
+  }
+
+  /**
+   *
+   * Busca artículos por el comienzo de las palabras de su nombre y marca en todos los fragmentos
+   * a la vez, ver {@link Almacen#buscarPorPrefijo(String, int)}
+   *
+   * @param texto Texto escrito
+   * @param limite Número máximo de artículos devueltos
+   * @return Devuelve los artículos encontrados, sin un orden concreto
+   * @throws IllegalStateException Se lanza si no se ha creado el índice de búsqueda
+   */
+  public List<Articulo> buscarPorPrefijo(String texto, int limite) {
+    List<Articulo> encontrados = new ArrayList<>();
+    for (List<Articulo> parcial : enTodos(fragmento -> fragmento.buscarPorPrefijo(texto, limite))) {
+      encontrados.addAll(parcial.subList(0, Math.min(parcial.size(), limite - encontrados.size())));
+    }
+    return encontrados;
+  }
+
+  /**
+   *
+   * @return Devuelve los artículos de todos los fragmentos que tienen menos unidades que su stock
+   *         de seguridad, sin un orden concreto
+   */
+  public List<Articulo> articulosBajoStock() {
+    List<Articulo> bajoStock = new ArrayList<>();
+    enTodos(Almacen::articulosBajoStock).forEach(bajoStock::addAll);
+    return bajoStock;
+  }
+
+  /**
+   *
+   * @return Devuelve los totales de todos los fragmentos sumados
+   */
+  public Totales getTotales() {
+    Totales suma = new Totales(0, 0, 0, 0);
+    for (Totales totales : enTodos(Almacen::getTotales)) {
+      suma = sumar(suma, totales);
+    }
+    return suma;
+  }
+
+  /**
+   *
+   * @param fragmento Número del fragmento
+   * @return Devuelve los totales de un fragmento
+   * @throws IndexOutOfBoundsException Se lanza si el fragmento no existe
+   */
+  public Totales getTotales(int fragmento) {
+    return fragmentos.get(fragmento).almacen.getTotales();
+  }
+
+  /**
+   *
+   * @return Devuelve los totales de cada marca sumando todos los fragmentos, ordenados por marca
+   */
+  public Map<String, Totales> getTotalesPorMarca() {
+    Map<String, Totales> porMarca = new TreeMap<>();
+    for (Map<String, Totales> parcial : enTodos(Almacen::getTotalesPorMarca)) {
+      parcial.forEach(
+          (marca, totales) -> porMarca.merge(marca, totales, AlmacenFragmentado::sumar));
+    }
+    return porMarca;
+  }
+
+  /**
+   *
+   * Analiza todos los fragmentos juntos. Cada fragmento se copia de una vista fija, como en
+   * {@link Almacen#analizar()}, pero las vistas se toman una por fragmento: un movimiento en otro
+   * fragmento entre dos vistas puede quedar dentro o fuera.
+   *
+   * @return Devuelve el análisis del inventario de todos los fragmentos juntos
+   */
+  public AnalisisInventario analizar() {
+    List<Articulo> todos = new ArrayList<>();
+    enTodos(fragmento -> {
+      try (InstantaneaAlmacen vista = fragmento.instantanea()) {
+        return new ArrayList<>(vista);
+      }
+    }).forEach(todos::addAll);
+    return AnalisisInventario.calcular(todos.toArray(new Articulo[0]));
+  }
+
+  /**
+   *
+   * @return Devuelve el número de artículos de todos los fragmentos
+   */
+  public int size() {
+    return getTotales().getArticulos();
+  }
+
+  /**
+   *
+   * Mueve un artículo a otro fragmento, con su código y sus unidades. El resto de fragmentos se
+   * sigue usando mientras tanto.
+   *
+   * @param codigo Código del artículo
+   * @param destino Número del fragmento de destino
+   * @throws CodigoNotFound Se lanza si el código no corresponde a ningún artículo
+   * @throws AlmacenNombreMarcaException Se lanza si el destino ya tiene el nombre y la marca, el
+   *         artículo se queda donde estaba
+   * @throws IndexOutOfBoundsException Se lanza si el fragmento de destino no existe
+   */
+  public void mover(int codigo, int destino) throws CodigoNotFound, AlmacenNombreMarcaException {
+    Fragmento hacia = fragmentos.get(destino);
+    reparto.writeLock().lock();
+    try {
+      int origen = getFragmento(codigo);
+      if (origen == destino) {
+        return;
+      }
+      Fragmento desde = fragmentos.get(origen);
+      // siempre en el mismo orden para no bloquearse con otro movimiento
+      Fragmento primero = origen < destino ? desde : hacia;
+      Fragmento segundo = origen < destino ? hacia : desde;
+      primero.cerrojo.lock();
+      segundo.cerrojo.lock();
+      try {
+        Articulo articulo = desde.almacen.get(codigo);
+        if (hacia.almacen.findByNombreMarca(articulo.getNombre(), articulo.getMarca())
+            .isPresent()) {
+          throw new AlmacenNombreMarcaException("El fragmento " + destino
+              + " ya tiene un artículo con el nombre y la marca del artículo " + codigo + ".");
+        }
+        // primero se añade al destino, así si falla el artículo sigue en el origen
+        hacia.almacen.add(new Articulo(articulo));
+        try {
+          desde.almacen.delete(codigo);
+        } catch (CodigoNotFound | RuntimeException e) {
+          hacia.almacen.delete(codigo);
+          throw e;
+        }
+        enrutar(codigo, destino);
+      } catch (ArticuloIllegalErrorArgumentException e) {
+        throw new IllegalStateException("El código " + codigo
+            + " ya estaba en el destino, el artículo se queda donde estaba.", e);
+      } finally {
+        segundo.cerrojo.unlock();
+        primero.cerrojo.unlock();
+      }
+    } finally {
+      reparto.writeLock().unlock();
+    }
+  }
+
+  /**
+   *
+   * Mueve artículos de los fragmentos con más artículos a los que tienen menos hasta que ninguno
+   * tiene más de uno de diferencia, por ejemplo después de {@link #addFragmento()}. Los artículos
+   * se mueven de uno en uno mientras se sigue usando la fachada. Los que ya existen en el destino
+   * con el mismo nombre y marca se quedan donde están.
+   *
+   * @return Devuelve el número de artículos movidos
+   */
+  public int equilibrar() {
+    int n = fragmentos.size();
+    int[] tamanos = new int[n];
+    long total = 0;
+    for (int i = 0; i < n; i++) {
+      tamanos[i] = getTotales(i).getArticulos();
+      total += tamanos[i];
+    }
+    int objetivo = (int) ((total + n - 1) / n);
+    int movidos = 0;
+    for (int origen = 0; origen < n; origen++) {
+      if (tamanos[origen] <= objetivo) {
+        continue;
+      }
+      for (int codigo : codigos(origen)) {
+        int destino = menor(tamanos);
+        if (tamanos[origen] <= objetivo || tamanos[destino] >= objetivo) {
+          break;
+        }
+        try {
+          mover(codigo, destino);
+          tamanos[origen]--;
+          tamanos[destino]++;
+          movidos++;
+        } catch (CodigoNotFound | AlmacenNombreMarcaException e) {
+          // se ha borrado mientras tanto o ya existe en el destino, se deja donde está
+        }
+      }
+    }
+    return movidos;
+  }
+
+  /**
+   *
+   * @param tamanos Número de artículos de cada fragmento
+   * @return Devuelve el fragmento con menos artículos
+   */
+  private static int menor(int[] tamanos) {
+    int menor = 0;
+    for (int i = 1; i < tamanos.length; i++) {
+      if (tamanos[i] < tamanos[menor]) {
+        menor = i;
+      }
+    }
+    return menor;
+  }
+
+  /**
+   *
+   * @param fragmento Número del fragmento
+   * @return Devuelve los códigos de los artículos de un fragmento en este momento
+   */
+  private int[] codigos(int fragmento) {
+    Fragmento origen = fragmentos.get(fragmento);
+    InstantaneaAlmacen vista;
+    origen.cerrojo.lock();
+    try {
+      vista = origen.almacen.instantanea();
+    } finally {
+      origen.cerrojo.unlock();
+    }
+    try (vista) {
+      return vista.stream().mapToInt(Articulo::getCodigo).toArray();
+    }
+  }
+
+  /**
+   *
+   * Ejecuta una consulta en todos los fragmentos en paralelo, cada una con el cerrojo de su
+   * fragmento
+   *
+   * @param <T> Tipo del resultado de cada fragmento
+   * @param consulta Consulta sobre un fragmento
+   * @return Devuelve el resultado de cada fragmento, en orden de fragmento
+   */
+  private <T> List<T> enTodos(Function<Almacen, T> consulta) {
+    reparto.readLock().lock();
+    try {
+      List<Fragmento> todos = fragmentos;
+      return IntStream.range(0, todos.size()).parallel().mapToObj(i -> {
+        Fragmento fragmento = todos.get(i);
+        fragmento.cerrojo.lock();
+        try {
+          return consulta.apply(fragmento.almacen);
+        } finally {
+          fragmento.cerrojo.unlock();
+        }
+      }).toList();
+    } finally {
+      reparto.readLock().unlock();
+    }
+  }
+
+  /**
+   *
+   * Bloquea el fragmento de un artículo
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el fragmento, con su cerrojo cogido
+   * @throws CodigoNotFound Se lanza si el código no corresponde a ningún artículo
+   */
+  private Fragmento bloquear(int codigo) throws CodigoNotFound {
+    Fragmento fragmento = bloquearSiExiste(codigo);
+    if (fragmento == null) {
+      throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
+    }
+    return fragmento;
+  }
+
+  /**
+   *
+   * Bloquea el fragmento de un artículo. Si el artículo se mueve mientras se espera el cerrojo se
+   * vuelve a intentar con su fragmento nuevo.
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el fragmento con su cerrojo cogido, o null si el código no existe
+   */
+  private Fragmento bloquearSiExiste(int codigo) {
+    while (true) {
+      int numero = ruta(codigo);
+      if (numero == MapaIntInt.NO_ENCONTRADO) {
+        return null;
+      }
+      Fragmento fragmento = fragmentos.get(numero);
+      fragmento.cerrojo.lock();
+      if (ruta(codigo) == numero) {
+        return fragmento;
+      }
+      fragmento.cerrojo.unlock();
+    }
+  }
+
+  /**
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el número del fragmento del artículo o {@link MapaIntInt#NO_ENCONTRADO}
+   */
+  private int ruta(int codigo) {
+    long sello = cerrojoRutas.readLock();
+    try {
+      return rutas.get(codigo);
+    } finally {
+      cerrojoRutas.unlockRead(sello);
+    }
+  }
+
+  /**
+   *
+   * Apunta el fragmento de un artículo en la tabla de rutas
+   *
+   * @param codigo Código del artículo
+   * @param fragmento Número del fragmento
+   */
+  private void enrutar(int codigo, int fragmento) {
+    long sello = cerrojoRutas.writeLock();
+    try {
+      rutas.put(codigo, fragmento);
+    } finally {
+      cerrojoRutas.unlockWrite(sello);
+    }
+  }
+
+  /**
+   *
+   * @param codigo Código de un artículo nuevo
+   * @return Devuelve el fragmento que le corresponde por su código
+   */
+  private Fragmento fragmentoDe(int codigo) {
+    int h = codigo * 0x9E3779B9;
+    List<Fragmento> todos = fragmentos;
+    return todos.get(Math.floorMod(h ^ (h >>> 16), todos.size()));
+  }
+
+  /**
+   *
+   * @param a Unos totales
+   * @param b Otros totales
+   * @return Devuelve la suma de los dos totales
+   */
+  private static Totales sumar(Totales a, Totales b) {
+    return new Totales(a.getArticulos() + b.getArticulos(), a.getUnidades() + b.getUnidades(),
+        a.getValorInventario() + b.getValorInventario(), a.getValorVenta() + b.getValorVenta());
+  }
+
+  @Override
+  public String toString() {
+    return "AlmacenFragmentado [fragmentos=" + fragmentos.size() + ", totales=" + getTotales()
+        + "]";
+  }
+
+  /**
+   * Un almacén de la fachada con el cerrojo que protege sus operaciones
+   */
+  private static final class Fragmento {
+    private final Almacen almacen = new Almacen();
+    private final ReentrantLock cerrojo = new ReentrantLock();
+  }
+
+}
@@ -0,0 +1,972 @@
+package almacen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ *
+ * Variante de {@link Almacen} que guarda los artículos fuera del heap de Java, para catálogos de
+ * millones de artículos sin que el recolector de basura tenga que recorrerlos.
+ *
+ * <p>
+ * Todo el estado está en tres zonas de memoria directa ({@link ByteBuffer#allocateDirect(int)}) o,
+ * si se abre con {@link #abrir(Path)}, proyectadas desde tres archivos de un directorio:
+ * </p>
+ * <ul>
+ * <li>Fichas: una cabecera y una ficha de tamaño fijo por artículo con el código, los precios,
+ * las unidades, los stocks y la posición y longitud de su nombre y su marca</li>
+ * <li>Cadenas: los nombres y marcas en UTF-8, uno detrás de otro</li>
+ * <li>Índices: una tabla hash de código a ficha y otra de nombre y marca a ficha, las dos de
+ * direccionamiento abierto</li>
+ * </ul>
+ *
+ * <p>
+ * Como los índices también están fuera del heap, la memoria del heap no crece con el catálogo.
+ * Buscar por código, consultar unidades y moverlas con {@link #tryAddUnidades(int, int)} y
+ * {@link #tryRemoveUnidades(int, int)} no crea ningún objeto. Al abrir un directorio que ya
+ * existe no hay nada que leer ni reconstruir, los archivos se proyectan tal cual.
+ * </p>
+ *
+ * <p>
+ * Las cadenas solo se añaden: al borrar un artículo o cambiar su nombre o su marca el espacio
+ * anterior no se reutiliza. {@link #get(int)} devuelve una copia del artículo. Al igual que
+ * {@link Almacen}, esta clase no es segura para usarse desde varios hilos.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public class AlmacenOffHeap implements Closeable {
+
+  /**
+   * Firma de la cabecera, "ALMO" en ASCII
+   */
+  private static final int FIRMA = 0x414C4D4F;
+  /**
+   * Versión del formato de los archivos
+   */
+  private static final int VERSION = 1;
+
+  /**
+   * Tamaño de la cabecera de la zona de fichas
+   */
+  private static final int CABECERA = 64;
+  /**
+   * Posiciones de los datos en la cabecera
+   */
+  private static final int CAB_FIRMA = 0;
+  private static final int CAB_VERSION = 4;
+  private static final int CAB_SIZE = 8;
+  private static final int CAB_CAPACIDAD = 12;
+  private static final int CAB_CADENAS = 16;
+  private static final int CAB_ULTIMO_CODIGO = 20;
+
+  /**
+   * Tamaño de una ficha
+   */
+  private static final int FICHA = 48;
+  /**
+   * Posiciones de los campos dentro de una ficha
+   */
+  private static final int CODIGO = 0;
+  private static final int UNIDADES = 4;
+  private static final int COMPRA = 8;
+  private static final int VENTA = 16;
+  private static final int SEGURIDAD = 24;
+  private static final int MAXIMO = 28;
+  private static final int NOMBRE = 32;
+  private static final int LONGITUD_NOMBRE = 36;
+  private static final int MARCA = 40;
+  private static final int LONGITUD_MARCA = 44;
+
+  /**
+   * Bytes por entrada de los índices: código y ficha en la tabla de códigos y ficha en la de
+   * nombre y marca
+   */
+  private static final int ENTRADA_INDICES = 12;
+
+  /**
+   * Capacidad inicial de fichas, siempre potencia de 2
+   */
+  private static final int CAPACIDAD_INICIAL = 1024;
+  /**
+   * Capacidad máxima de fichas, para que cada zona quepa en un ByteBuffer
+   */
+  private static final int CAPACIDAD_MAXIMA = 1 << 25;
+
+  /**
+   * Nombres de los archivos cuando el almacén está respaldado por un directorio
+   */
+  private static final String ARCHIVO_FICHAS = "fichas.bin";
+  private static final String ARCHIVO_CADENAS = "cadenas.bin";
+  private static final String ARCHIVO_INDICES = "indices.bin";
+
+  /**
+   * Directorio de los archivos, null si el almacén está solo en memoria directa
+   */
+  private final Path directorio;
+
+  /**
+   * Da los códigos de los artículos nuevos
+   */
+  private final GeneradorCodigos generador = new GeneradorCodigos();
+
+  /**
+   * Cabecera y fichas de los artículos
+   */
+  private ByteBuffer fichas;
+  /**
+   * Nombres y marcas en UTF-8
+   */
+  private ByteBuffer cadenas;
+  /**
+   * Tabla de códigos seguida de la tabla de nombre y marca
+   */
+  private ByteBuffer indices;
+
+  /**
+   * Número de artículos, copia de la cabecera
+   */
+  private int size;
+  /**
+   * Número de fichas que caben, copia de la cabecera
+   */
+  private int capacidad;
+  /**
+   * Bytes ocupados de la zona de cadenas, copia de la cabecera
+   */
+  private int usadosCadenas;
+  /**
+   * Número de entradas de cada tabla de los índices, potencia de 2
+   */
+  private int entradas;
+
+  /**
+   * Crea un almacén vacío en memoria directa
+   */
+  public AlmacenOffHeap() {
+    this(CAPACIDAD_INICIAL);
+  }
+
+  /**
+   *
+   * Crea un almacén vacío en memoria directa con sitio para el número de artículos pasado sin
+   * redimensionar
+   *
+   * @param capacidad Número de artículos que se espera guardar
+   */
+  public AlmacenOffHeap(int capacidad) {
+    this.directorio = null;
+    try {
+      crear(capacidadInicial(capacidad));
+    } catch (IOException e) {
+      // en memoria directa no hay entrada y salida
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   *
+   * Crea un almacén respaldado por archivos
+   *
+   * @param directorio Directorio de los archivos
+   */
+  private AlmacenOffHeap(Path directorio) {
+    this.directorio = directorio;
+  }
+
+  /**
+   *
+   * Abre el almacén guardado en un directorio, o lo crea vacío si el directorio no tiene ninguno.
+   * Los archivos se proyectan en memoria, así que abrir un almacén grande es inmediato y los
+   * cambios se escriben en los archivos.
+   *
+   * @param directorio Directorio de los archivos del almacén
+   * @return Devuelve el almacén
+   * @throws IOException Se lanza si hay un error al abrir los archivos o no son válidos
+   */
+  public static AlmacenOffHeap abrir(Path directorio) throws IOException {
+    Files.createDirectories(directorio);
+    AlmacenOffHeap almacen = new AlmacenOffHeap(directorio);
+    Path archivoFichas = directorio.resolve(ARCHIVO_FICHAS);
+    if (!Files.exists(archivoFichas) || Files.size(archivoFichas) == 0) {
+      almacen.crear(CAPACIDAD_INICIAL);
+      return almacen;
+    }
+
+    almacen.fichas = almacen.zona(ARCHIVO_FICHAS, Files.size(archivoFichas), true);
+    if (almacen.fichas.getInt(CAB_FIRMA) != FIRMA) {
+      throw new IOException("El directorio " + directorio + " no contiene un almacén.");
+    }
+    if (almacen.fichas.getInt(CAB_VERSION) != VERSION) {
+      throw new IOException("Versión de almacén no soportada: "
+          + almacen.fichas.getInt(CAB_VERSION));
+    }
+    almacen.size = almacen.fichas.getInt(CAB_SIZE);
+    almacen.capacidad = almacen.fichas.getInt(CAB_CAPACIDAD);
+    almacen.usadosCadenas = almacen.fichas.getInt(CAB_CADENAS);
+    almacen.entradas = almacen.capacidad * 2;
+    almacen.cadenas = almacen.zona(ARCHIVO_CADENAS,
+        Files.size(directorio.resolve(ARCHIVO_CADENAS)), true);
+    almacen.indices = almacen.zona(ARCHIVO_INDICES, (long) almacen.entradas * ENTRADA_INDICES,
+        true);
+    almacen.generador.registrar(almacen.fichas.getInt(CAB_ULTIMO_CODIGO));
+    return almacen;
+  }
+
+  /**
+   *
+   * Añade artículos al almacén
+   *
+   * @param nombre Nombre del artículo que se va a añadir
+   * @param marca Marca del artículo que se va a añadir
+   * @param precioDeCompra Precio de compra del artículo que se va a añadir
+   * @param precioDeVenta Precio de venta del artículo que se va a añadir
+   * @param numeroDeUnidades Número de unidades del artículo que se va a añadir
+   * @param stockDeSeguridad Cantidad máxima que tiene que haber del artículo
+   * @param stockMaximo Cantidad máxima que puede haber del artículo
+   * @return Devuelve el código asignado al artículo
+   * @throws AlmacenNombreMarcaException Se lanza si ya existe un artículo con ese nombre y marca
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si algún parámetro no es válido
+   */
+  int add(String nombre, String marca, double precioDeCompra, double precioDeVenta,
+      int numeroDeUnidades, int stockDeSeguridad, int stockMaximo)
+      throws AlmacenNombreMarcaException, ArticuloIllegalErrorArgumentException {
+
+    if (buscar(nombre, marca) != MapaIntInt.NO_ENCONTRADO) {
+      throw new AlmacenNombreMarcaException("El nombre y la marca no pueden ser iguales.");
+    }
+    // el artículo comprueba los datos con las mismas reglas que en Almacen
+    Articulo articulo = new Articulo(generador.siguiente(), nombre, marca, precioDeCompra,
+        precioDeVenta, numeroDeUnidades, stockDeSeguridad, stockMaximo);
+    try {
+      if (size == capacidad) {
+        crecer();
+      }
+      int ficha = size;
+      fichas.putInt(base(ficha) + CODIGO, articulo.getCodigo());
+      escribir(ficha, articulo);
+      size++;
+      fichas.putInt(CAB_SIZE, size);
+      fichas.putInt(CAB_ULTIMO_CODIGO, generador.getUltimo());
+      indexarCodigo(articulo.getCodigo(), ficha);
+      indexarNombreMarca(ficha);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error al ampliar el almacén: " + e.getMessage(), e);
+    }
+    return articulo.getCodigo();
+  }
+
+  /**
+   *
+   * Borra un artículo que existe en el almacén con el código pasado. Su ficha la ocupa la última,
+   * así no quedan huecos.
+   *
+   * @param codigo Codigo del artículo a borrar
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public void delete(int codigo) throws CodigoNotFound {
+    int ficha = buscar(codigo);
+    desindexarCodigo(codigo);
+    desindexarNombreMarca(ficha);
+    int ultima = size - 1;
+    if (ficha != ultima) {
+      indices.putInt(entradaNombreMarca(ultima), ficha + 1);
+      fichas.put(base(ficha), fichas, base(ultima), FICHA);
+      indices.putInt(entradaCodigo(codigoDe(ficha)) + 4, ficha + 1);
+    }
+    size = ultima;
+    fichas.putInt(CAB_SIZE, size);
+  }
+
+  /**
+   *
+   * Incrementa las unidades de un artículo que exista en el almacén.
+   *
+   * @param codigo Código del artículo a incrementar
+   * @param unidades Numero de unidades a incrementar
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   * @throws ArticuloStockException Se lanza si se supera el stock máximo del artículo
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si las unidades son negativas
+   */
+  public void addUnidades(int codigo, int unidades)
+      throws CodigoNotFound, ArticuloIllegalErrorArgumentException {
+    lanzaExcepcion(codigo, unidades, tryAddUnidades(codigo, unidades));
+  }
+
+  /**
+   *
+   * Decrementa las unidades de un artículo que exista en el almacén.
+   *
+   * @param codigo Código del artículo a decrementar
+   * @param unidades Cantidad de unidades a decrementar
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   * @throws ArticuloStockException Se lanza si no hay unidades suficientes
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si las unidades son negativas
+   */
+  public void removeUnidades(int codigo, int unidades)
+      throws CodigoNotFound, ArticuloStockException, ArticuloIllegalErrorArgumentException {
+    lanzaExcepcion(codigo, unidades, tryRemoveUnidades(codigo, unidades));
+  }
+
+  /**
+   *
+   * Incrementa las unidades de un artículo sin superar su stock máximo, si está fijado. No lanza
+   * excepciones ni crea ningún objeto, el rechazo se indica con el resultado.
+   *
+   * @param codigo Código del artículo a incrementar
+   * @param unidades Numero de unidades a incrementar
+   * @return Devuelve {@link ResultadoStock#OK} si se han añadido las unidades
+   */
+  public ResultadoStock tryAddUnidades(int codigo, int unidades) {
+    if (unidades < 0) {
+      return ResultadoStock.UNIDADES_NEGATIVAS;
+    }
+    int ficha = fichaDe(codigo);
+    if (ficha == MapaIntInt.NO_ENCONTRADO) {
+      return ResultadoStock.CODIGO_NO_ENCONTRADO;
+    }
+    int base = base(ficha);
+    long nuevo = (long) fichas.getInt(base + UNIDADES) + unidades;
+    int maximo = fichas.getInt(base + MAXIMO);
+    if (nuevo > (maximo != 0 ? maximo : Integer.MAX_VALUE)) {
+      return ResultadoStock.STOCK_MAXIMO_SUPERADO;
+    }
+    fichas.putInt(base + UNIDADES, (int) nuevo);
+    return ResultadoStock.OK;
+  }
+
+  /**
+   *
+   * Decrementa las unidades de un artículo sin bajar de 0. No lanza excepciones ni crea ningún
+   * objeto, el rechazo se indica con el resultado.
+   *
+   * @param codigo Código del artículo a decrementar
+   * @param unidades Cantidad de unidades a decrementar
+   * @return Devuelve {@link ResultadoStock#OK} si se han decrementado las unidades
+   */
+  public ResultadoStock tryRemoveUnidades(int codigo, int unidades) {
+    if (unidades < 0) {
+      return ResultadoStock.UNIDADES_NEGATIVAS;
+    }
+    int ficha = fichaDe(codigo);
+    if (ficha == MapaIntInt.NO_ENCONTRADO) {
+      return ResultadoStock.CODIGO_NO_ENCONTRADO;
+    }
+    int base = base(ficha);
+    int actual = fichas.getInt(base + UNIDADES);
+    if (actual < unidades) {
+      return ResultadoStock.STOCK_INSUFICIENTE;
+    }
+    fichas.putInt(base + UNIDADES, actual - unidades);
+    return ResultadoStock.OK;
+  }
+
+  /**
+   *
+   * Modifica cualquier parámetro de un artículo existente en el almacén. Si algún dato no es
+   * válido el artículo no cambia.
+   *
+   * @param codigo Código del artículo a modificar
+   * @param nombre Nombre nuevo del artículo
+   * @param marca Marca nueva del artículo
+   * @param precioDeCompra Precio de compra nuevo del artículo
+   * @param precioDeVenta Precio de venta nuevo del artículo
+   * @param numeroDeUnidades Número de unidades nuevo del artículo
+   * @param stockDeSeguridad Cantidad mínima que tiene que haber del artículo
+   * @param stockMaximo Cantidad máxima que puede haber del artículo
+   * @throws AlmacenNombreMarcaException Se lanza si otro artículo ya tiene ese nombre y marca
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si algún parámetro no es válido
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public void modificarArticulo(int codigo, String nombre, String marca, double precioDeCompra,
+      double precioDeVenta, int numeroDeUnidades, int stockDeSeguridad, int stockMaximo)
+      throws AlmacenNombreMarcaException, CodigoNotFound, ArticuloIllegalErrorArgumentException {
+    int ficha = buscar(codigo);
+    int existente = buscar(nombre, marca);
+    if (existente != MapaIntInt.NO_ENCONTRADO && existente != ficha) {
+      throw new AlmacenNombreMarcaException("El artículo ya existe en el almacén");
+    }
+    Articulo articulo = new Articulo(codigo, nombre, marca, precioDeCompra, precioDeVenta,
+        numeroDeUnidades, stockDeSeguridad, stockMaximo);
+    desindexarNombreMarca(ficha);
+    try {
+      escribir(ficha, articulo);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error al ampliar el almacén: " + e.getMessage(), e);
+    } finally {
+      indexarNombreMarca(ficha);
+    }
+  }
+
+  /**
+   *
+   * Devuelve una copia de un artículo pasándole el código si no existe da error
+   *
+   * @param codigo Código del artículo a mostrar
+   * @return Devuelve una copia del artículo
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public Articulo get(int codigo) throws CodigoNotFound {
+    return articulo(buscar(codigo));
+  }
+
+  /**
+   *
+   * Busca un artículo por su nombre y marca
+   *
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @return Devuelve una copia del artículo o un Optional vacío si no existe
+   */
+  public Optional<Articulo> findByNombreMarca(String nombre, String marca) {
+    int ficha = buscar(nombre, marca);
+    return ficha == MapaIntInt.NO_ENCONTRADO ? Optional.empty() : Optional.of(articulo(ficha));
+  }
+
+  /**
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve las unidades del artículo sin crear ningún objeto
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public int getNumeroDeUnidades(int codigo) throws CodigoNotFound {
+    return fichas.getInt(base(buscar(codigo)) + UNIDADES);
+  }
+
+  /**
+   *
+   * @return Devuelve el número de artículos del almacén
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   *
+   * Calcula el valor del inventario a precio de compra recorriendo las fichas
+   *
+   * @return Devuelve la suma de unidades por precio de compra de todos los artículos
+   */
+  public double valorInventario() {
+    double total = 0;
+    for (int ficha = 0; ficha < size; ficha++) {
+      int base = base(ficha);
+      total += fichas.getInt(base + UNIDADES) * fichas.getDouble(base + COMPRA);
+    }
+    return total;
+  }
+
+  /**
+   *
+   * Escribe en los archivos los cambios que aún estén solo en memoria. No hace nada si el almacén
+   * está solo en memoria directa.
+   */
+  public void sincronizar() {
+    if (directorio != null) {
+      ((MappedByteBuffer) cadenas).force();
+      ((MappedByteBuffer) indices).force();
+      ((MappedByteBuffer) fichas).force();
+    }
+  }
+
+  /**
+   * Sincroniza los archivos. La memoria se libera cuando el almacén deja de usarse.
+   */
+  @Override
+  public void close() {
+    sincronizar();
+  }
+
+  /**
+   *
+   * Crea las zonas vacías
+   *
+   * @param capacidadFichas Número de fichas, potencia de 2
+   * @throws IOException Se lanza si hay un error al crear los archivos
+   */
+  private void crear(int capacidadFichas) throws IOException {
+    capacidad = capacidadFichas;
+    entradas = capacidad * 2;
+    fichas = zona(ARCHIVO_FICHAS, CABECERA + (long) capacidad * FICHA, false);
+    cadenas = zona(ARCHIVO_CADENAS, (long) capacidad * 32, false);
+    indices = zona(ARCHIVO_INDICES, (long) entradas * ENTRADA_INDICES, false);
+    fichas.putInt(CAB_VERSION, VERSION);
+    fichas.putInt(CAB_CAPACIDAD, capacidad);
+    // la firma se escribe la última, así un directorio a medio crear no se toma por un almacén
+    fichas.putInt(CAB_FIRMA, FIRMA);
+  }
+
+  /**
+   *
+   * Duplica el número de fichas y reconstruye los índices con el doble de entradas
+   *
+   * @throws IOException Se lanza si hay un error al ampliar los archivos
+   */
+  private void crecer() throws IOException {
+    if (capacidad >= CAPACIDAD_MAXIMA) {
+      throw new IllegalStateException("El almacén no admite más de " + capacidad
+          + " artículos.");
+    }
+    capacidad *= 2;
+    fichas = zona(ARCHIVO_FICHAS, CABECERA + (long) capacidad * FICHA, true);
+    fichas.putInt(CAB_CAPACIDAD, capacidad);
+    entradas = capacidad * 2;
+    indices = zona(ARCHIVO_INDICES, (long) entradas * ENTRADA_INDICES, false);
+    for (int ficha = 0; ficha < size; ficha++) {
+      indexarCodigo(codigoDe(ficha), ficha);
+      indexarNombreMarca(ficha);
+    }
+  }
+
+  /**
+   *
+   * Reserva sitio en la zona de cadenas, duplicándola las veces que haga falta
+   *
+   * @param bytes Bytes que se van a añadir
+   * @throws IOException Se lanza si hay un error al ampliar el archivo
+   */
+  private void reservarCadenas(int bytes) throws IOException {
+    long necesarios = (long) usadosCadenas + bytes;
+    if (necesarios > cadenas.capacity()) {
+      long tamano = cadenas.capacity();
+      while (tamano < necesarios) {
+        tamano *= 2;
+      }
+      if (tamano > Integer.MAX_VALUE) {
+        throw new IllegalStateException("No caben más nombres y marcas en el almacén.");
+      }
+      cadenas = zona(ARCHIVO_CADENAS, tamano, true);
+    }
+  }
+
+  /**
+   *
+   * Crea o amplía una zona. En memoria directa se reserva una zona nueva y, si se pide, se copia
+   * la anterior; con archivos se proyecta el archivo con el tamaño nuevo.
+   *
+   * @param archivo Nombre del archivo de la zona
+   * @param tamano Tamaño en bytes
+   * @param conservar Verdadero para mantener el contenido, falso para empezar con ceros
+   * @return Devuelve la zona
+   * @throws IOException Se lanza si hay un error al proyectar el archivo
+   */
+  private ByteBuffer zona(String archivo, long tamano, boolean conservar) throws IOException {
+    if (tamano > Integer.MAX_VALUE) {
+      throw new IllegalStateException("El almacén no cabe en una zona de memoria.");
+    }
+    if (directorio == null) {
+      ByteBuffer nueva = ByteBuffer.allocateDirect((int) tamano);
+      ByteBuffer anterior = switch (archivo) {
+        case ARCHIVO_FICHAS -> fichas;
+        case ARCHIVO_CADENAS -> cadenas;
+        default -> indices;
+      };
+      if (conservar && anterior != null) {
+        nueva.put(0, anterior, 0, anterior.capacity());
+      }
+      return nueva;
+    }
+    try (FileChannel canal = FileChannel.open(directorio.resolve(archivo),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      if (!conservar) {
+        canal.truncate(0);
+      }
+      return canal.map(FileChannel.MapMode.READ_WRITE, 0, tamano);
+    }
+  }
+
+  /**
+   *
+   * Escribe los datos de un artículo, menos el código, en una ficha. El nombre y la marca solo se
+   * añaden a las cadenas si han cambiado.
+   *
+   * @param ficha Número de ficha
+   * @param articulo Artículo ya validado
+   * @throws IOException Se lanza si hay un error al ampliar la zona de cadenas
+   */
+  private void escribir(int ficha, Articulo articulo) throws IOException {
+    int base = base(ficha);
+    byte[] nombre = articulo.getNombre().getBytes(StandardCharsets.UTF_8);
+    byte[] marca = articulo.getMarca().getBytes(StandardCharsets.UTF_8);
+    boolean nueva = ficha >= size;
+    if (nueva || !iguales(fichas.getInt(base + NOMBRE), fichas.getInt(base + LONGITUD_NOMBRE),
+        nombre)) {
+      fichas.putInt(base + NOMBRE, guardarCadena(nombre));
+      fichas.putInt(base + LONGITUD_NOMBRE, nombre.length);
+    }
+    if (nueva || !iguales(fichas.getInt(base + MARCA), fichas.getInt(base + LONGITUD_MARCA),
+        marca)) {
+      fichas.putInt(base + MARCA, guardarCadena(marca));
+      fichas.putInt(base + LONGITUD_MARCA, marca.length);
+    }
+    fichas.putInt(base + UNIDADES, articulo.getNumeroDeUnidades());
+    fichas.putDouble(base + COMPRA, articulo.getPrecioDeCompra());
+    fichas.putDouble(base + VENTA, articulo.getPrecioDeVenta());
+    fichas.putInt(base + SEGURIDAD, articulo.getStockDeSeguridad());
+    fichas.putInt(base + MAXIMO, articulo.getStockMaximo());
+  }
+
+  /**
+   *
+   * Añade una cadena al final de la zona de cadenas
+   *
+   * @param bytes Cadena en UTF-8
+   * @return Devuelve la posición de la cadena
+   * @throws IOException Se lanza si hay un error al ampliar la zona de cadenas
+   */
+  private int guardarCadena(byte[] bytes) throws IOException {
+    reservarCadenas(bytes.length);
+    int posicion = usadosCadenas;
+    cadenas.put(posicion, bytes);
+    usadosCadenas += bytes.length;
+    fichas.putInt(CAB_CADENAS, usadosCadenas);
+    return posicion;
+  }
+
+  /**
+   *
+   * Crea un artículo con los datos de una ficha
+   *
+   * @param ficha Número de ficha
+   * @return Devuelve el artículo
+   */
+  private Articulo articulo(int ficha) {
+    int base = base(ficha);
+    try {
+      return new Articulo(fichas.getInt(base + CODIGO),
+          cadena(fichas.getInt(base + NOMBRE), fichas.getInt(base + LONGITUD_NOMBRE)),
+          cadena(fichas.getInt(base + MARCA), fichas.getInt(base + LONGITUD_MARCA)),
+          fichas.getDouble(base + COMPRA), fichas.getDouble(base + VENTA),
+          fichas.getInt(base + UNIDADES), fichas.getInt(base + SEGURIDAD),
+          fichas.getInt(base + MAXIMO));
+    } catch (ArticuloIllegalErrorArgumentException e) {
+      // los datos se validaron al guardarlos
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   *
+   * @param posicion Posición de la cadena
+   * @param longitud Longitud en bytes
+   * @return Devuelve la cadena leída de la zona de cadenas
+   */
+  private String cadena(int posicion, int longitud) {
+    byte[] bytes = new byte[longitud];
+    cadenas.get(posicion, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *
+   * @param posicion Posición de una cadena guardada
+   * @param longitud Longitud en bytes de la cadena guardada
+   * @param bytes Cadena a comparar en UTF-8
+   * @return Devuelve verdadero si la cadena guardada es igual a la pasada
+   */
+  private boolean iguales(int posicion, int longitud, byte[] bytes) {
+    if (longitud != bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < longitud; i++) {
+      if (cadenas.get(posicion + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   *
+   * @param ficha Número de ficha
+   * @return Devuelve la posición de la ficha en la zona de fichas
+   */
+  private static int base(int ficha) {
+    return CABECERA + ficha * FICHA;
+  }
+
+  /**
+   *
+   * @param ficha Número de ficha
+   * @return Devuelve el código del artículo de la ficha
+   */
+  private int codigoDe(int ficha) {
+    return fichas.getInt(base(ficha) + CODIGO);
+  }
+
+  /**
+   *
+   * Busca la ficha de un artículo por su código
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el número de ficha
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  private int buscar(int codigo) throws CodigoNotFound {
+    int ficha = fichaDe(codigo);
+    if (ficha == MapaIntInt.NO_ENCONTRADO) {
+      throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
+    }
+    return ficha;
+  }
+
+  /**
+   *
+   * Busca la ficha de un artículo por su código en la tabla de códigos
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el número de ficha o {@link MapaIntInt#NO_ENCONTRADO} si no existe
+   */
+  private int fichaDe(int codigo) {
+    int mascara = entradas - 1;
+    for (int i = hash(codigo) & mascara;; i = (i + 1) & mascara) {
+      int ficha = indices.getInt(i * 8 + 4) - 1;
+      if (ficha < 0) {
+        return MapaIntInt.NO_ENCONTRADO;
+      }
+      if (indices.getInt(i * 8) == codigo) {
+        return ficha;
+      }
+    }
+  }
+
+  /**
+   *
+   * @param codigo Código de un artículo que está en la tabla de códigos
+   * @return Devuelve la posición de su entrada en la zona de índices
+   */
+  private int entradaCodigo(int codigo) {
+    int mascara = entradas - 1;
+    int i = hash(codigo) & mascara;
+    while (indices.getInt(i * 8) != codigo || indices.getInt(i * 8 + 4) == 0) {
+      i = (i + 1) & mascara;
+    }
+    return i * 8;
+  }
+
+  /**
+   *
+   * Añade un código a la tabla de códigos
+   *
+   * @param codigo Código del artículo
+   * @param ficha Número de ficha
+   */
+  private void indexarCodigo(int codigo, int ficha) {
+    int mascara = entradas - 1;
+    int i = hash(codigo) & mascara;
+    while (indices.getInt(i * 8 + 4) != 0) {
+      i = (i + 1) & mascara;
+    }
+    indices.putInt(i * 8, codigo);
+    indices.putInt(i * 8 + 4, ficha + 1);
+  }
+
+  /**
+   *
+   * Quita un código de la tabla de códigos
+   *
+   * @param codigo Código del artículo
+   */
+  private void desindexarCodigo(int codigo) {
+    int mascara = entradas - 1;
+    int libre = entradaCodigo(codigo) / 8;
+    // desplaza hacia atrás los elementos del grupo que ya no serían alcanzables
+    for (int j = (libre + 1) & mascara; indices.getInt(j * 8 + 4) != 0; j = (j + 1) & mascara) {
+      int ideal = hash(indices.getInt(j * 8)) & mascara;
+      if (((j - ideal) & mascara) >= ((j - libre) & mascara)) {
+        indices.putLong(libre * 8, indices.getLong(j * 8));
+        libre = j;
+      }
+    }
+    indices.putLong(libre * 8, 0);
+  }
+
+  /**
+   *
+   * Busca la ficha de un artículo por su nombre y marca
+   *
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @return Devuelve el número de ficha o {@link MapaIntInt#NO_ENCONTRADO} si no existe
+   */
+  private int buscar(String nombre, String marca) {
+    if (nombre == null || marca == null) {
+      return MapaIntInt.NO_ENCONTRADO;
+    }
+    byte[] bytesNombre = nombre.getBytes(StandardCharsets.UTF_8);
+    byte[] bytesMarca = marca.getBytes(StandardCharsets.UTF_8);
+    int h = hashBytes(hashBytes(1, bytesNombre) * 31, bytesMarca);
+    int mascara = entradas - 1;
+    int tabla = entradas * 8;
+    for (int i = hash(h) & mascara;; i = (i + 1) & mascara) {
+      int ficha = indices.getInt(tabla + i * 4) - 1;
+      if (ficha < 0) {
+        return MapaIntInt.NO_ENCONTRADO;
+      }
+      int base = base(ficha);
+      if (iguales(fichas.getInt(base + NOMBRE), fichas.getInt(base + LONGITUD_NOMBRE), bytesNombre)
+          && iguales(fichas.getInt(base + MARCA), fichas.getInt(base + LONGITUD_MARCA),
+              bytesMarca)) {
+        return ficha;
+      }
+    }
+  }
+
+  /**
+   *
+   * @param ficha Número de ficha, con el nombre y la marca con que se indexó
+   * @return Devuelve la posición de su entrada en la zona de índices
+   */
+  private int entradaNombreMarca(int ficha) {
+    int mascara = entradas - 1;
+    int tabla = entradas * 8;
+    int i = hashFicha(ficha) & mascara;
+    while (indices.getInt(tabla + i * 4) != ficha + 1) {
+      i = (i + 1) & mascara;
+    }
+    return tabla + i * 4;
+  }
+
+  /**
+   *
+   * Añade una ficha a la tabla de nombre y marca
+   *
+   * @param ficha Número de ficha
+   */
+  private void indexarNombreMarca(int ficha) {
+    int mascara = entradas - 1;
+    int tabla = entradas * 8;
+    int i = hashFicha(ficha) & mascara;
+    while (indices.getInt(tabla + i * 4) != 0) {
+      i = (i + 1) & mascara;
+    }
+    indices.putInt(tabla + i * 4, ficha + 1);
+  }
+
+  /**
+   *
+   * Quita una ficha de la tabla de nombre y marca
+   *
+   * @param ficha Número de ficha, con el nombre y la marca con que se indexó
+   */
+  private void desindexarNombreMarca(int ficha) {
+    int mascara = entradas - 1;
+    int tabla = entradas * 8;
+    int libre = (entradaNombreMarca(ficha) - tabla) / 4;
+    // desplaza hacia atrás los elementos del grupo que ya no serían alcanzables
+    for (int j = (libre + 1) & mascara; indices.getInt(tabla + j * 4) != 0;
+        j = (j + 1) & mascara) {
+      int ideal = hashFicha(indices.getInt(tabla + j * 4) - 1) & mascara;
+      if (((j - ideal) & mascara) >= ((j - libre) & mascara)) {
+        indices.putInt(tabla + libre * 4, indices.getInt(tabla + j * 4));
+        libre = j;
+      }
+    }
+    indices.putInt(tabla + libre * 4, 0);
+  }
+
+  /**
+   *
+   * Calcula el hash del nombre y la marca de una ficha leyendo las cadenas sin copiarlas
+   *
+   * @param ficha Número de ficha
+   * @return Devuelve el hash, igual al que se calcula al buscar por nombre y marca
+   */
+  private int hashFicha(int ficha) {
+    int base = base(ficha);
+    int h = 1;
+    int posicion = fichas.getInt(base + NOMBRE);
+    for (int i = fichas.getInt(base + LONGITUD_NOMBRE) - 1; i >= 0; i--) {
+      h = 31 * h + cadenas.get(posicion++);
+    }
+    h *= 31;
+    posicion = fichas.getInt(base + MARCA);
+    for (int i = fichas.getInt(base + LONGITUD_MARCA) - 1; i >= 0; i--) {
+      h = 31 * h + cadenas.get(posicion++);
+    }
+    return hash(h);
+  }
+
+  /**
+   *
+   * @param h Valor inicial
+   * @param bytes Bytes a añadir al hash
+   * @return Devuelve el hash acumulado
+   */
+  private static int hashBytes(int h, byte[] bytes) {
+    for (byte b : bytes) {
+      h = 31 * h + b;
+    }
+    return h;
+  }
+
+  /**
+   *
+   * @param clave Clave
+   * @return Devuelve la clave mezclada para repartirla por la tabla
+   */
+  private static int hash(int clave) {
+    int h = clave * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   *
+   * @param capacidad Número de artículos que se espera guardar
+   * @return Devuelve el número de fichas, potencia de 2, en el que caben
+   */
+  private static int capacidadInicial(int capacidad) {
+    int fichas = CAPACIDAD_INICIAL;
+    while (fichas < capacidad && fichas < CAPACIDAD_MAXIMA) {
+      fichas <<= 1;
+    }
+    return fichas;
+  }
+
+  /**
+   *
+   * Convierte el resultado de un movimiento de unidades en la excepción correspondiente
+   *
+   * @param codigo Código del artículo
+   * @param unidades Unidades del movimiento
+   * @param resultado Resultado del movimiento
+   * @throws CodigoNotFound Se lanza si el código no existe
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si las unidades son negativas
+   */
+  private void lanzaExcepcion(int codigo, int unidades, ResultadoStock resultado)
+      throws CodigoNotFound, ArticuloIllegalErrorArgumentException {
+    switch (resultado) {
+      case OK -> {
+      }
+      case CODIGO_NO_ENCONTRADO -> throw new CodigoNotFound(
+          "El código " + codigo + " no existe en el almacén.");
+      case UNIDADES_NEGATIVAS -> throw new ArticuloIllegalErrorArgumentException(
+          "Las unidades no pueden ser menores a 0.");
+      case STOCK_INSUFICIENTE -> throw new ArticuloStockException(
+          "No hay unidades suficientes para decrementar " + unidades + " unidades.");
+      case STOCK_MAXIMO_SUPERADO -> throw new ArticuloStockException("No se pueden añadir "
+          + unidades + " unidades sin superar el stock máximo de " + get(codigo).getStockMaximo()
+          + ".");
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("AlmacenOffHeap [almacen=[");
+    for (int ficha = 0; ficha < size; ficha++) {
+      sb.append(ficha == 0 ? "" : ", ").append(articulo(ficha));
+    }
+    return sb.append("]]").toString();
+  }
+
+}
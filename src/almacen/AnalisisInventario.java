@@ -0,0 +1,207 @@
+package almacen;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Valoración del inventario de un almacén: totales, totales por marca y distribución de los
+ * márgenes de los artículos.
+ *
+ * <p>
+ * Se calcula sobre una copia de los datos de los artículos tomada de una sola pasada, y después se
+ * agrega en paralelo entre todos los núcleos. Todos los resultados salen de la misma copia, así
+ * que los totales por marca siempre suman el total y cada artículo cuenta con sus unidades en un
+ * único instante.
+ * </p>
+ *
+ * <p>
+ * Que toda la copia corresponda a un mismo instante depende de quién pasa los artículos.
+ * {@link Almacen#analizar()} e {@link InstantaneaAlmacen#analizar()} copian una vista fija del
+ * almacén, así que los movimientos hechos a la vez no entran. {@link ConcurrentAlmacen#analizar()}
+ * copia los artículos mientras otros hilos siguen moviendo stock: cada artículo puede estar
+ * copiado en un momento distinto, y un traspaso de unidades entre dos artículos puede contar solo
+ * una de sus dos partes.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public final class AnalisisInventario {
+
+  /**
+   * Totales de todo el almacén
+   */
+  private final Totales totales;
+  /**
+   * Totales de cada marca, ordenados por marca
+   */
+  private final Map<String, Totales> porMarca;
+  /**
+   * Margen unitario de cada artículo, de menor a mayor
+   */
+  private final double[] margenes;
+  /**
+   * Estadísticas de los márgenes unitarios
+   */
+  private final DoubleSummaryStatistics estadisticasMargen;
+
+  /**
+   *
+   * Crea un análisis ya calculado
+   *
+   * @param totales Totales de todo el almacén
+   * @param porMarca Totales de cada marca
+   * @param margenes Márgenes unitarios ordenados
+   * @param estadisticasMargen Estadísticas de los márgenes unitarios
+   */
+  private AnalisisInventario(Totales totales, Map<String, Totales> porMarca, double[] margenes,
+      DoubleSummaryStatistics estadisticasMargen) {
+    this.totales = totales;
+    this.porMarca = porMarca;
+    this.margenes = margenes;
+    this.estadisticasMargen = estadisticasMargen;
+  }
+
+  /**
+   *
+   * Analiza unos artículos. Primero copia sus datos y después los agrega en paralelo.
+   *
+   * @param articulos Artículos a analizar
+   * @return Devuelve el análisis
+   */
+  static AnalisisInventario calcular(Articulo[] articulos) {
+    int n = articulos.length;
+    String[] marcas = new String[n];
+    int[] unidades = new int[n];
+    double[] compra = new double[n];
+    double[] venta = new double[n];
+    // la copia se hace en un bucle secuencial y corto para que se parezca lo más posible a un
+    // instante del almacén
+    for (int i = 0; i < n; i++) {
+      Articulo articulo = articulos[i];
+      marcas[i] = articulo.getMarca();
+      unidades[i] = articulo.getNumeroDeUnidades();
+      compra[i] = articulo.getPrecioDeCompra();
+      venta[i] = articulo.getPrecioDeVenta();
+    }
+
+    Acumulador acumulador = IntStream.range(0, n).parallel().collect(Acumulador::new,
+        (a, i) -> a.sumar(marcas[i], unidades[i], compra[i], venta[i]), Acumulador::combinar);
+    Map<String, Totales> porMarca = new TreeMap<>();
+    acumulador.marcas.forEach((marca, parcial) -> porMarca.put(marca, parcial.totales()));
+
+    double[] margenes = new double[n];
+    Arrays.parallelSetAll(margenes, i -> venta[i] - compra[i]);
+    Arrays.parallelSort(margenes);
+    DoubleSummaryStatistics estadisticas = Arrays.stream(margenes).parallel().summaryStatistics();
+
+    return new AnalisisInventario(acumulador.total.totales(),
+        Collections.unmodifiableMap(porMarca), margenes, estadisticas);
+  }
+
+  /**
+   *
+   * @return Devuelve los totales de todo el almacén
+   */
+  public Totales getTotales() {
+    return totales;
+  }
+
+  /**
+   *
+   * @return Devuelve los totales de cada marca, ordenados por marca
+   */
+  public Map<String, Totales> getPorMarca() {
+    return porMarca;
+  }
+
+  /**
+   *
+   * @return Devuelve el número, mínimo, máximo, media y suma de los márgenes unitarios (precio de
+   *         venta menos precio de compra) de los artículos
+   */
+  public DoubleSummaryStatistics getEstadisticasMargen() {
+    return estadisticasMargen;
+  }
+
+  /**
+   *
+   * Calcula un percentil de los márgenes unitarios de los artículos por el método del rango más
+   * cercano
+   *
+   * @param percentil Percentil entre 0 y 100, por ejemplo 50 para la mediana
+   * @return Devuelve el margen unitario del percentil o NaN si no hay artículos
+   * @throws IllegalArgumentException Se lanza si el percentil no está entre 0 y 100
+   */
+  public double getPercentilMargen(double percentil) {
+    if (!(percentil >= 0 && percentil <= 100)) {
+      throw new IllegalArgumentException("El percentil debe estar entre 0 y 100.");
+    }
+    if (margenes.length == 0) {
+      return Double.NaN;
+    }
+    int rango = (int) Math.ceil(percentil / 100 * margenes.length);
+    return margenes[Math.max(rango - 1, 0)];
+  }
+
+  @Override
+  public String toString() {
+    return "AnalisisInventario [totales=" + totales + ", porMarca=" + porMarca
+        + ", estadisticasMargen=" + estadisticasMargen + "]";
+  }
+
+  /**
+   * Sumas de un grupo de artículos mientras se calculan
+   */
+  private static final class Parcial {
+    private int articulos;
+    private long unidades;
+    private double valorInventario;
+    private double valorVenta;
+
+    void sumar(int unidades, double compra, double venta) {
+      articulos++;
+      this.unidades += unidades;
+      valorInventario += unidades * compra;
+      valorVenta += unidades * venta;
+    }
+
+    void combinar(Parcial otro) {
+      articulos += otro.articulos;
+      unidades += otro.unidades;
+      valorInventario += otro.valorInventario;
+      valorVenta += otro.valorVenta;
+    }
+
+    Totales totales() {
+      return new Totales(articulos, unidades, valorInventario, valorVenta);
+    }
+  }
+
+  /**
+   * Sumas totales y por marca de la parte de los artículos que agrega cada hilo
+   */
+  private static final class Acumulador {
+    private final Parcial total = new Parcial();
+    private final Map<String, Parcial> marcas = new HashMap<>();
+
+    void sumar(String marca, int unidades, double compra, double venta) {
+      total.sumar(unidades, compra, venta);
+      marcas.computeIfAbsent(marca, m -> new Parcial()).sumar(unidades, compra, venta);
+    }
+
+    void combinar(Acumulador otro) {
+      total.combinar(otro.total);
+      otro.marcas.forEach((marca, parcial) -> marcas.merge(marca, parcial, (a, b) -> {
+        a.combinar(b);
+        return a;
+      }));
+    }
+  }
+
+}
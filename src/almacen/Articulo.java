@@ -1,5 +1,8 @@
 package almacen;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * Clase Artículo que representa a los artículos del almacén.
  * 
@@ -18,9 +21,20 @@ package almacen;
 public class Articulo {
   
   /**
-   * Almacena el último código del último artículo existente para averiguar el código siguiente
+   * Almacena el último código dado a un artículo creado sin código. Los almacenes no lo usan, cada
+   * uno da sus propios códigos con un {@link GeneradorCodigos}.
+   */
+  private static final AtomicInteger ultimoCodigo = new AtomicInteger();
+  /**
+   * Actualiza el número de unidades con operaciones compare-and-set, sin cerrojos
+   */
+  private static final AtomicIntegerFieldUpdater<Articulo> UNIDADES =
+      AtomicIntegerFieldUpdater.newUpdater(Articulo.class, "numeroDeUnidades");
+  /**
+   * Lee y borra de forma atómica la marca de modificado
    */
-  private static int ultimoCodigo = 0;
+  private static final AtomicIntegerFieldUpdater<Articulo> MODIFICADO =
+      AtomicIntegerFieldUpdater.newUpdater(Articulo.class, "modificado");
   /**
    * Código único identificador del artículo
    */
@@ -42,9 +56,9 @@ public class Articulo {
    */  
   private double precioDeVenta;
   /**
-   * Número de unidades del artículo
+   * Número de unidades del artículo. Solo se modifica de forma atómica con {@link #UNIDADES}.
    */  
-  private int numeroDeUnidades;
+  private volatile int numeroDeUnidades;
   /**
    * Stock de seguridad del artículo
    */  
@@ -53,6 +67,16 @@ public class Articulo {
    * Stock máximo del artículo
    */
   private int stockMaximo;
+  /**
+   * Observador avisado después de cada cambio del artículo, normalmente el almacén que lo
+   * contiene. Es null si el artículo no está en ningún almacén y no se guarda en el json.
+   */
+  private transient ObservadorArticulos observador;
+  /**
+   * Vale 1 si el artículo ha cambiado desde el último snapshot incremental, o si es nuevo. No se
+   * guarda en el json.
+   */
+  private transient volatile int modificado = 1;
 
   /**
    * 
@@ -69,14 +93,8 @@ public class Articulo {
    */
   Articulo(String nombre, String marca, double precioDeCompra, double precioDeVenta,
       int numeroDeUnidades, int stockDeSeguridad, int stockMaximo) throws ArticuloIllegalErrorArgumentException {
-    codigo = ++ultimoCodigo;
-    setNombre(nombre);
-    setMarca(marca);
-    setPrecioDeCompra(precioDeCompra);
-    setPrecioDeVenta(precioDeVenta);
-    setNumeroDeUnidades(numeroDeUnidades);
-    setStockDeSeguridad(stockDeSeguridad);
-    setStockMaximo(stockMaximo);
+    this(ultimoCodigo.incrementAndGet(), nombre, marca, precioDeCompra, precioDeVenta,
+        numeroDeUnidades, stockDeSeguridad, stockMaximo);
   }
   /**
    * 
@@ -111,6 +129,8 @@ public class Articulo {
 
   /**
    * 
+   * Crea un artículo con un código ya asignado, el que le da el almacén al darlo de alta o el que
+   * tenía al restaurar un almacén guardado.
    * 
    * @param code Código identificador único
    * @param nombre Nombre del artículo
@@ -124,7 +144,31 @@ public class Articulo {
    */
   Articulo(int code, String nombre, String marca, double precioDeCompra,
       double precioDeVenta, int units, int stockMinimo, int stockMaximo) throws ArticuloIllegalErrorArgumentException {
-    this(nombre, marca, precioDeCompra, precioDeVenta, units);
+    codigo = code;
+    setNombre(nombre);
+    setMarca(marca);
+    setPrecioDeCompra(precioDeCompra);
+    setPrecioDeVenta(precioDeVenta);
+    setNumeroDeUnidades(units);
+    setStockDeSeguridad(stockMinimo);
+    setStockMaximo(stockMaximo);
+  }
+
+  /**
+   *
+   * Crea una copia de un artículo con su mismo código. No consume ningún código nuevo.
+   *
+   * @param otro Artículo a copiar
+   */
+  Articulo(Articulo otro) {
+    codigo = otro.codigo;
+    nombre = otro.nombre;
+    marca = otro.marca;
+    precioDeCompra = otro.precioDeCompra;
+    precioDeVenta = otro.precioDeVenta;
+    numeroDeUnidades = otro.numeroDeUnidades;
+    stockDeSeguridad = otro.stockDeSeguridad;
+    stockMaximo = otro.stockMaximo;
   }
 
   /**
@@ -236,10 +280,12 @@ public class Articulo {
    * Cambia el número de unidades
    * 
    * @param numeroDeUnidades numeroDeUnidades que va a sustituir al numero de unidades anterior
-   * @throws ArticuloIllegalErrorArgumentException Se lanza si el precio de venta es menor a 0
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si las unidades son menores a 0 o
+   *         mayores que el stock máximo, si está fijado
    */
   void setNumeroDeUnidades(int numeroDeUnidades) throws ArticuloIllegalErrorArgumentException {
     lanzaExcepcionSiUnidadesNegativas(numeroDeUnidades);
+    lanzaExcepcionSiSuperaStockMaximo(numeroDeUnidades, stockMaximo);
     this.numeroDeUnidades = numeroDeUnidades;
   }
   /**
@@ -264,6 +310,7 @@ public class Articulo {
    * 
    * @param stockMaximo stock maximo que va a sustituir al stock maximo anterior
    * @throws ArticuloIllegalErrorArgumentException Se lanza si el stock máximo es menor a 0 o menor que el stock de seguridad
+   *         o que las unidades
    */
   void setStockMaximo(int stockMaximo) throws ArticuloIllegalErrorArgumentException {
     if (stockMaximo < 0) {
@@ -274,6 +321,7 @@ public class Articulo {
       throw new ArticuloIllegalErrorArgumentException(
           "El stock máximo no puede ser menor al stockDeSeguridad.");
     }
+    lanzaExcepcionSiSuperaStockMaximo(numeroDeUnidades, stockMaximo);
     this.stockMaximo = stockMaximo;
   }
 
@@ -284,10 +332,14 @@ public class Articulo {
    * 
    * @param unidades Numero de unidades a incrementar
    * @throws ArticuloIllegalErrorArgumentException Lanza excepción si el número de unidades no es válido
+   * @throws ArticuloStockException Se lanza si se supera el stock máximo
    */
   public void addUnidades(int unidades) throws ArticuloIllegalErrorArgumentException {
     lanzaExcepcionSiUnidadesNegativas(unidades);
-    this.numeroDeUnidades += unidades;
+    if (tryAddUnidades(unidades) == ResultadoStock.STOCK_MAXIMO_SUPERADO) {
+      throw new ArticuloStockException("No se pueden añadir " + unidades
+          + " unidades sin superar el stock máximo de " + stockMaximo + ".");
+    }
   }
   /**
    * 
@@ -295,14 +347,103 @@ public class Articulo {
    * 
    * @param unidades Numero de unidades a decrementar
    * @throws ArticuloIllegalErrorArgumentException  
+   * @throws ArticuloStockException Se lanza si no hay unidades suficientes
    */
   public void eliminarUnidades(int unidades) throws  ArticuloIllegalErrorArgumentException {
     lanzaExcepcionSiUnidadesNegativas(unidades);
-    if (this.numeroDeUnidades - unidades < 0) {
+    if (tryEliminarUnidades(unidades) == ResultadoStock.STOCK_INSUFICIENTE) {
       throw new ArticuloStockException( 
           "No hay unidades suficientes para decrementar " + unidades + " unidades."); //excepcion marcada
     }
-    this.numeroDeUnidades -= unidades;
+  }
+  /**
+   *
+   * Añade unidades al artículo de forma atómica sin superar el stock máximo, si está fijado.
+   * No lanza excepciones, el rechazo se indica con el resultado.
+   *
+   * @param unidades Numero de unidades a incrementar
+   * @return Devuelve {@link ResultadoStock#OK} si se han añadido las unidades
+   */
+  public ResultadoStock tryAddUnidades(int unidades) {
+    if (unidades < 0) {
+      return ResultadoStock.UNIDADES_NEGATIVAS;
+    }
+    // se avisa después de comprobar los límites, un rechazo no hace que las vistas copien nada
+    boolean avisado = false;
+    int actual;
+    long nuevo;
+    do {
+      actual = numeroDeUnidades;
+      nuevo = (long) actual + unidades;
+      if (nuevo > (stockMaximo != 0 ? stockMaximo : Integer.MAX_VALUE)) {
+        return ResultadoStock.STOCK_MAXIMO_SUPERADO;
+      }
+      if (!avisado) {
+        avisarAntesDeCambio();
+        avisado = true;
+      }
+    } while (!UNIDADES.compareAndSet(this, actual, (int) nuevo));
+    avisarCambio();
+    return ResultadoStock.OK;
+  }
+  /**
+   *
+   * Decrementa unidades al artículo de forma atómica sin bajar de 0. Dos ventas simultáneas
+   * nunca pueden vender más unidades de las que hay. No lanza excepciones, el rechazo se indica
+   * con el resultado.
+   *
+   * @param unidades Numero de unidades a decrementar
+   * @return Devuelve {@link ResultadoStock#OK} si se han decrementado las unidades
+   */
+  public ResultadoStock tryEliminarUnidades(int unidades) {
+    if (unidades < 0) {
+      return ResultadoStock.UNIDADES_NEGATIVAS;
+    }
+    boolean avisado = false;
+    int actual;
+    do {
+      actual = numeroDeUnidades;
+      if (actual < unidades) {
+        return ResultadoStock.STOCK_INSUFICIENTE;
+      }
+      if (!avisado) {
+        avisarAntesDeCambio();
+        avisado = true;
+      }
+    } while (!UNIDADES.compareAndSet(this, actual, actual - unidades));
+    avisarCambio();
+    return ResultadoStock.OK;
+  }
+  /**
+   *
+   * Suma unidades al artículo de forma atómica sin bajar de 0 ni superar el stock máximo, si está
+   * fijado. Se usa para aplicar de una vez el total de varios movimientos, como en los lotes: si
+   * otro hilo ha cambiado las unidades desde que se validaron los movimientos y el total ya no
+   * cabe, se rechaza sin cambiar nada.
+   *
+   * @param unidades Unidades a sumar, negativas para restar
+   * @return Devuelve {@link ResultadoStock#OK} si se han sumado las unidades
+   */
+  ResultadoStock trySumarUnidades(int unidades) {
+    boolean avisado = false;
+    int actual;
+    long nuevo;
+    do {
+      actual = numeroDeUnidades;
+      nuevo = (long) actual + unidades;
+      if (nuevo < 0) {
+        return ResultadoStock.STOCK_INSUFICIENTE;
+      }
+      if (unidades > 0 && nuevo > (stockMaximo != 0 ? stockMaximo : Integer.MAX_VALUE)) {
+        return ResultadoStock.STOCK_MAXIMO_SUPERADO;
+      }
+      if (!avisado) {
+        avisarAntesDeCambio();
+        avisado = true;
+      }
+    } while (!UNIDADES.compareAndSet(this, actual, (int) nuevo));
+    avisarCambio();
+    return ResultadoStock.OK;
   }
   /**
    * 
@@ -319,13 +460,76 @@ public class Articulo {
    */
   public void set(String nombre, String marca, double precioDeCompra, double precioDeVenta,
       int numeroDeUnidades, int stockMaximo, int stockDeSeguridad) throws ArticuloIllegalErrorArgumentException {
-    setNombre(nombre);
-    setMarca(marca);
-    setPrecioDeCompra(precioDeCompra);
-    setPrecioDeVenta(precioDeVenta);
-    setNumeroDeUnidades(numeroDeUnidades);
-    setStockMaximo(stockMaximo); 
-    setStockDeSeguridad(stockDeSeguridad);
+    avisarAntesDeCambio();
+    try {
+      setNombre(nombre);
+      setMarca(marca);
+      setPrecioDeCompra(precioDeCompra);
+      setPrecioDeVenta(precioDeVenta);
+      // si las unidades nuevas superan el máximo anterior se cambia antes el máximo, así cada
+      // valor nuevo se compara con el otro valor nuevo y no con el anterior
+      if (this.stockMaximo != 0 && numeroDeUnidades > this.stockMaximo) {
+        setStockMaximo(stockMaximo);
+        setNumeroDeUnidades(numeroDeUnidades);
+      } else {
+        setNumeroDeUnidades(numeroDeUnidades);
+        setStockMaximo(stockMaximo);
+      }
+      setStockDeSeguridad(stockDeSeguridad);
+    } finally {
+      // también si algún valor no es válido, porque los anteriores ya se han cambiado
+      avisarCambio();
+    }
+  }
+
+  /**
+   *
+   * Fija el observador que se avisa antes y después de cada cambio del artículo
+   *
+   * @param observador Observador, o null para dejar de avisar
+   */
+  void setObservador(ObservadorArticulos observador) {
+    this.observador = observador;
+  }
+
+  /**
+   * Avisa al observador, si hay, de que el artículo va a cambiar
+   */
+  private void avisarAntesDeCambio() {
+    ObservadorArticulos o = observador;
+    if (o != null) {
+      o.antesDeCambio(this);
+    }
+  }
+
+  /**
+   *
+   * Borra la marca de modificado. Si el artículo cambia después, se vuelve a marcar.
+   *
+   * @return Devuelve verdadero si el artículo había cambiado desde la última vez que se borró
+   */
+  boolean limpiarModificado() {
+    return modificado != 0 && MODIFICADO.getAndSet(this, 0) != 0;
+  }
+
+  /**
+   * Vuelve a marcar el artículo como modificado, por ejemplo si no se ha podido guardar
+   */
+  void marcarModificado() {
+    modificado = 1;
+  }
+
+  /**
+   * Marca el artículo como modificado y avisa al observador, si hay, de que ha cambiado
+   */
+  private void avisarCambio() {
+    if (modificado == 0) {
+      modificado = 1;
+    }
+    ObservadorArticulos o = observador;
+    if (o != null) {
+      o.cambio(this);
+    }
   }
 
   
@@ -341,6 +545,23 @@ public class Articulo {
       throw new ArticuloIllegalErrorArgumentException("Las unidades no pueden ser menores a 0.");
     }
   }
+  /**
+   *
+   * Lanza excepción si las unidades superan el stock máximo, el mismo límite que aplica
+   * {@link #addUnidades(int)}
+   *
+   * @param numeroDeUnidades Numero de unidades del artículo
+   * @param stockMaximo Stock máximo del artículo, 0 si no está fijado
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si el stock máximo está fijado y las
+   *         unidades lo superan
+   */
+  private static void lanzaExcepcionSiSuperaStockMaximo(int numeroDeUnidades, int stockMaximo)
+      throws ArticuloIllegalErrorArgumentException {
+    if (stockMaximo != 0 && numeroDeUnidades > stockMaximo) {
+      throw new ArticuloIllegalErrorArgumentException("Las unidades no pueden ser mayores al"
+          + " stock máximo de " + stockMaximo + ".");
+    }
+  }
 
   @Override
   public String toString() {
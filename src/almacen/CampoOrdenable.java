@@ -0,0 +1,55 @@
+package almacen;
+
+/**
+ * Campos numéricos de un artículo sobre los que se puede crear un índice ordenado en el almacén.
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public enum CampoOrdenable {
+
+  /**
+   * Precio de compra
+   */
+  PRECIO_DE_COMPRA {
+    @Override
+    public double valor(Articulo articulo) {
+      return articulo.getPrecioDeCompra();
+    }
+  },
+  /**
+   * Precio de venta
+   */
+  PRECIO_DE_VENTA {
+    @Override
+    public double valor(Articulo articulo) {
+      return articulo.getPrecioDeVenta();
+    }
+  },
+  /**
+   * Número de unidades
+   */
+  NUMERO_DE_UNIDADES {
+    @Override
+    public double valor(Articulo articulo) {
+      return articulo.getNumeroDeUnidades();
+    }
+  },
+  /**
+   * Margen, precio de venta menos precio de compra
+   */
+  MARGEN {
+    @Override
+    public double valor(Articulo articulo) {
+      return articulo.getPrecioDeVenta() - articulo.getPrecioDeCompra();
+    }
+  };
+
+  /**
+   *
+   * @param articulo Artículo
+   * @return Devuelve el valor del campo en el artículo
+   */
+  public abstract double valor(Articulo articulo);
+
+}
@@ -0,0 +1,224 @@
+package almacen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * Cliente de un {@link ServidorAlmacen}, con el protocolo descrito en el servidor.
+ *
+ * <p>
+ * Los métodos síncronos envían una petición y esperan su respuesta. Para encadenar peticiones sin
+ * esperar, se envían con los métodos enviar, que solo las escriben en el búfer, y después se leen
+ * las respuestas en el mismo orden con los métodos recibir, que envían antes lo que quede en el
+ * búfer. Un cliente no es seguro para hilos: cada hilo debe tener el suyo.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public final class ClienteAlmacen implements AutoCloseable {
+
+  /**
+   * Estados de las respuestas por su ordinal
+   */
+  private static final ResultadoStock[] ESTADOS = ResultadoStock.values();
+
+  /**
+   * Socket de la conexión
+   */
+  private final Socket socket;
+  /**
+   * Respuestas del servidor
+   */
+  private final DataInputStream entrada;
+  /**
+   * Peticiones al servidor
+   */
+  private final DataOutputStream salida;
+
+  /**
+   *
+   * Conecta con un servidor del mismo equipo
+   *
+   * @param puerto Puerto en el que escucha el servidor
+   * @throws IOException Se lanza si no se puede conectar
+   */
+  public ClienteAlmacen(int puerto) throws IOException {
+    socket = new Socket(InetAddress.getLoopbackAddress(), puerto);
+    socket.setTcpNoDelay(true);
+    entrada = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+    salida = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+  }
+
+  /**
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve las unidades del artículo o -1 si el código no existe
+   * @throws IOException Se lanza si falla la conexión
+   */
+  public int getNumeroDeUnidades(int codigo) throws IOException {
+    enviarConsulta(codigo);
+    return recibirUnidades();
+  }
+
+  /**
+   *
+   * @param codigo Código del artículo a incrementar
+   * @param unidades Numero de unidades a incrementar
+   * @return Devuelve el resultado del movimiento
+   * @throws IOException Se lanza si falla la conexión
+   */
+  public ResultadoStock addUnidades(int codigo, int unidades) throws IOException {
+    enviarAddUnidades(codigo, unidades);
+    return recibirResultado();
+  }
+
+  /**
+   *
+   * @param codigo Código del artículo a decrementar
+   * @param unidades Cantidad de unidades a decrementar
+   * @return Devuelve el resultado del movimiento
+   * @throws IOException Se lanza si falla la conexión
+   */
+  public ResultadoStock removeUnidades(int codigo, int unidades) throws IOException {
+    enviarRemoveUnidades(codigo, unidades);
+    return recibirResultado();
+  }
+
+  /**
+   *
+   * @param movimientos Movimientos del lote, como mucho {@link ServidorAlmacen#MAX_MOVIMIENTOS}
+   * @param todoONada Verdadero para no aplicar nada si alguna línea no es válida
+   * @return Devuelve el resultado de cada línea y si se ha aplicado el lote
+   * @throws IOException Se lanza si falla la conexión
+   */
+  public ResultadoLote aplicarMovimientos(List<Movimiento> movimientos, boolean todoONada)
+      throws IOException {
+    enviarMovimientos(movimientos, todoONada);
+    return recibirLote();
+  }
+
+  /**
+   *
+   * Escribe una consulta de unidades sin esperar la respuesta, que se lee con
+   * {@link #recibirUnidades()}
+   *
+   * @param codigo Código del artículo
+   * @throws IOException Se lanza si falla la conexión
+   */
+  public void enviarConsulta(int codigo) throws IOException {
+    salida.writeByte(ServidorAlmacen.CONSULTAR);
+    salida.writeInt(codigo);
+  }
+
+  /**
+   *
+   * Escribe un incremento de unidades sin esperar la respuesta, que se lee con
+   * {@link #recibirResultado()}
+   *
+   * @param codigo Código del artículo a incrementar
+   * @param unidades Numero de unidades a incrementar
+   * @throws IOException Se lanza si falla la conexión
+   */
+  public void enviarAddUnidades(int codigo, int unidades) throws IOException {
+    salida.writeByte(ServidorAlmacen.ANADIR);
+    salida.writeInt(codigo);
+    salida.writeInt(unidades);
+  }
+
+  /**
+   *
+   * Escribe un decremento de unidades sin esperar la respuesta, que se lee con
+   * {@link #recibirResultado()}
+   *
+   * @param codigo Código del artículo a decrementar
+   * @param unidades Cantidad de unidades a decrementar
+   * @throws IOException Se lanza si falla la conexión
+   */
+  public void enviarRemoveUnidades(int codigo, int unidades) throws IOException {
+    salida.writeByte(ServidorAlmacen.RETIRAR);
+    salida.writeInt(codigo);
+    salida.writeInt(unidades);
+  }
+
+  /**
+   *
+   * Escribe un lote de movimientos sin esperar la respuesta, que se lee con
+   * {@link #recibirLote()}
+   *
+   * @param movimientos Movimientos del lote, como mucho {@link ServidorAlmacen#MAX_MOVIMIENTOS}
+   * @param todoONada Verdadero para no aplicar nada si alguna línea no es válida
+   * @throws IOException Se lanza si falla la conexión
+   */
+  public void enviarMovimientos(List<Movimiento> movimientos, boolean todoONada)
+      throws IOException {
+    if (movimientos.size() > ServidorAlmacen.MAX_MOVIMIENTOS) {
+      throw new IllegalArgumentException(
+          "Un lote no puede tener más de " + ServidorAlmacen.MAX_MOVIMIENTOS + " movimientos.");
+    }
+    salida.writeByte(ServidorAlmacen.LOTE);
+    salida.writeByte(todoONada ? 1 : 0);
+    salida.writeInt(movimientos.size());
+    for (Movimiento movimiento : movimientos) {
+      salida.writeInt(movimiento.getCodigo());
+      salida.writeInt(movimiento.getUnidades());
+    }
+  }
+
+  /**
+   *
+   * Lee la respuesta de la siguiente petición, que tiene que ser una consulta
+   *
+   * @return Devuelve las unidades del artículo o -1 si el código no existe
+   * @throws IOException Se lanza si falla la conexión
+   */
+  public int recibirUnidades() throws IOException {
+    return recibirResultado().isOk() ? entrada.readInt() : -1;
+  }
+
+  /**
+   *
+   * Lee la respuesta de la siguiente petición, que tiene que ser un movimiento de unidades
+   *
+   * @return Devuelve el resultado del movimiento
+   * @throws IOException Se lanza si falla la conexión
+   */
+  public ResultadoStock recibirResultado() throws IOException {
+    salida.flush();
+    return ESTADOS[entrada.readUnsignedByte()];
+  }
+
+  /**
+   *
+   * Lee la respuesta de la siguiente petición, que tiene que ser un lote
+   *
+   * @return Devuelve el resultado de cada línea y si se ha aplicado el lote
+   * @throws IOException Se lanza si falla la conexión
+   */
+  public ResultadoLote recibirLote() throws IOException {
+    salida.flush();
+    boolean aplicado = entrada.readByte() == 1;
+    ResultadoStock[] resultados = new ResultadoStock[entrada.readInt()];
+    int rechazados = 0;
+    for (int i = 0; i < resultados.length; i++) {
+      resultados[i] = ESTADOS[entrada.readUnsignedByte()];
+      rechazados += resultados[i].isOk() ? 0 : 1;
+    }
+    return new ResultadoLote(aplicado, resultados, rechazados);
+  }
+
+  /**
+   * Cierra la conexión
+   */
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+
+}
@@ -0,0 +1,275 @@
+package almacen;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * Variante de {@link Almacen} que puede usarse desde varios hilos a la vez.
+ *
+ * <p>
+ * Los artículos se guardan en un {@link ConcurrentHashMap} indexado por código, por lo que las
+ * consultas nunca se bloquean y las altas y bajas no bloquean a las consultas. Las bajas y las
+ * modificaciones completas de un artículo se protegen con un cerrojo elegido según su código
+ * entre un conjunto fijo de cerrojos (lock striping).
+ * </p>
+ *
+ * <p>
+ * Los movimientos de stock no usan cerrojos: se apoyan en los contadores atómicos de
+ * {@link Articulo}, así que los movimientos sobre códigos distintos nunca compiten entre sí y los
+ * que van al mismo artículo no pierden actualizaciones ni dejan unidades negativas.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public class ConcurrentAlmacen {
+
+  /**
+   * Artículos del almacén indexados por código
+   */
+  private final Map<Integer, Articulo> almacen = new ConcurrentHashMap<>();
+
+  /**
+   * Índice único por nombre y marca, respaldado por un mapa concurrente
+   */
+  private final IndiceNombreMarca nombreMarca;
+
+  /**
+   * Da los códigos de los artículos nuevos. Cada hilo reserva un bloque de códigos, así las altas
+   * simultáneas no compiten por un contador.
+   */
+  private final GeneradorCodigos generador = new GeneradorCodigos();
+
+  /**
+   * Cerrojos que protegen las modificaciones de los artículos. Su número es potencia de 2.
+   */
+  private final ReentrantLock[] cerrojos;
+
+  /**
+   * Crea un almacén concurrente que distingue mayúsculas y acentos al comparar nombre y marca
+   */
+  public ConcurrentAlmacen() {
+    this(false, false);
+  }
+
+  /**
+   *
+   * Crea un almacén concurrente indicando cómo se comparan nombre y marca al detectar repetidos
+   *
+   * @param ignorarMayusculas Verdadero si "Marca" y "marca" se consideran iguales
+   * @param ignorarAcentos Verdadero si "Camión" y "Camion" se consideran iguales
+   */
+  public ConcurrentAlmacen(boolean ignorarMayusculas, boolean ignorarAcentos) {
+    nombreMarca =
+        new IndiceNombreMarca(new ConcurrentHashMap<>(), ignorarMayusculas, ignorarAcentos);
+    int numCerrojos = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 16);
+    cerrojos = new ReentrantLock[numCerrojos];
+    for (int i = 0; i < numCerrojos; i++) {
+      cerrojos[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   *
+   * Añade artículos al almacén
+   *
+   * @param nombre Nombre del artículo que se va a añadir
+   * @param marca Marca del artículo que se va a añadir
+   * @param precioDeCompra Precio de compra del artículo que se va a añadir
+   * @param precioDeVenta Precio de venta del artículo que se va a añadir
+   * @param numeroDeUnidades Número de unidades del artículo que se va a añadir
+   * @param stockDeSeguridad Cantidad máxima que tiene que haber del artículo
+   * @param stockMaximo Cantidad máxima que puede haber del artículo
+   * @return Devuelve el código asignado al artículo
+   * @throws AlmacenNombreMarcaException Se lanza si ya existe un artículo con ese nombre y marca
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si algún parámetro no es válido
+   */
+  int add(String nombre, String marca, double precioDeCompra, double precioDeVenta,
+      int numeroDeUnidades, int stockDeSeguridad, int stockMaximo)
+      throws AlmacenNombreMarcaException, ArticuloIllegalErrorArgumentException {
+
+    Articulo articulo = new Articulo(generador.siguiente(), nombre, marca, precioDeCompra,
+        precioDeVenta, numeroDeUnidades, stockDeSeguridad, stockMaximo);
+    // primero por código, así lo que encuentra findByNombreMarca ya se puede obtener con get
+    almacen.put(articulo.getCodigo(), articulo);
+    if (!nombreMarca.put(articulo)) {
+      almacen.remove(articulo.getCodigo());
+      throw new AlmacenNombreMarcaException("El nombre y la marca no pueden ser iguales.");
+    }
+    return articulo.getCodigo();
+  }
+
+  /**
+   *
+   * Borra un artículo que existe en el almacén con el código pasado
+   *
+   * @param codigo Codigo del artículo a borrar
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public void delete(int codigo) throws CodigoNotFound {
+    ReentrantLock cerrojo = cerrojo(codigo);
+    cerrojo.lock();
+    try {
+      Articulo articulo = almacen.remove(codigo);
+      if (articulo == null) {
+        throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
+      }
+      nombreMarca.remove(articulo);
+    } finally {
+      cerrojo.unlock();
+    }
+  }
+
+  /**
+   *
+   * Incrementa las unidades de un artículo que exista en el almacén.
+   *
+   * @param codigo Código del artículo a incrementar
+   * @param unidades Numero de unidades a incrementar
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   * @throws ArticuloStockException Se lanza si se supera el stock máximo
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si las unidades son negativas
+   */
+  public void addUnidades(int codigo, int unidades)
+      throws CodigoNotFound, ArticuloIllegalErrorArgumentException {
+    buscar(codigo).addUnidades(unidades);
+  }
+
+  /**
+   *
+   * Decrementa las unidades de un artículo que exista en el almacén.
+   *
+   * @param codigo Código del artículo a decrementar
+   * @param unidades Cantidad de unidades a decrementar
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   * @throws ArticuloStockException Se lanza si no hay unidades suficientes
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si las unidades son negativas
+   */
+  public void removeUnidades(int codigo, int unidades)
+      throws CodigoNotFound, ArticuloStockException, ArticuloIllegalErrorArgumentException {
+    buscar(codigo).eliminarUnidades(unidades);
+  }
+
+  /**
+   *
+   * Modifica cualquier parámetro de un artículo existente en el almacén.
+   *
+   * @param codigo Código del artículo a modificar
+   * @param nombre Nombre nuevo del artículo
+   * @param marca Marca nueva del artículo
+   * @param precioDeCompra Precio de compra nuevo del artículo
+   * @param precioDeVenta Precio de venta nuevo del artículo
+   * @param numeroDeUnidades Número de unidades nuevo del artículo
+   * @param stockDeSeguridad Cantidad mínima que tiene que haber del artículo
+   * @param stockMaximo Cantidad máxima que puede haber del artículo
+   * @throws AlmacenNombreMarcaException Se lanza si otro artículo ya tiene ese nombre y marca
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si algún parámetro no es válido
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public void modificarArticulo(int codigo, String nombre, String marca, double precioDeCompra,
+      double precioDeVenta, int numeroDeUnidades, int stockDeSeguridad, int stockMaximo)
+      throws AlmacenNombreMarcaException, CodigoNotFound, ArticuloIllegalErrorArgumentException {
+    ReentrantLock cerrojo = cerrojo(codigo);
+    cerrojo.lock();
+    try {
+      Articulo art = buscar(codigo);
+      String nombreAnterior = art.getNombre();
+      String marcaAnterior = art.getMarca();
+      Articulo existente = nombreMarca.reservar(nombre, marca, art);
+      if (existente != null && existente != art) {
+        throw new AlmacenNombreMarcaException("El artículo ya existe en el almacén");
+      }
+      try {
+        art.set(nombre, marca, precioDeCompra, precioDeVenta, numeroDeUnidades, stockMaximo,
+            stockDeSeguridad);
+      } finally {
+        nombreMarca.reindexar(nombreAnterior, marcaAnterior, art);
+        nombreMarca.liberar(nombre, marca, art);
+      }
+    } finally {
+      cerrojo.unlock();
+    }
+  }
+
+  /**
+   *
+   * Devuelve un artículo pasándole el código si no existe da error
+   *
+   * @param codigo Código del artículo a mostrar
+   * @return Devuelve un artículo
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  public Articulo get(int codigo) throws CodigoNotFound {
+    return buscar(codigo);
+  }
+
+  /**
+   *
+   * Busca un artículo por su nombre y marca
+   *
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @return Devuelve el artículo o un Optional vacío si no existe
+   */
+  public Optional<Articulo> findByNombreMarca(String nombre, String marca) {
+    return Optional.ofNullable(nombreMarca.get(nombre, marca));
+  }
+
+  /**
+   *
+   * @return Devuelve el número de artículos del almacén
+   */
+  public int size() {
+    return almacen.size();
+  }
+
+  /**
+   *
+   * Calcula la valoración del inventario, los totales por marca y la distribución de los márgenes
+   * agregando en paralelo sobre una copia de los artículos. Se puede llamar mientras otros hilos
+   * mueven stock, pero la copia no es de un único instante: los movimientos no se detienen y cada
+   * artículo se copia con las unidades que tiene al llegar a él, ver {@link AnalisisInventario}.
+   *
+   * @return Devuelve el análisis del inventario
+   */
+  public AnalisisInventario analizar() {
+    return AnalisisInventario.calcular(almacen.values().toArray(new Articulo[0]));
+  }
+
+  /**
+   *
+   * Busca un artículo por su código
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el artículo
+   * @throws CodigoNotFound Se lanza si el código pasado no corresponde a ningún artículo
+   */
+  private Articulo buscar(int codigo) throws CodigoNotFound {
+    Articulo articulo = almacen.get(codigo);
+    if (articulo == null) {
+      throw new CodigoNotFound("El código " + codigo + " no existe en el almacén.");
+    }
+    return articulo;
+  }
+
+  /**
+   *
+   * Devuelve el cerrojo que protege al artículo con el código pasado
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el cerrojo del artículo
+   */
+  private ReentrantLock cerrojo(int codigo) {
+    int h = codigo * 0x9E3779B9;
+    return cerrojos[(h ^ (h >>> 16)) & (cerrojos.length - 1)];
+  }
+
+  @Override
+  public String toString() {
+    return "ConcurrentAlmacen [almacen=" + almacen.values() + "]";
+  }
+
+}
@@ -0,0 +1,492 @@
+package almacen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Diario de movimientos del almacén (write-ahead log).
+ *
+ * <p>
+ * Cada alta, baja, modificación y movimiento de unidades se añade al final de un archivo como un
+ * registro numerado (LSN) con su propio CRC32. Los registros se acumulan en memoria y se escriben
+ * y sincronizan con el disco en grupo (group commit): cuando se alcanzan {@code loteFsync}
+ * registros pendientes o cada {@code intervaloMs} milisegundos, lo que ocurra antes. Así se pueden
+ * registrar muchos movimientos por segundo con un solo fsync por lote. Si el proceso cae, como
+ * mucho se pierden los movimientos del último lote sin sincronizar.
+ * </p>
+ *
+ * <p>
+ * Formato de cada registro: longitud del cuerpo (int), cuerpo y CRC32 del cuerpo (int). El cuerpo
+ * empieza por el LSN (long) y el tipo de movimiento (byte). Al leer, el primer registro incompleto
+ * o con el CRC incorrecto marca el final del diario, ya que es una escritura interrumpida.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+class DiarioMovimientos implements Closeable {
+
+  /**
+   * Tipo de registro de alta de un artículo
+   */
+  private static final byte ALTA = 1;
+  /**
+   * Tipo de registro de baja de un artículo
+   */
+  private static final byte BAJA = 2;
+  /**
+   * Tipo de registro de modificación completa de un artículo
+   */
+  private static final byte MODIFICACION = 3;
+  /**
+   * Tipo de registro de incremento o decremento de unidades
+   */
+  private static final byte UNIDADES = 4;
+
+  /**
+   * Recibe los movimientos al reproducir un diario
+   */
+  interface Receptor {
+
+    /**
+     *
+     * Se llama con cada alta registrada
+     *
+     * @param articulo Artículo dado de alta, con su código original
+     */
+    void alta(Articulo articulo);
+
+    /**
+     *
+     * Se llama con cada baja registrada
+     *
+     * @param codigo Código del artículo dado de baja
+     */
+    void baja(int codigo);
+
+    /**
+     *
+     * Se llama con cada modificación registrada
+     *
+     * @param estado Estado completo del artículo después de la modificación
+     */
+    void modificacion(Articulo estado);
+
+    /**
+     *
+     * Se llama con cada movimiento de unidades registrado
+     *
+     * @param codigo Código del artículo
+     * @param unidades Unidades añadidas, negativas si se han eliminado
+     */
+    void unidades(int codigo, int unidades);
+  }
+
+  /**
+   * Ruta del diario
+   */
+  private final Path archivo;
+  /**
+   * Número de registros pendientes a partir del cual se sincroniza con el disco
+   */
+  private final int loteFsync;
+  /**
+   * Ejecuta la sincronización periódica
+   */
+  private final ScheduledExecutorService ejecutor;
+  /**
+   * Canal de escritura del diario
+   */
+  private FileChannel canal;
+  /**
+   * Registros pendientes de escribir
+   */
+  private ByteBuffer pendiente = ByteBuffer.allocate(1 << 16);
+  /**
+   * Número de registros pendientes de sincronizar
+   */
+  private int numPendientes;
+  /**
+   * Número de registros escritos desde la última rotación
+   */
+  private long registros;
+  /**
+   * LSN del último registro añadido
+   */
+  private long lsn;
+  /**
+   * Calcula el CRC de cada registro
+   */
+  private final CRC32 crc = new CRC32();
+
+  /**
+   *
+   * Abre el diario para añadir registros. Si ya existe, descarta el final incompleto que haya
+   * dejado una caída y continúa la numeración.
+   *
+   * @param archivo Ruta del diario
+   * @param lsnMinimo Los nuevos registros tendrán un LSN mayor que este
+   * @param loteFsync Registros pendientes a partir de los cuales se sincroniza, 1 para sincronizar
+   *        cada registro
+   * @param intervaloMs Milisegundos máximos que un registro puede esperar a sincronizarse
+   * @throws IOException Se lanza si no se puede abrir el diario
+   */
+  DiarioMovimientos(Path archivo, long lsnMinimo, int loteFsync, long intervaloMs)
+      throws IOException {
+    if (loteFsync < 1 || intervaloMs < 1) {
+      throw new IllegalArgumentException("El lote y el intervalo deben ser mayores que 0.");
+    }
+    this.archivo = archivo;
+    this.loteFsync = loteFsync;
+    this.lsn = lsnMinimo;
+    abrir();
+    ejecutor = Executors.newSingleThreadScheduledExecutor(tarea -> {
+      Thread hilo = new Thread(tarea, "diario-almacen");
+      hilo.setDaemon(true);
+      return hilo;
+    });
+    ejecutor.scheduleWithFixedDelay(this::sincronizarEnSegundoPlano, intervaloMs, intervaloMs,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   *
+   * Registra el alta de un artículo
+   *
+   * @param articulo Artículo dado de alta
+   * @throws IOException Se lanza si hay un error en la escritura
+   */
+  void registrarAlta(Articulo articulo) throws IOException {
+    registrarArticulo(ALTA, articulo);
+  }
+
+  /**
+   *
+   * Registra la modificación de un artículo con su estado completo
+   *
+   * @param articulo Artículo ya modificado
+   * @throws IOException Se lanza si hay un error en la escritura
+   */
+  void registrarModificacion(Articulo articulo) throws IOException {
+    registrarArticulo(MODIFICACION, articulo);
+  }
+
+  /**
+   *
+   * Registra la baja de un artículo
+   *
+   * @param codigo Código del artículo
+   * @throws IOException Se lanza si hay un error en la escritura
+   */
+  synchronized void registrarBaja(int codigo) throws IOException {
+    int inicio = empezarRegistro(BAJA, Integer.BYTES);
+    pendiente.putInt(codigo);
+    terminarRegistro(inicio);
+  }
+
+  /**
+   *
+   * Registra un movimiento de unidades
+   *
+   * @param codigo Código del artículo
+   * @param unidades Unidades añadidas, negativas si se han eliminado
+   * @throws IOException Se lanza si hay un error en la escritura
+   */
+  synchronized void registrarUnidades(int codigo, int unidades) throws IOException {
+    int inicio = empezarRegistro(UNIDADES, 2 * Integer.BYTES);
+    pendiente.putInt(codigo);
+    pendiente.putInt(unidades);
+    terminarRegistro(inicio);
+  }
+
+  /**
+   *
+   * Escribe y sincroniza con el disco todos los registros pendientes
+   *
+   * @throws IOException Se lanza si hay un error en la escritura
+   */
+  synchronized void sincronizar() throws IOException {
+    if (numPendientes == 0) {
+      return;
+    }
+    pendiente.flip();
+    while (pendiente.hasRemaining()) {
+      canal.write(pendiente);
+    }
+    pendiente.clear();
+    canal.force(false);
+    numPendientes = 0;
+  }
+
+  /**
+   *
+   * Sincroniza el diario, lo renombra y empieza uno vacío en la misma ruta. Se usa al compactar:
+   * todo lo registrado hasta ahora queda en el archivo renombrado. Si el destino ya existe porque
+   * falló una compactación anterior, sus registros no están en ningún snapshot, así que los del
+   * diario se añaden a continuación y el diario se vacía sin cerrarlo. Si no se puede renombrar,
+   * el diario se vuelve a abrir y sigue registrando en la misma ruta.
+   *
+   * @param destino Nueva ruta del diario actual
+   * @return Devuelve el LSN del último registro que queda en el archivo renombrado
+   * @throws IOException Se lanza si hay un error al renombrar o abrir el diario
+   */
+  synchronized long rotar(Path destino) throws IOException {
+    sincronizar();
+    if (Files.exists(destino)) {
+      try (FileChannel anterior =
+          FileChannel.open(destino, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+        long copiados = 0;
+        while (copiados < canal.size()) {
+          copiados += canal.transferTo(copiados, canal.size() - copiados, anterior);
+        }
+        anterior.force(false);
+      }
+      // si hay una caída antes de vaciarlo, los registros repetidos se descartan por su LSN
+      canal.truncate(0);
+      canal.force(false);
+    } else {
+      canal.close();
+      try {
+        Files.move(archivo, destino);
+      } finally {
+        abrir();
+      }
+    }
+    registros = 0;
+    return lsn;
+  }
+
+  /**
+   *
+   * @return Devuelve el número de registros añadidos desde la última rotación
+   */
+  synchronized long getRegistros() {
+    return registros;
+  }
+
+  /**
+   * Sincroniza los registros pendientes y cierra el diario
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    ejecutor.shutdown();
+    try {
+      sincronizar();
+    } finally {
+      canal.close();
+    }
+  }
+
+  /**
+   *
+   * Lee los registros de un diario con LSN mayor que el pasado y se los entrega al receptor en
+   * orden. Se detiene en el primer registro incompleto o dañado.
+   *
+   * @param archivo Ruta del diario, si no existe no se hace nada
+   * @param desdeLsn Solo se entregan los registros con LSN mayor que este
+   * @param receptor Receptor de los movimientos
+   * @return Devuelve el LSN del último registro válido leído, o desdeLsn si no hay ninguno mayor
+   * @throws IOException Se lanza si hay un error en la lectura
+   */
+  static long reproducir(Path archivo, long desdeLsn, Receptor receptor) throws IOException {
+    if (!Files.exists(archivo)) {
+      return desdeLsn;
+    }
+    long ultimo = desdeLsn;
+    try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.READ)) {
+      ByteBuffer buffer = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+      CRC32 crc = new CRC32();
+      ByteBuffer cuerpo;
+      while ((cuerpo = siguienteRegistro(buffer, crc)) != null) {
+        long lsnRegistro = cuerpo.getLong();
+        byte tipo = cuerpo.get();
+        if (lsnRegistro <= desdeLsn) {
+          continue;
+        }
+        switch (tipo) {
+          case ALTA -> receptor.alta(leerArticulo(cuerpo));
+          case BAJA -> receptor.baja(cuerpo.getInt());
+          case MODIFICACION -> receptor.modificacion(leerArticulo(cuerpo));
+          case UNIDADES -> receptor.unidades(cuerpo.getInt(), cuerpo.getInt());
+          default -> throw new IOException("Tipo de registro desconocido en el diario: " + tipo);
+        }
+        ultimo = Math.max(ultimo, lsnRegistro);
+      }
+    } catch (ArticuloIllegalErrorArgumentException e) {
+      throw new IOException("El diario " + archivo + " no es válido: " + e.getMessage(), e);
+    }
+    return ultimo;
+  }
+
+  /**
+   *
+   * Abre el canal de escritura, recortando el final incompleto del diario si lo hay
+   *
+   * @throws IOException Se lanza si no se puede abrir el diario
+   */
+  private void abrir() throws IOException {
+    canal = FileChannel.open(archivo, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    ByteBuffer buffer = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+    CRC32 crcLectura = new CRC32();
+    ByteBuffer cuerpo;
+    while ((cuerpo = siguienteRegistro(buffer, crcLectura)) != null) {
+      lsn = Math.max(lsn, cuerpo.getLong());
+    }
+    if (buffer.position() < canal.size()) {
+      canal.truncate(buffer.position());
+    }
+    canal.position(buffer.position());
+  }
+
+  /**
+   *
+   * Sincroniza desde el hilo en segundo plano. Los errores se muestran y se reintentará en el
+   * siguiente ciclo o en el siguiente lote.
+   */
+  private void sincronizarEnSegundoPlano() {
+    try {
+      sincronizar();
+    } catch (IOException e) {
+      System.err.println("ERROR: Al sincronizar el diario " + archivo + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   *
+   * Registra un alta o una modificación con todos los datos del artículo
+   *
+   * @param tipo Tipo del registro
+   * @param articulo Artículo a registrar
+   * @throws IOException Se lanza si hay un error en la escritura
+   */
+  private synchronized void registrarArticulo(byte tipo, Articulo articulo) throws IOException {
+    byte[] nombre = articulo.getNombre().getBytes(StandardCharsets.UTF_8);
+    byte[] marca = articulo.getMarca().getBytes(StandardCharsets.UTF_8);
+    int inicio = empezarRegistro(tipo, 6 * Integer.BYTES + 2 * Double.BYTES + nombre.length
+        + marca.length);
+    pendiente.putInt(articulo.getCodigo());
+    pendiente.putInt(nombre.length).put(nombre);
+    pendiente.putInt(marca.length).put(marca);
+    pendiente.putDouble(articulo.getPrecioDeCompra());
+    pendiente.putDouble(articulo.getPrecioDeVenta());
+    pendiente.putInt(articulo.getNumeroDeUnidades());
+    pendiente.putInt(articulo.getStockDeSeguridad());
+    pendiente.putInt(articulo.getStockMaximo());
+    terminarRegistro(inicio);
+  }
+
+  /**
+   *
+   * Reserva espacio para un registro y escribe su cabecera
+   *
+   * @param tipo Tipo del registro
+   * @param datos Bytes de datos del registro tras el LSN y el tipo
+   * @return Devuelve la posición donde empieza el cuerpo del registro
+   */
+  private int empezarRegistro(byte tipo, int datos) {
+    int cuerpo = Long.BYTES + 1 + datos;
+    if (pendiente.remaining() < cuerpo + 2 * Integer.BYTES) {
+      ByteBuffer mayor =
+          ByteBuffer.allocate(Math.max(pendiente.capacity() * 2, pendiente.position() + cuerpo * 2));
+      pendiente.flip();
+      pendiente = mayor.put(pendiente);
+    }
+    pendiente.putInt(cuerpo);
+    int inicio = pendiente.position();
+    pendiente.putLong(++lsn);
+    pendiente.put(tipo);
+    return inicio;
+  }
+
+  /**
+   *
+   * Añade el CRC al registro y sincroniza si se ha completado el lote
+   *
+   * @param inicio Posición donde empieza el cuerpo del registro
+   * @throws IOException Se lanza si hay un error en la escritura
+   */
+  private void terminarRegistro(int inicio) throws IOException {
+    crc.reset();
+    crc.update(pendiente.array(), inicio, pendiente.position() - inicio);
+    pendiente.putInt((int) crc.getValue());
+    registros++;
+    if (++numPendientes >= loteFsync) {
+      sincronizar();
+    }
+  }
+
+  /**
+   *
+   * Lee el siguiente registro válido de un diario
+   *
+   * @param buffer Diario, situado al comienzo del registro. Si es válido queda situado al final.
+   * @param crc Calculador de CRC reutilizable
+   * @return Devuelve el cuerpo del registro o null si no hay más registros válidos
+   */
+  private static ByteBuffer siguienteRegistro(ByteBuffer buffer, CRC32 crc) {
+    if (buffer.remaining() < Integer.BYTES) {
+      return null;
+    }
+    int inicio = buffer.position();
+    int longitud = buffer.getInt(inicio);
+    if (longitud < Long.BYTES + 1 || longitud > buffer.remaining() - 2 * Integer.BYTES) {
+      return null;
+    }
+    ByteBuffer cuerpo = buffer.slice(inicio + Integer.BYTES, longitud);
+    crc.reset();
+    crc.update(cuerpo.duplicate());
+    if ((int) crc.getValue() != buffer.getInt(inicio + Integer.BYTES + longitud)) {
+      return null;
+    }
+    buffer.position(inicio + 2 * Integer.BYTES + longitud);
+    return cuerpo;
+  }
+
+  /**
+   *
+   * Lee los datos de un artículo de un registro de alta o modificación
+   *
+   * @param cuerpo Cuerpo del registro situado tras el tipo
+   * @return Devuelve el artículo leído
+   * @throws ArticuloIllegalErrorArgumentException Se lanza si los datos no son válidos
+   * @throws IOException Se lanza si el registro está incompleto
+   */
+  private static Articulo leerArticulo(ByteBuffer cuerpo)
+      throws ArticuloIllegalErrorArgumentException, IOException {
+    try {
+      int codigo = cuerpo.getInt();
+      String nombre = leerCadena(cuerpo);
+      String marca = leerCadena(cuerpo);
+      return new Articulo(codigo, nombre, marca, cuerpo.getDouble(), cuerpo.getDouble(),
+          cuerpo.getInt(), cuerpo.getInt(), cuerpo.getInt());
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Registro de artículo incompleto en el diario.", e);
+    }
+  }
+
+  /**
+   *
+   * Lee una cadena en UTF-8 precedida de su longitud
+   *
+   * @param buffer Buffer situado al comienzo de la cadena
+   * @return Devuelve la cadena leída
+   */
+  private static String leerCadena(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,23 @@
+package almacen;
+
+/**
+ * Destino al que se envían las métricas de un almacén, por ejemplo un sistema de monitorización o
+ * un registro. Se programa con
+ * {@link MetricasAlmacen#exportarCada(ExportadorMetricas, long, java.util.concurrent.TimeUnit)}.
+ *
+ * @author Javier Sánchez López
+ *
+ */
+@FunctionalInterface
+public interface ExportadorMetricas {
+
+  /**
+   *
+   * Envía las métricas. Se llama desde un hilo propio de las métricas, así que no debe tardar
+   * mucho.
+   *
+   * @param metricas Métricas del almacén, que se leen con sus consultas
+   */
+  void exportar(MetricasAlmacen metricas);
+
+}
@@ -0,0 +1,107 @@
+package almacen;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Genera los códigos de los artículos de un almacén.
+ *
+ * <p>
+ * Cada almacén tiene su propio generador, así que los códigos de un almacén no dependen de los
+ * artículos creados en otros. Para que varios hilos puedan dar de alta a la vez sin competir por
+ * un mismo contador, cada hilo reserva un bloque de códigos seguidos y los va usando sin
+ * sincronizarse con los demás hasta agotarlo. Los códigos de un bloque que no llegan a usarse se
+ * pierden, por lo que puede haber huecos entre códigos.
+ * </p>
+ *
+ * <p>
+ * El límite es el primer código que aún no se ha reservado. Al cargar artículos con su código se
+ * registra para que el límite quede por encima. Si el código ya estaba por debajo del límite, los
+ * bloques reservados antes se descartan porque podrían contenerlo.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+class GeneradorCodigos {
+
+  /**
+   * Número de códigos que reserva cada hilo de una vez
+   */
+  private static final int TAMANO_BLOQUE = 64;
+
+  /**
+   * Primer código que aún no se ha reservado
+   */
+  private final AtomicInteger limite = new AtomicInteger(1);
+  /**
+   * Aumenta cada vez que se registra un código por debajo del límite, para descartar los bloques
+   * reservados antes
+   */
+  private final AtomicInteger generacion = new AtomicInteger();
+  /**
+   * Bloque que está usando cada hilo
+   */
+  private final ThreadLocal<Bloque> bloques = ThreadLocal.withInitial(Bloque::new);
+
+  /**
+   *
+   * @return Devuelve un código que no se ha dado nunca en este almacén
+   * @throws IllegalStateException Se lanza si se han agotado los códigos
+   */
+  int siguiente() {
+    Bloque bloque = bloques.get();
+    int actual = generacion.get();
+    if (bloque.siguiente == bloque.fin || bloque.generacion != actual) {
+      int inicio = limite.getAndAdd(TAMANO_BLOQUE);
+      if (inicio <= 0 || inicio > Integer.MAX_VALUE - TAMANO_BLOQUE) {
+        throw new IllegalStateException("Se han agotado los códigos de artículo.");
+      }
+      bloque.siguiente = inicio;
+      bloque.fin = inicio + TAMANO_BLOQUE;
+      bloque.generacion = actual;
+    }
+    return bloque.siguiente++;
+  }
+
+  /**
+   *
+   * Indica que el código ya está en uso, para no darlo nunca. Si no sube el límite, los bloques
+   * reservados hasta ahora se descartan. Se usa al cargar artículos, cuando no se están generando
+   * códigos a la vez.
+   *
+   * @param codigo Código en uso
+   * @throws IllegalArgumentException Se lanza si el código es Integer.MAX_VALUE, que no deja
+   *         ningún código libre por encima
+   */
+  void registrar(int codigo) {
+    if (codigo <= 0) {
+      return;
+    }
+    if (codigo == Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("El código " + codigo + " es demasiado alto.");
+    }
+    // si el código sube el límite, todos los bloques reservados quedan por debajo de él
+    if (codigo < limite.getAndAccumulate(codigo + 1, Math::max)) {
+      generacion.incrementAndGet();
+    }
+  }
+
+  /**
+   *
+   * @return Devuelve el código más alto que puede haberse dado, 0 si no se ha dado ninguno. Es lo
+   *         que se guarda con el almacén para no repetir códigos al recargarlo.
+   */
+  int getUltimo() {
+    return limite.get() - 1;
+  }
+
+  /**
+   * Códigos reservados por un hilo, del siguiente a usar hasta fin sin incluir
+   */
+  private static final class Bloque {
+    private int siguiente;
+    private int fin;
+    private int generacion;
+  }
+
+}
@@ -0,0 +1,195 @@
+package almacen;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ejecuta los guardados de un almacén en un hilo propio, para que quien los pide no espere a que
+ * se escriba el archivo.
+ *
+ * <p>
+ * Los guardados pendientes se agrupan por archivo y formato: si se pide guardar un archivo en un
+ * formato y ya hay un guardado igual esperando a empezar, no se añade otro, se devuelve el mismo
+ * resultado. Como el guardado toma la vista del almacén al empezar, también incluye los cambios
+ * hechos antes de la segunda petición. Así, por muchas veces que se pida, cada archivo y formato
+ * tiene como mucho un guardado escribiendo y otro esperando.
+ * </p>
+ *
+ * <p>
+ * El hilo termina solo cuando lleva un tiempo sin guardados. No impide que la máquina virtual
+ * termine, así que antes de salir hay que llamar a {@link #cerrar()} para no perder los guardados
+ * pendientes.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+class GuardadoAsincrono {
+
+  /**
+   * Segundos sin guardados tras los que termina el hilo
+   */
+  private static final long ESPERA_HILO = 10;
+
+  /**
+   * Guardados que esperan a empezar, por archivo y formato. También protege el ejecutor.
+   */
+  private final Map<String, CompletableFuture<Void>> pendientes = new HashMap<>();
+  /**
+   * Hilo en el que se escriben los archivos, uno para que los guardados no compitan por el disco.
+   * Se crea con el primer guardado y vuelve a ser nulo al cerrar.
+   */
+  private ScheduledExecutorService ejecutor;
+
+  /**
+   *
+   * Pide un guardado en segundo plano, o se une al que ya espera para el mismo archivo y formato
+   *
+   * @param clave Ruta del archivo que se escribe y formato, con los que se agrupan los guardados
+   * @param guardado Escritura del archivo
+   * @return Devuelve un futuro que se completa al terminar de escribir, o con la excepción si falla
+   */
+  CompletableFuture<Void> guardar(String clave, Guardado guardado) {
+    synchronized (pendientes) {
+      return pedir(clave, guardado, ejecutor());
+    }
+  }
+
+  /**
+   *
+   * Guarda un archivo cada cierto tiempo. Los errores se muestran por la salida de errores y no
+   * detienen los siguientes guardados.
+   *
+   * @param clave Ruta del archivo que se escribe y formato
+   * @param guardado Escritura del archivo
+   * @param periodo Tiempo entre que se pide un guardado y se pide el siguiente, sin contar lo que
+   *        tarda en escribirse. Se escriben en el mismo hilo, así que nunca se solapan.
+   * @param unidad Unidad del periodo
+   * @return Devuelve la tarea programada, que se cancela para dejar de guardar
+   */
+  ScheduledFuture<?> programar(String clave, Guardado guardado, long periodo, TimeUnit unidad) {
+    synchronized (pendientes) {
+      ScheduledExecutorService hilo = ejecutor();
+      return hilo.scheduleWithFixedDelay(() -> {
+        CompletableFuture<Void> resultado;
+        synchronized (pendientes) {
+          if (hilo != ejecutor) {
+            // se ha cerrado mientras empezaba esta ejecución
+            return;
+          }
+          resultado = pedir(clave, guardado, hilo);
+        }
+        resultado.exceptionally(e -> {
+          System.err.println("ERROR: No se ha podido guardar " + clave + ": " + e.getMessage());
+          return null;
+        });
+      }, periodo, periodo, unidad);
+    }
+  }
+
+  /**
+   * Cancela los guardados periódicos, espera a que terminen los guardados pedidos hasta ahora y
+   * detiene el hilo. Un guardado pedido después vuelve a crear el hilo.
+   *
+   * @throws InterruptedException Se lanza si se interrumpe la espera
+   */
+  void cerrar() throws InterruptedException {
+    ScheduledExecutorService hilo;
+    synchronized (pendientes) {
+      hilo = ejecutor;
+      if (hilo == null) {
+        return;
+      }
+      ejecutor = null;
+      // las tareas periódicas se cancelan, las ya pedidas se ejecutan antes de terminar
+      hilo.shutdown();
+    }
+    hilo.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   *
+   * Pide un guardado al ejecutor, o se une al que ya espera para el mismo archivo y formato. Se
+   * llama con los pendientes bloqueados.
+   *
+   * @param clave Ruta del archivo que se escribe y formato
+   * @param guardado Escritura del archivo
+   * @param hilo Ejecutor actual
+   * @return Devuelve un futuro que se completa al terminar de escribir, o con la excepción si falla
+   */
+  private CompletableFuture<Void> pedir(String clave, Guardado guardado,
+      ScheduledExecutorService hilo) {
+    CompletableFuture<Void> pendiente = pendientes.get(clave);
+    if (pendiente == null) {
+      CompletableFuture<Void> nuevo = new CompletableFuture<>();
+      pendiente = nuevo;
+      pendientes.put(clave, nuevo);
+      hilo.execute(() -> ejecutar(clave, guardado, nuevo));
+    }
+    // una copia, para que cancelarla no afecte a los demás que esperan el mismo guardado
+    return pendiente.copy();
+  }
+
+  /**
+   *
+   * @return Devuelve el ejecutor, creándolo si no existe. Se llama con los pendientes bloqueados.
+   */
+  private ScheduledExecutorService ejecutor() {
+    if (ejecutor == null) {
+      ScheduledThreadPoolExecutor hilo = new ScheduledThreadPoolExecutor(1, tarea -> {
+        Thread t = new Thread(tarea, "almacen-guardado");
+        t.setDaemon(true);
+        return t;
+      });
+      hilo.setRemoveOnCancelPolicy(true);
+      // mientras haya un guardado periódico programado el hilo no termina
+      hilo.setKeepAliveTime(ESPERA_HILO, TimeUnit.SECONDS);
+      hilo.allowCoreThreadTimeOut(true);
+      ejecutor = hilo;
+    }
+    return ejecutor;
+  }
+
+  /**
+   *
+   * Ejecuta un guardado en el hilo del ejecutor. Se quita de los pendientes antes de empezar, así
+   * las peticiones que lleguen mientras escribe esperan a un guardado nuevo que verá sus cambios.
+   *
+   * @param clave Ruta del archivo que se escribe y formato
+   * @param guardado Escritura del archivo
+   * @param resultado Futuro que se completa al terminar
+   */
+  private void ejecutar(String clave, Guardado guardado, CompletableFuture<Void> resultado) {
+    synchronized (pendientes) {
+      pendientes.remove(clave);
+    }
+    try {
+      guardado.guardar();
+      resultado.complete(null);
+    } catch (IOException | RuntimeException | Error e) {
+      // también los errores, para que quien espera el guardado no se quede bloqueado
+      resultado.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Escritura de un archivo del almacén
+   */
+  interface Guardado {
+
+    /**
+     *
+     * Escribe el archivo
+     *
+     * @throws IOException Se lanza si hay un error en la escritura
+     */
+    void guardar() throws IOException;
+  }
+
+}
@@ -0,0 +1,163 @@
+package almacen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Conjunto de los artículos que están por debajo de su stock de seguridad.
+ *
+ * <p>
+ * Los artículos se guardan seguidos en un array y su posición en un {@link MapaIntInt}, así que
+ * añadir, quitar y comprobar un artículo cuesta O(1) y recorrer el conjunto cuesta O(k) en el
+ * número de artículos bajo stock, no en el tamaño del almacén. Al quitar un artículo su hueco se
+ * ocupa con el último, por lo que el orden no se conserva.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+class IndiceBajoStock implements ObservadorArticulos {
+
+  /**
+   * Artículos bajo stock, solo son válidas las primeras size posiciones
+   */
+  private Articulo[] articulos = new Articulo[16];
+  /**
+   * Posición en el array de cada artículo bajo stock, por código
+   */
+  private MapaIntInt posiciones = new MapaIntInt();
+  /**
+   * Número de artículos bajo stock
+   */
+  private int size;
+  /**
+   * Oyentes avisados al cruzar el stock de seguridad
+   */
+  private final List<AlertaStockListener> oyentes = new ArrayList<>();
+
+  /**
+   *
+   * @param articulo Artículo a comprobar
+   * @return Devuelve verdadero si el artículo tiene menos unidades que su stock de seguridad
+   */
+  static boolean estaBajoStock(Articulo articulo) {
+    return articulo.getNumeroDeUnidades() < articulo.getStockDeSeguridad();
+  }
+
+  @Override
+  public void alta(Articulo articulo) {
+    if (estaBajoStock(articulo)) {
+      insertar(articulo);
+      for (AlertaStockListener oyente : oyentes) {
+        oyente.stockBajo(articulo);
+      }
+    }
+  }
+
+  @Override
+  public void baja(Articulo articulo) {
+    quitar(articulo.getCodigo());
+  }
+
+  @Override
+  public void cambio(Articulo articulo) {
+    boolean estaba = posiciones.get(articulo.getCodigo()) != MapaIntInt.NO_ENCONTRADO;
+    boolean esta = estaBajoStock(articulo);
+    if (esta && !estaba) {
+      insertar(articulo);
+      for (AlertaStockListener oyente : oyentes) {
+        oyente.stockBajo(articulo);
+      }
+    } else if (estaba && !esta) {
+      quitar(articulo.getCodigo());
+      for (AlertaStockListener oyente : oyentes) {
+        oyente.stockRecuperado(articulo);
+      }
+    }
+  }
+
+  /**
+   * Reconstruye el conjunto sin avisar a los oyentes, ya que no es un cruce del umbral sino el
+   * estado con el que se ha cargado el almacén
+   */
+  @Override
+  public void reconstruir(Collection<Articulo> todos) {
+    Arrays.fill(articulos, 0, size, null);
+    posiciones = new MapaIntInt();
+    size = 0;
+    for (Articulo articulo : todos) {
+      if (estaBajoStock(articulo)) {
+        insertar(articulo);
+      }
+    }
+  }
+
+  /**
+   *
+   * @return Devuelve una copia de los artículos bajo stock, sin orden
+   */
+  List<Articulo> getArticulos() {
+    return new ArrayList<>(Arrays.asList(articulos).subList(0, size));
+  }
+
+  /**
+   *
+   * @return Devuelve el número de artículos bajo stock
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   *
+   * @param oyente Oyente a avisar al cruzar el stock de seguridad
+   */
+  void addOyente(AlertaStockListener oyente) {
+    oyentes.add(oyente);
+  }
+
+  /**
+   *
+   * @param oyente Oyente que deja de avisarse
+   * @return Devuelve verdadero si estaba registrado
+   */
+  boolean removeOyente(AlertaStockListener oyente) {
+    return oyentes.remove(oyente);
+  }
+
+  /**
+   *
+   * Añade un artículo al final del array
+   *
+   * @param articulo Artículo a añadir
+   */
+  private void insertar(Articulo articulo) {
+    if (size == articulos.length) {
+      articulos = Arrays.copyOf(articulos, size * 2);
+    }
+    posiciones.put(articulo.getCodigo(), size);
+    articulos[size++] = articulo;
+  }
+
+  /**
+   *
+   * Quita un artículo ocupando su hueco con el último
+   *
+   * @param codigo Código del artículo a quitar
+   */
+  private void quitar(int codigo) {
+    int pos = posiciones.remove(codigo);
+    if (pos == MapaIntInt.NO_ENCONTRADO) {
+      return;
+    }
+    Articulo ultimo = articulos[--size];
+    articulos[size] = null;
+    if (pos != size) {
+      articulos[pos] = ultimo;
+      posiciones.put(ultimo.getCodigo(), pos);
+    }
+  }
+
+}
@@ -0,0 +1,451 @@
+package almacen;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Índice de búsqueda por palabras del nombre y la marca de los artículos.
+ *
+ * <p>
+ * El nombre y la marca se parten en palabras, que se normalizan sin mayúsculas ni acentos y se
+ * guardan en un {@link TreeMap} con la lista de artículos que las contienen. Como las palabras
+ * están ordenadas, todas las que empiezan por un prefijo son un intervalo del mapa y la búsqueda
+ * mientras se escribe solo recorre los resultados que devuelve.
+ * </p>
+ *
+ * <p>
+ * La búsqueda aproximada calcula la distancia de Levenshtein recorriendo el mapa como si fuera un
+ * trie: las palabras que comparten prefijo reutilizan las filas ya calculadas, y en cuanto un
+ * prefijo supera la distancia máxima se saltan de una vez todas las palabras que empiezan por él.
+ * Aun así, su coste crece con el número de palabras distintas que comparten prefijos cortos con la
+ * buscada: con un vocabulario de palabras normales tarda unos milisegundos, y con cientos de miles
+ * de palabras distintas sin parecido entre sí puede llegar a cientos de milisegundos.
+ * </p>
+ *
+ * <p>
+ * Cada artículo recuerda su posición en la lista de cada una de sus palabras, así las bajas y los
+ * cambios de nombre o marca quitan el artículo de la lista en tiempo constante aunque la palabra
+ * la compartan muchos artículos.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+class IndiceBusqueda implements ObservadorArticulos {
+
+  /**
+   * Carácter mayor que cualquiera de una palabra normalizada, marca el final de un prefijo
+   */
+  private static final char FIN_PREFIJO = '\uffff';
+
+  /**
+   * Artículos que contienen cada palabra
+   */
+  private final TreeMap<String, List<Articulo>> palabras = new TreeMap<>();
+  /**
+   * Nombre, marca y palabras con que se indexó cada artículo, por código
+   */
+  private final Map<Integer, Entrada> entradas = new HashMap<>();
+  /**
+   * Longitud de la palabra más larga indexada
+   */
+  private int longitudMaxima;
+
+  @Override
+  public void alta(Articulo articulo) {
+    Entrada entrada = new Entrada(articulo);
+    entradas.put(articulo.getCodigo(), entrada);
+    for (int k = 0; k < entrada.palabras.length; k++) {
+      String palabra = entrada.palabras[k];
+      List<Articulo> lista = palabras.computeIfAbsent(palabra, p -> new ArrayList<>(1));
+      entrada.posiciones[k] = lista.size();
+      lista.add(articulo);
+      longitudMaxima = Math.max(longitudMaxima, palabra.length());
+    }
+  }
+
+  @Override
+  public void baja(Articulo articulo) {
+    Entrada entrada = entradas.remove(articulo.getCodigo());
+    if (entrada == null) {
+      return;
+    }
+    for (int k = 0; k < entrada.palabras.length; k++) {
+      String palabra = entrada.palabras[k];
+      List<Articulo> lista = palabras.get(palabra);
+      // el último de la lista ocupa el hueco del que se va
+      Articulo ultimo = lista.remove(lista.size() - 1);
+      if (ultimo != articulo) {
+        int posicion = entrada.posiciones[k];
+        lista.set(posicion, ultimo);
+        Entrada otra = entradas.get(ultimo.getCodigo());
+        otra.posiciones[otra.indice(palabra)] = posicion;
+      }
+      if (lista.isEmpty()) {
+        palabras.remove(palabra);
+      }
+    }
+  }
+
+  @Override
+  public void cambio(Articulo articulo) {
+    Entrada entrada = entradas.get(articulo.getCodigo());
+    if (entrada != null && (!entrada.nombre.equals(articulo.getNombre())
+        || !entrada.marca.equals(articulo.getMarca()))) {
+      baja(articulo);
+      alta(articulo);
+    }
+  }
+
+  @Override
+  public void reconstruir(Collection<Articulo> articulos) {
+    palabras.clear();
+    entradas.clear();
+    longitudMaxima = 0;
+    for (Articulo articulo : articulos) {
+      alta(articulo);
+    }
+  }
+
+  /**
+   *
+   * Busca los artículos que tienen, para cada palabra del texto, alguna palabra en el nombre o la
+   * marca que empieza por ella
+   *
+   * @param texto Texto escrito, con una o varias palabras
+   * @param limite Número máximo de artículos devueltos
+   * @return Devuelve los artículos encontrados, sin un orden concreto
+   */
+  List<Articulo> buscarPorPrefijo(String texto, int limite) {
+    String[] consulta = partir(texto);
+    List<Articulo> resultado = new ArrayList<>();
+    if (consulta.length == 0 || limite <= 0) {
+      return resultado;
+    }
+    // se recorren los artículos de la palabra de la consulta que menos tiene
+    String guia = consulta[0];
+    if (consulta.length > 1) {
+      int menor = Integer.MAX_VALUE;
+      for (String prefijo : consulta) {
+        int articulos =
+            contarHasta(palabras.subMap(prefijo, prefijo + FIN_PREFIJO).values(), menor);
+        if (articulos < menor) {
+          guia = prefijo;
+          menor = articulos;
+        }
+      }
+    }
+
+    Set<Articulo> vistos = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (List<Articulo> lista : palabras.subMap(guia, guia + FIN_PREFIJO).values()) {
+      for (Articulo articulo : lista) {
+        if (vistos.add(articulo)
+            && empiezanPorTodas(entradas.get(articulo.getCodigo()), consulta)) {
+          resultado.add(articulo);
+          if (resultado.size() == limite) {
+            return resultado;
+          }
+        }
+      }
+    }
+    return resultado;
+  }
+
+  /**
+   *
+   * Busca los artículos que tienen, para cada palabra del texto, alguna palabra en el nombre o la
+   * marca que se parece a ella aunque tenga errores de escritura. Se admite un error en palabras
+   * de 3 a 5 letras y dos en las más largas.
+   *
+   * @param texto Texto escrito, con una o varias palabras
+   * @param limite Número máximo de artículos devueltos
+   * @return Devuelve los artículos encontrados, primero los que tienen menos errores
+   */
+  List<Articulo> buscarAproximado(String texto, int limite) {
+    String[] consulta = partir(texto);
+    if (consulta.length == 0 || limite <= 0) {
+      return new ArrayList<>();
+    }
+    List<Map<String, Integer>> cercanas = new ArrayList<>(consulta.length);
+    Map<String, Integer> guia = null;
+    int menor = Integer.MAX_VALUE;
+    for (String palabra : consulta) {
+      Map<String, Integer> parecidas = palabrasCercanas(palabra, distanciaMaxima(palabra));
+      if (parecidas.isEmpty()) {
+        return new ArrayList<>();
+      }
+      cercanas.add(parecidas);
+      List<List<Articulo>> listas = new ArrayList<>(parecidas.size());
+      for (String parecida : parecidas.keySet()) {
+        listas.add(palabras.get(parecida));
+      }
+      int articulos = contarHasta(listas, menor);
+      if (articulos < menor) {
+        guia = parecidas;
+        menor = articulos;
+      }
+    }
+
+    // las palabras de la guía se recorren de menos a más errores; los artículos que quedan por
+    // ver tienen al menos los errores de la palabra actual, así que se para en cuanto hay
+    // suficientes artículos que no pueden ser superados
+    List<List<String>> porDistancia = new ArrayList<>();
+    for (Map.Entry<String, Integer> parecida : guia.entrySet()) {
+      while (porDistancia.size() <= parecida.getValue()) {
+        porDistancia.add(new ArrayList<>());
+      }
+      porDistancia.get(parecida.getValue()).add(parecida.getKey());
+    }
+    Map<Articulo, Integer> errores = new IdentityHashMap<>();
+    int[] conErrores = new int[consulta.length * 2 + 2];
+    busqueda:
+    for (int minimo = 0; minimo < porDistancia.size(); minimo++) {
+      for (String palabra : porDistancia.get(minimo)) {
+        for (Articulo articulo : palabras.get(palabra)) {
+          if (!errores.containsKey(articulo)) {
+            int total = errores(entradas.get(articulo.getCodigo()), cercanas);
+            if (total >= 0) {
+              errores.put(articulo, total);
+              conErrores[total]++;
+            }
+          }
+          if (insuperables(conErrores, minimo) >= limite) {
+            break busqueda;
+          }
+        }
+      }
+    }
+
+    List<Articulo> resultado = new ArrayList<>(errores.keySet());
+    resultado.sort(Comparator.comparingInt(errores::get));
+    return resultado.size() > limite ? new ArrayList<>(resultado.subList(0, limite)) : resultado;
+  }
+
+  /**
+   *
+   * @param conErrores Número de artículos encontrados con cada total de errores
+   * @param minimo Errores mínimos de los artículos que quedan por ver
+   * @return Devuelve cuántos artículos encontrados tienen como mucho esos errores
+   */
+  private static int insuperables(int[] conErrores, int minimo) {
+    int total = 0;
+    for (int i = 0; i <= minimo; i++) {
+      total += conErrores[i];
+    }
+    return total;
+  }
+
+  /**
+   *
+   * Suma el tamaño de las listas, dejando de contar en cuanto se alcanza la cota
+   *
+   * @param listas Listas de artículos
+   * @param cota Valor a partir del cual no interesa el total exacto
+   * @return Devuelve el total o un valor no menor que la cota
+   */
+  private static int contarHasta(Collection<List<Articulo>> listas, int cota) {
+    int total = 0;
+    for (List<Articulo> lista : listas) {
+      total += lista.size();
+      if (total >= cota) {
+        break;
+      }
+    }
+    return total;
+  }
+
+  /**
+   *
+   * Busca las palabras indexadas a una distancia de la dada no mayor que la pasada. La distancia
+   * es la de Levenshtein contando además el intercambio de dos letras seguidas como un solo error.
+   *
+   * @param buscada Palabra normalizada
+   * @param maxima Distancia máxima
+   * @return Devuelve cada palabra cercana con su distancia
+   */
+  private Map<String, Integer> palabrasCercanas(String buscada, int maxima) {
+    Map<String, Integer> cercanas = new HashMap<>();
+    int m = buscada.length();
+    // fila i: distancias entre el prefijo de longitud i de la palabra actual y los de la buscada
+    int[][] filas = new int[longitudMaxima + 1][m + 1];
+    for (int j = 0; j <= m; j++) {
+      filas[0][j] = j;
+    }
+    String anterior = "";
+    int validas = 0;
+    String palabra = palabras.isEmpty() ? null : palabras.firstKey();
+    while (palabra != null) {
+      int i = Math.min(prefijoComun(anterior, palabra), validas);
+      boolean podada = false;
+      for (; i < palabra.length(); i++) {
+        int[] previa = filas[i];
+        int[] fila = filas[i + 1];
+        char c = palabra.charAt(i);
+        fila[0] = i + 1;
+        int minimo = fila[0];
+        for (int j = 1; j <= m; j++) {
+          int sustitucion = previa[j - 1] + (buscada.charAt(j - 1) == c ? 0 : 1);
+          fila[j] = Math.min(Math.min(previa[j] + 1, fila[j - 1] + 1), sustitucion);
+          if (i > 0 && j > 1 && c == buscada.charAt(j - 2)
+              && palabra.charAt(i - 1) == buscada.charAt(j - 1)) {
+            fila[j] = Math.min(fila[j], filas[i - 1][j - 2] + 1);
+          }
+          minimo = Math.min(minimo, fila[j]);
+        }
+        if (minimo > maxima) {
+          podada = true;
+          break;
+        }
+      }
+      anterior = palabra;
+      if (podada) {
+        // ninguna palabra que empiece por este prefijo puede estar cerca
+        validas = i + 1;
+        palabra = palabras.higherKey(palabra.substring(0, i + 1) + FIN_PREFIJO);
+      } else {
+        validas = palabra.length();
+        if (filas[validas][m] <= maxima) {
+          cercanas.put(palabra, filas[validas][m]);
+        }
+        palabra = palabras.higherKey(palabra);
+      }
+    }
+    return cercanas;
+  }
+
+  /**
+   *
+   * @param entrada Entrada de un artículo
+   * @param consulta Palabras normalizadas de la consulta
+   * @return Devuelve verdadero si para cada palabra de la consulta el artículo tiene alguna que
+   *         empieza por ella
+   */
+  private static boolean empiezanPorTodas(Entrada entrada, String[] consulta) {
+    for (String prefijo : consulta) {
+      boolean encontrada = false;
+      for (String palabra : entrada.palabras) {
+        if (palabra.startsWith(prefijo)) {
+          encontrada = true;
+          break;
+        }
+      }
+      if (!encontrada) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   *
+   * Suma, para cada palabra de la consulta, la menor distancia a las palabras del artículo
+   *
+   * @param entrada Entrada de un artículo
+   * @param cercanas Palabras cercanas a cada palabra de la consulta, con su distancia
+   * @return Devuelve el total de errores o -1 si alguna palabra de la consulta no está cerca de
+   *         ninguna del artículo
+   */
+  private static int errores(Entrada entrada, List<Map<String, Integer>> cercanas) {
+    int total = 0;
+    for (Map<String, Integer> parecidas : cercanas) {
+      int minimo = Integer.MAX_VALUE;
+      for (String palabra : entrada.palabras) {
+        Integer distancia = parecidas.get(palabra);
+        if (distancia != null && distancia < minimo) {
+          minimo = distancia;
+        }
+      }
+      if (minimo == Integer.MAX_VALUE) {
+        return -1;
+      }
+      total += minimo;
+    }
+    return total;
+  }
+
+  /**
+   *
+   * @param palabra Palabra de la consulta
+   * @return Devuelve el número de errores que se admiten en la palabra
+   */
+  private static int distanciaMaxima(String palabra) {
+    return palabra.length() <= 2 ? 0 : palabra.length() <= 5 ? 1 : 2;
+  }
+
+  /**
+   *
+   * @param a Primera cadena
+   * @param b Segunda cadena
+   * @return Devuelve la longitud del prefijo común de las dos cadenas
+   */
+  private static int prefijoComun(String a, String b) {
+    int n = Math.min(a.length(), b.length());
+    int i = 0;
+    while (i < n && a.charAt(i) == b.charAt(i)) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   *
+   * Parte un texto en palabras normalizadas, sin mayúsculas ni acentos
+   *
+   * @param texto Texto a partir
+   * @return Devuelve las palabras distintas del texto
+   */
+  static String[] partir(String texto) {
+    String normalizado = IndiceNombreMarca.normalizar(texto, true, true);
+    List<String> resultado = new ArrayList<>();
+    int inicio = -1;
+    for (int i = 0; i <= normalizado.length(); i++) {
+      boolean letra = i < normalizado.length() && Character.isLetterOrDigit(normalizado.charAt(i));
+      if (letra && inicio < 0) {
+        inicio = i;
+      } else if (!letra && inicio >= 0) {
+        String palabra = normalizado.substring(inicio, i);
+        if (!resultado.contains(palabra)) {
+          resultado.add(palabra);
+        }
+        inicio = -1;
+      }
+    }
+    return resultado.toArray(new String[0]);
+  }
+
+  /**
+   * Nombre y marca con que se indexó un artículo, sus palabras y su posición en la lista de
+   * artículos de cada palabra
+   */
+  private static final class Entrada {
+
+    private final String nombre;
+    private final String marca;
+    private final String[] palabras;
+    private final int[] posiciones;
+
+    Entrada(Articulo articulo) {
+      this.nombre = articulo.getNombre();
+      this.marca = articulo.getMarca();
+      this.palabras = partir(nombre + " " + marca);
+      this.posiciones = new int[palabras.length];
+    }
+
+    int indice(String palabra) {
+      int k = 0;
+      while (!palabras[k].equals(palabra)) {
+        k++;
+      }
+      return k;
+    }
+  }
+
+}
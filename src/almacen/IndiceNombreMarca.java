@@ -0,0 +1,202 @@
+package almacen;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Índice único de artículos por la pareja (nombre, marca).
+ *
+ * <p>
+ * Permite comprobar en tiempo constante si ya existe un artículo con el mismo nombre y marca. De
+ * forma opcional las claves se normalizan ignorando mayúsculas y acentos, de modo que
+ * "Camión"/"ACME" y "camion"/"Acme" se consideran el mismo artículo.
+ * </p>
+ *
+ * <p>
+ * El índice es seguro para hilos si el mapa que recibe lo es, ya que todas las altas se hacen con
+ * {@link Map#putIfAbsent} y las bajas con {@link Map#remove(Object, Object)}.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+class IndiceNombreMarca {
+
+  /**
+   * Marcas diacríticas que quedan separadas de la letra al descomponer la cadena
+   */
+  private static final Pattern DIACRITICOS = Pattern.compile("\\p{M}+");
+
+  /**
+   * Artículos indexados por su clave normalizada
+   */
+  private final Map<String, Articulo> articulos;
+  /**
+   * Indica si se ignoran las mayúsculas al comparar
+   */
+  private final boolean ignorarMayusculas;
+  /**
+   * Indica si se ignoran los acentos al comparar
+   */
+  private final boolean ignorarAcentos;
+
+  /**
+   *
+   * Crea un índice vacío
+   *
+   * @param articulos Mapa vacío donde se guardan los artículos
+   * @param ignorarMayusculas Verdadero si "Marca" y "marca" se consideran iguales
+   * @param ignorarAcentos Verdadero si "Camión" y "Camion" se consideran iguales
+   */
+  IndiceNombreMarca(Map<String, Articulo> articulos, boolean ignorarMayusculas,
+      boolean ignorarAcentos) {
+    this.articulos = articulos;
+    this.ignorarMayusculas = ignorarMayusculas;
+    this.ignorarAcentos = ignorarAcentos;
+  }
+
+  /**
+   *
+   * Devuelve el artículo con el nombre y marca pasados
+   *
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @return Devuelve el artículo o null si no existe
+   */
+  Articulo get(String nombre, String marca) {
+    return articulos.get(clave(nombre, marca));
+  }
+
+  /**
+   *
+   * Comprueba si existe un artículo con el nombre y marca pasados
+   *
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @return Devuelve verdadero si existe
+   */
+  boolean contains(String nombre, String marca) {
+    return articulos.containsKey(clave(nombre, marca));
+  }
+
+  /**
+   *
+   * Indexa el artículo por su nombre y marca actuales. Si ya hay otro artículo con la misma clave
+   * se mantiene el existente.
+   *
+   * @param articulo Artículo a indexar
+   * @return Devuelve verdadero si se ha indexado
+   */
+  boolean put(Articulo articulo) {
+    return reservar(articulo.getNombre(), articulo.getMarca(), articulo) == null;
+  }
+
+  /**
+   *
+   * Asocia el nombre y marca pasados al artículo si no pertenecen ya a otro. Se usa antes de
+   * modificar un artículo para reservar su nueva clave.
+   *
+   * @param nombre Nombre que tendrá el artículo
+   * @param marca Marca que tendrá el artículo
+   * @param articulo Artículo al que se asocia la clave
+   * @return Devuelve el artículo que ya tenía la clave o null si se ha reservado
+   */
+  Articulo reservar(String nombre, String marca, Articulo articulo) {
+    return articulos.putIfAbsent(clave(nombre, marca), articulo);
+  }
+
+  /**
+   *
+   * Actualiza el índice después de cambiar el nombre o la marca de un artículo
+   *
+   * @param nombreAnterior Nombre que tenía el artículo
+   * @param marcaAnterior Marca que tenía el artículo
+   * @param articulo Artículo ya modificado
+   */
+  void reindexar(String nombreAnterior, String marcaAnterior, Articulo articulo) {
+    String anterior = clave(nombreAnterior, marcaAnterior);
+    String actual = clave(articulo.getNombre(), articulo.getMarca());
+    if (!anterior.equals(actual)) {
+      articulos.putIfAbsent(actual, articulo);
+      articulos.remove(anterior, articulo);
+    }
+  }
+
+  /**
+   *
+   * Libera una clave reservada con {@link #reservar} si finalmente el artículo no la usa
+   *
+   * @param nombre Nombre reservado
+   * @param marca Marca reservada
+   * @param articulo Artículo que hizo la reserva
+   */
+  void liberar(String nombre, String marca, Articulo articulo) {
+    String reservada = clave(nombre, marca);
+    if (!reservada.equals(clave(articulo.getNombre(), articulo.getMarca()))) {
+      articulos.remove(reservada, articulo);
+    }
+  }
+
+  /**
+   *
+   * Quita el artículo del índice usando su nombre y marca actuales
+   *
+   * @param articulo Artículo a quitar
+   */
+  void remove(Articulo articulo) {
+    articulos.remove(clave(articulo.getNombre(), articulo.getMarca()), articulo);
+  }
+
+  /**
+   * Vacía el índice
+   */
+  void clear() {
+    articulos.clear();
+  }
+
+  /**
+   *
+   * Construye la clave compuesta de un artículo
+   *
+   * @param nombre Nombre del artículo
+   * @param marca Marca del artículo
+   * @return Devuelve la clave normalizada
+   */
+  private String clave(String nombre, String marca) {
+    return normalizar(nombre) + '\u0000' + normalizar(marca);
+  }
+
+  /**
+   *
+   * Normaliza una cadena según la configuración del índice
+   *
+   * @param cadena Cadena a normalizar
+   * @return Devuelve la cadena normalizada
+   */
+  private String normalizar(String cadena) {
+    return normalizar(cadena, ignorarMayusculas, ignorarAcentos);
+  }
+
+  /**
+   *
+   * Normaliza una cadena para compararla
+   *
+   * @param cadena Cadena a normalizar
+   * @param ignorarMayusculas Verdadero si se pasa a minúsculas
+   * @param ignorarAcentos Verdadero si se quitan los acentos
+   * @return Devuelve la cadena normalizada
+   */
+  static String normalizar(String cadena, boolean ignorarMayusculas, boolean ignorarAcentos) {
+    if (ignorarAcentos) {
+      cadena = DIACRITICOS.matcher(Normalizer.normalize(cadena, Normalizer.Form.NFD))
+          .replaceAll("");
+    }
+    if (ignorarMayusculas) {
+      cadena = cadena.toLowerCase(Locale.ROOT);
+    }
+    return cadena;
+  }
+
+}
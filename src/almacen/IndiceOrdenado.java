@@ -0,0 +1,175 @@
+package almacen;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+/**
+ * Índice de los artículos ordenados por uno de sus campos numéricos.
+ *
+ * <p>
+ * Cada artículo tiene una entrada con el valor del campo en el momento de indexarlo, ordenada por
+ * ese valor y, a igualdad, por código. Cuando el artículo cambia se busca su entrada por código y
+ * solo se mueve si el valor ha cambiado, así que un movimiento de unidades no cuesta nada a los
+ * índices de precios. Las consultas por rango y los mayores N recorren el árbol bajo demanda y no
+ * copian nada.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+class IndiceOrdenado implements ObservadorArticulos {
+
+  /**
+   * Campo por el que se ordena
+   */
+  private final CampoOrdenable campo;
+  /**
+   * Entradas ordenadas por valor y código
+   */
+  private final NavigableSet<Entrada> ordenadas = new TreeSet<>();
+  /**
+   * Entrada actual de cada artículo, por código
+   */
+  private final Map<Integer, Entrada> entradas = new HashMap<>();
+
+  /**
+   *
+   * Crea un índice vacío
+   *
+   * @param campo Campo por el que se ordena
+   */
+  IndiceOrdenado(CampoOrdenable campo) {
+    this.campo = campo;
+  }
+
+  @Override
+  public void alta(Articulo articulo) {
+    Entrada entrada = new Entrada(campo.valor(articulo), articulo.getCodigo(), articulo);
+    ordenadas.add(entrada);
+    entradas.put(articulo.getCodigo(), entrada);
+  }
+
+  @Override
+  public void baja(Articulo articulo) {
+    Entrada entrada = entradas.remove(articulo.getCodigo());
+    if (entrada != null) {
+      ordenadas.remove(entrada);
+    }
+  }
+
+  @Override
+  public void cambio(Articulo articulo) {
+    Entrada entrada = entradas.get(articulo.getCodigo());
+    if (entrada == null) {
+      return;
+    }
+    if (Double.compare(entrada.valor, campo.valor(articulo)) != 0) {
+      ordenadas.remove(entrada);
+      alta(articulo);
+    }
+  }
+
+  @Override
+  public void reconstruir(Collection<Articulo> articulos) {
+    ordenadas.clear();
+    entradas.clear();
+    for (Articulo articulo : articulos) {
+      alta(articulo);
+    }
+  }
+
+  /**
+   *
+   * Recorre los artículos cuyo valor está entre los límites, ambos incluidos, de menor a mayor
+   *
+   * @param desde Límite inferior
+   * @param hasta Límite superior
+   * @return Devuelve un iterador sobre el índice, no válido si el almacén cambia mientras se usa
+   */
+  Iterator<Articulo> rango(double desde, double hasta) {
+    if (Double.compare(desde, hasta) > 0) {
+      return Collections.emptyIterator();
+    }
+    Entrada inicio = new Entrada(desde, Integer.MIN_VALUE, null);
+    Entrada fin = new Entrada(hasta, Integer.MAX_VALUE, null);
+    return articulos(ordenadas.subSet(inicio, true, fin, true).iterator());
+  }
+
+  /**
+   *
+   * Recorre los n artículos con mayor valor, de mayor a menor
+   *
+   * @param n Número máximo de artículos
+   * @return Devuelve un iterador sobre el índice, no válido si el almacén cambia mientras se usa
+   */
+  Iterator<Articulo> mayores(int n) {
+    Iterator<Entrada> it = ordenadas.descendingIterator();
+    return new Iterator<Articulo>() {
+      private int quedan = n;
+
+      @Override
+      public boolean hasNext() {
+        return quedan > 0 && it.hasNext();
+      }
+
+      @Override
+      public Articulo next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        quedan--;
+        return it.next().articulo;
+      }
+    };
+  }
+
+  /**
+   *
+   * Convierte un iterador de entradas en uno de artículos
+   *
+   * @param it Iterador de entradas
+   * @return Devuelve el iterador de artículos
+   */
+  private static Iterator<Articulo> articulos(Iterator<Entrada> it) {
+    return new Iterator<Articulo>() {
+      @Override
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      @Override
+      public Articulo next() {
+        return it.next().articulo;
+      }
+    };
+  }
+
+  /**
+   * Entrada del índice: valor del campo al indexar, código y artículo
+   */
+  private static final class Entrada implements Comparable<Entrada> {
+
+    private final double valor;
+    private final int codigo;
+    private final Articulo articulo;
+
+    Entrada(double valor, int codigo, Articulo articulo) {
+      this.valor = valor;
+      this.codigo = codigo;
+      this.articulo = articulo;
+    }
+
+    @Override
+    public int compareTo(Entrada otra) {
+      int c = Double.compare(valor, otra.valor);
+      return c != 0 ? c : Integer.compare(codigo, otra.codigo);
+    }
+  }
+
+}
@@ -0,0 +1,218 @@
+package almacen;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Vista de solo lectura de un {@link Almacen} tal como estaba en un instante.
+ *
+ * <p>
+ * Crearla solo copia las referencias a los artículos, sin copiar los artículos. Mientras está
+ * abierta, antes de modificar por primera vez un artículo o de darlo de baja el almacén guarda en
+ * la vista una copia de su estado anterior (copia al escribir), así que recorrerla siempre da los
+ * artículos como estaban al crearla. Las altas posteriores no aparecen. Los movimientos que ya
+ * estaban en curso al crearla pueden aparecer o no, pero cada artículo se ve siempre entero.
+ * </p>
+ *
+ * <p>
+ * La vista se puede crear desde cualquier hilo y después recorrer, exportar o analizar mientras
+ * el almacén sigue cambiando. Hay que cerrarla al terminar, porque
+ * mientras está abierta cada primer cambio de un artículo cuesta una copia. Los artículos que
+ * devuelve son copias, modificarlos no cambia ni la vista ni el almacén.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public final class InstantaneaAlmacen extends AbstractCollection<Articulo>
+    implements AutoCloseable {
+
+  /**
+   * Artículos del almacén al crear la vista
+   */
+  private final Articulo[] articulos;
+  /**
+   * Estado anterior de los artículos que han cambiado desde que se creó la vista, por código
+   */
+  private final Map<Integer, Articulo> anteriores = new ConcurrentHashMap<>();
+  /**
+   * Último código que había dado el almacén al crear la vista
+   */
+  private final int ultimoCodigo;
+  /**
+   * Vistas abiertas del almacén, de la que se quita al cerrarla
+   */
+  private final List<InstantaneaAlmacen> abiertas;
+  /**
+   * Verdadero cuando se ha cerrado la vista
+   */
+  private volatile boolean cerrada;
+
+  /**
+   *
+   * Crea una vista y la añade a las vistas abiertas del almacén. Se añade antes de copiar las
+   * referencias para no perder ningún cambio posterior.
+   *
+   * @param articulos Artículos del almacén
+   * @param ultimoCodigo Último código que ha dado el almacén
+   * @param abiertas Vistas abiertas del almacén
+   */
+  InstantaneaAlmacen(List<Articulo> articulos, int ultimoCodigo,
+      List<InstantaneaAlmacen> abiertas) {
+    this.abiertas = abiertas;
+    this.ultimoCodigo = ultimoCodigo;
+    abiertas.add(this);
+    this.articulos = articulos.toArray(new Articulo[0]);
+  }
+
+  /**
+   *
+   * Guarda el estado actual de un artículo si es la primera vez que cambia desde que se creó la
+   * vista. Se llama antes de cambiarlo o después de darlo de baja.
+   *
+   * @param articulo Artículo que va a cambiar
+   */
+  void preservar(Articulo articulo) {
+    if (!anteriores.containsKey(articulo.getCodigo())) {
+      anteriores.putIfAbsent(articulo.getCodigo(), new Articulo(articulo));
+      // el estado anterior tiene que ser visible antes que cualquier escritura del cambio
+      VarHandle.storeStoreFence();
+    }
+  }
+
+  /**
+   *
+   * @param articulo Artículo del almacén
+   * @return Devuelve una copia del artículo tal como estaba al crear la vista
+   */
+  private Articulo leer(Articulo articulo) {
+    if (cerrada) {
+      throw new IllegalStateException("La instantánea está cerrada.");
+    }
+    Articulo anterior = anteriores.get(articulo.getCodigo());
+    if (anterior == null) {
+      Articulo copia = new Articulo(articulo);
+      // si la copia ha visto parte de un cambio, también verá el estado anterior que se guardó
+      // antes de empezarlo
+      VarHandle.loadLoadFence();
+      anterior = anteriores.get(articulo.getCodigo());
+      if (anterior == null) {
+        return copia;
+      }
+    }
+    return new Articulo(anterior);
+  }
+
+  /**
+   *
+   * @return Devuelve un iterador sobre copias de los artículos tal como estaban al crear la vista,
+   *         en el orden del almacén
+   */
+  @Override
+  public Iterator<Articulo> iterator() {
+    return new Iterator<>() {
+      private int siguiente;
+
+      @Override
+      public boolean hasNext() {
+        return siguiente < articulos.length;
+      }
+
+      @Override
+      public Articulo next() {
+        if (siguiente >= articulos.length) {
+          throw new NoSuchElementException();
+        }
+        return leer(articulos[siguiente++]);
+      }
+    };
+  }
+
+  /**
+   *
+   * @return Devuelve el número de artículos que tenía el almacén al crear la vista
+   */
+  @Override
+  public int size() {
+    return articulos.length;
+  }
+
+  /**
+   *
+   * Calcula el análisis del inventario tal como estaba al crear la vista
+   *
+   * @return Devuelve el análisis del inventario
+   */
+  public AnalisisInventario analizar() {
+    return AnalisisInventario.calcular(toArray(new Articulo[0]));
+  }
+
+  /**
+   *
+   * Guarda la vista en un archivo json, con el mismo formato que {@link Almacen#save(String,
+   * boolean)}
+   *
+   * @param filename Nombre del archivo para guardar el contenido
+   * @param compacto Verdadero para escribir sin sangrías ni saltos de línea
+   * @throws IOException Se lanza cuando hay un error en la escritura
+   */
+  public void save(String filename, boolean compacto) throws IOException {
+    Almacen.escribirJson(filename, compacto, this, ultimoCodigo);
+  }
+
+  /**
+   *
+   * Guarda la vista en un archivo XML, con el mismo formato que el del almacén
+   *
+   * @param archive Nombre del archivo en el que se guarda
+   * @throws IOException Se lanza cuando hay un error en la escritura
+   */
+  public void changeFormatToXml(String archive) throws IOException {
+    Almacen.escribirXml(archive, this);
+  }
+
+  /**
+   *
+   * Guarda la vista en un snapshot binario, con el mismo formato que
+   * {@link Almacen#saveSnapshot(String)}
+   *
+   * @param archive Nombre del archivo en el que se guarda
+   * @throws IOException Se lanza cuando hay un error en la escritura
+   */
+  public void saveSnapshot(String archive) throws IOException {
+    SnapshotBinario.escribir(Path.of(archive), this, ultimoCodigo);
+  }
+
+  /**
+   *
+   * Guarda la vista en un snapshot binario que recuerda hasta dónde incluye el diario de
+   * movimientos y, si es la base de una cadena de snapshots incrementales, de qué cadena
+   *
+   * @param archivo Ruta del snapshot
+   * @param lsn Número del último movimiento del diario que ya está aplicado a la vista, 0 si no
+   *        hay diario
+   * @param cadena Identificador de la cadena, 0 si no es parte de una cadena
+   * @throws IOException Se lanza cuando hay un error en la escritura
+   */
+  void saveSnapshot(Path archivo, long lsn, long cadena) throws IOException {
+    SnapshotBinario.escribir(archivo, this, lsn, ultimoCodigo, cadena, 0, new int[0]);
+  }
+
+  /**
+   * Cierra la vista. A partir de ahora el almacén deja de guardar estados anteriores para ella y
+   * ya no se puede recorrer.
+   */
+  @Override
+  public void close() {
+    cerrada = true;
+    abiertas.remove(this);
+  }
+
+}
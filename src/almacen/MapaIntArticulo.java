@@ -0,0 +1,212 @@
+package almacen;
+
+import java.util.Arrays;
+
+/**
+ * Tabla hash de direccionamiento abierto con claves primitivas int y valores de la clase
+ * {@link Articulo}.
+ *
+ * <p>
+ * Se usa como índice primario del almacén por código de artículo. Al no usar claves
+ * {@link Integer} evita el boxing en cada búsqueda. Las colisiones se resuelven con sondeo lineal
+ * y el borrado desplaza hacia atrás los elementos del mismo grupo, por lo que no deja marcas de
+ * borrado.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+class MapaIntArticulo {
+
+  /**
+   * Capacidad inicial de la tabla, siempre potencia de 2
+   */
+  private static final int CAPACIDAD_INICIAL = 16;
+
+  /**
+   * Claves almacenadas, solo son válidas las posiciones cuyo valor no es nulo
+   */
+  private int[] claves;
+  /**
+   * Artículos almacenados, null indica una posición libre
+   */
+  private Articulo[] valores;
+  /**
+   * Número de elementos del mapa
+   */
+  private int size;
+  /**
+   * Número de elementos a partir del cual se duplica la tabla
+   */
+  private int umbral;
+
+  /**
+   * Crea un mapa vacío
+   */
+  MapaIntArticulo() {
+    this(CAPACIDAD_INICIAL);
+  }
+
+  /**
+   * Crea un mapa con capacidad para el número de elementos pasado sin redimensionar
+   *
+   * @param elementosEsperados Número de elementos que se espera almacenar
+   */
+  MapaIntArticulo(int elementosEsperados) {
+    int capacidad = CAPACIDAD_INICIAL;
+    while (capacidad * 3 / 4 < elementosEsperados) {
+      capacidad <<= 1;
+    }
+    reservar(capacidad);
+  }
+
+  /**
+   *
+   * Devuelve el artículo asociado al código
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el artículo o null si no existe
+   */
+  Articulo get(int codigo) {
+    int mascara = valores.length - 1;
+    for (int i = posicion(codigo, mascara); valores[i] != null; i = (i + 1) & mascara) {
+      if (claves[i] == codigo) {
+        return valores[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   *
+   * Comprueba si existe un artículo con el código pasado
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve verdadero si existe
+   */
+  boolean containsKey(int codigo) {
+    return get(codigo) != null;
+  }
+
+  /**
+   *
+   * Asocia el artículo a su código, sustituyendo el anterior si existía
+   *
+   * @param codigo Código del artículo
+   * @param articulo Artículo a guardar, no puede ser null
+   * @return Devuelve el artículo sustituido o null si no existía
+   */
+  Articulo put(int codigo, Articulo articulo) {
+    int mascara = valores.length - 1;
+    int i = posicion(codigo, mascara);
+    while (valores[i] != null) {
+      if (claves[i] == codigo) {
+        Articulo anterior = valores[i];
+        valores[i] = articulo;
+        return anterior;
+      }
+      i = (i + 1) & mascara;
+    }
+    claves[i] = codigo;
+    valores[i] = articulo;
+    if (++size > umbral) {
+      redimensionar();
+    }
+    return null;
+  }
+
+  /**
+   *
+   * Elimina el artículo asociado al código
+   *
+   * @param codigo Código del artículo
+   * @return Devuelve el artículo eliminado o null si no existía
+   */
+  Articulo remove(int codigo) {
+    int mascara = valores.length - 1;
+    int i = posicion(codigo, mascara);
+    while (valores[i] != null && claves[i] != codigo) {
+      i = (i + 1) & mascara;
+    }
+    Articulo eliminado = valores[i];
+    if (eliminado == null) {
+      return null;
+    }
+    // desplaza hacia atrás los elementos del grupo que ya no serían alcanzables
+    int libre = i;
+    for (int j = (i + 1) & mascara; valores[j] != null; j = (j + 1) & mascara) {
+      int ideal = posicion(claves[j], mascara);
+      if (((j - ideal) & mascara) >= ((j - libre) & mascara)) {
+        claves[libre] = claves[j];
+        valores[libre] = valores[j];
+        libre = j;
+      }
+    }
+    valores[libre] = null;
+    size--;
+    return eliminado;
+  }
+
+  /**
+   * Vacía el mapa
+   */
+  void clear() {
+    Arrays.fill(valores, null);
+    size = 0;
+  }
+
+  /**
+   *
+   * @return Devuelve el número de elementos del mapa
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Duplica la capacidad de la tabla y recoloca todos los elementos
+   */
+  private void redimensionar() {
+    int[] clavesAnteriores = claves;
+    Articulo[] valoresAnteriores = valores;
+    reservar(valores.length << 1);
+    int mascara = valores.length - 1;
+    for (int j = 0; j < valoresAnteriores.length; j++) {
+      if (valoresAnteriores[j] != null) {
+        int i = posicion(clavesAnteriores[j], mascara);
+        while (valores[i] != null) {
+          i = (i + 1) & mascara;
+        }
+        claves[i] = clavesAnteriores[j];
+        valores[i] = valoresAnteriores[j];
+      }
+    }
+  }
+
+  /**
+   *
+   * Reserva las tablas con la capacidad pasada
+   *
+   * @param capacidad Capacidad de la tabla, potencia de 2
+   */
+  private void reservar(int capacidad) {
+    claves = new int[capacidad];
+    valores = new Articulo[capacidad];
+    umbral = capacidad * 3 / 4;
+  }
+
+  /**
+   *
+   * Calcula la posición ideal de un código dispersando sus bits, ya que los códigos son
+   * consecutivos
+   *
+   * @param codigo Código del artículo
+   * @param mascara Capacidad de la tabla menos 1
+   * @return Devuelve la posición ideal en la tabla
+   */
+  private static int posicion(int codigo, int mascara) {
+    int h = codigo * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mascara;
+  }
+
+}
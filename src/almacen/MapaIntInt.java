@@ -0,0 +1,211 @@
+package almacen;
+
+import java.util.Arrays;
+
+/**
+ * Tabla hash de direccionamiento abierto con claves y valores primitivos int.
+ *
+ * <p>
+ * Es la versión sin objetos de {@link MapaIntArticulo}: se usa cuando el valor asociado a un
+ * código es una posición en un array, de modo que ni las búsquedas ni las inserciones crean
+ * objetos.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+class MapaIntInt {
+
+  /**
+   * Capacidad inicial de la tabla, siempre potencia de 2
+   */
+  private static final int CAPACIDAD_INICIAL = 16;
+
+  /**
+   * Valor devuelto cuando la clave no existe
+   */
+  static final int NO_ENCONTRADO = -1;
+
+  /**
+   * Claves almacenadas, solo son válidas las posiciones ocupadas
+   */
+  private int[] claves;
+  /**
+   * Valores almacenados
+   */
+  private int[] valores;
+  /**
+   * Indica qué posiciones de la tabla están ocupadas
+   */
+  private boolean[] ocupadas;
+  /**
+   * Número de elementos del mapa
+   */
+  private int size;
+  /**
+   * Número de elementos a partir del cual se duplica la tabla
+   */
+  private int umbral;
+
+  /**
+   * Crea un mapa vacío
+   */
+  MapaIntInt() {
+    this(CAPACIDAD_INICIAL);
+  }
+
+  /**
+   * Crea un mapa con capacidad para el número de elementos pasado sin redimensionar
+   *
+   * @param elementosEsperados Número de elementos que se espera almacenar
+   */
+  MapaIntInt(int elementosEsperados) {
+    int capacidad = CAPACIDAD_INICIAL;
+    while (capacidad * 3 / 4 < elementosEsperados) {
+      capacidad <<= 1;
+    }
+    reservar(capacidad);
+  }
+
+  /**
+   *
+   * Devuelve el valor asociado a la clave
+   *
+   * @param clave Clave a buscar
+   * @return Devuelve el valor o {@link #NO_ENCONTRADO} si no existe
+   */
+  int get(int clave) {
+    int mascara = claves.length - 1;
+    for (int i = posicion(clave, mascara); ocupadas[i]; i = (i + 1) & mascara) {
+      if (claves[i] == clave) {
+        return valores[i];
+      }
+    }
+    return NO_ENCONTRADO;
+  }
+
+  /**
+   *
+   * Asocia el valor a la clave, sustituyendo el anterior si existía
+   *
+   * @param clave Clave
+   * @param valor Valor, no puede ser {@link #NO_ENCONTRADO}
+   * @return Devuelve el valor sustituido o {@link #NO_ENCONTRADO} si no existía
+   */
+  int put(int clave, int valor) {
+    int mascara = claves.length - 1;
+    int i = posicion(clave, mascara);
+    while (ocupadas[i]) {
+      if (claves[i] == clave) {
+        int anterior = valores[i];
+        valores[i] = valor;
+        return anterior;
+      }
+      i = (i + 1) & mascara;
+    }
+    claves[i] = clave;
+    valores[i] = valor;
+    ocupadas[i] = true;
+    if (++size > umbral) {
+      redimensionar();
+    }
+    return NO_ENCONTRADO;
+  }
+
+  /**
+   *
+   * Elimina la clave del mapa
+   *
+   * @param clave Clave a eliminar
+   * @return Devuelve el valor eliminado o {@link #NO_ENCONTRADO} si no existía
+   */
+  int remove(int clave) {
+    int mascara = claves.length - 1;
+    int i = posicion(clave, mascara);
+    while (ocupadas[i] && claves[i] != clave) {
+      i = (i + 1) & mascara;
+    }
+    if (!ocupadas[i]) {
+      return NO_ENCONTRADO;
+    }
+    int eliminado = valores[i];
+    // desplaza hacia atrás los elementos del grupo que ya no serían alcanzables
+    int libre = i;
+    for (int j = (i + 1) & mascara; ocupadas[j]; j = (j + 1) & mascara) {
+      int ideal = posicion(claves[j], mascara);
+      if (((j - ideal) & mascara) >= ((j - libre) & mascara)) {
+        claves[libre] = claves[j];
+        valores[libre] = valores[j];
+        libre = j;
+      }
+    }
+    ocupadas[libre] = false;
+    size--;
+    return eliminado;
+  }
+
+  /**
+   * Vacía el mapa
+   */
+  void clear() {
+    Arrays.fill(ocupadas, false);
+    size = 0;
+  }
+
+  /**
+   *
+   * @return Devuelve el número de elementos del mapa
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Duplica la capacidad de la tabla y recoloca todos los elementos
+   */
+  private void redimensionar() {
+    int[] clavesAnteriores = claves;
+    int[] valoresAnteriores = valores;
+    boolean[] ocupadasAnteriores = ocupadas;
+    reservar(claves.length << 1);
+    int mascara = claves.length - 1;
+    for (int j = 0; j < ocupadasAnteriores.length; j++) {
+      if (ocupadasAnteriores[j]) {
+        int i = posicion(clavesAnteriores[j], mascara);
+        while (ocupadas[i]) {
+          i = (i + 1) & mascara;
+        }
+        claves[i] = clavesAnteriores[j];
+        valores[i] = valoresAnteriores[j];
+        ocupadas[i] = true;
+      }
+    }
+  }
+
+  /**
+   *
+   * Reserva las tablas con la capacidad pasada
+   *
+   * @param capacidad Capacidad de la tabla, potencia de 2
+   */
+  private void reservar(int capacidad) {
+    claves = new int[capacidad];
+    valores = new int[capacidad];
+    ocupadas = new boolean[capacidad];
+    umbral = capacidad * 3 / 4;
+  }
+
+  /**
+   *
+   * Calcula la posición ideal de una clave dispersando sus bits
+   *
+   * @param clave Clave
+   * @param mascara Capacidad de la tabla menos 1
+   * @return Devuelve la posición ideal en la tabla
+   */
+  private static int posicion(int clave, int mascara) {
+    int h = clave * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mascara;
+  }
+
+}
@@ -0,0 +1,417 @@
+package almacen;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Métricas de uso de un almacén: número de llamadas y latencia de cada operación, fallos por tipo
+ * y velocidad de guardado y carga.
+ *
+ * <p>
+ * Todo se guarda en contadores de {@link AtomicLongArray}, así que registrar una operación no usa
+ * cerrojos ni crea objetos y las métricas pueden estar siempre activas. La latencia se acumula en
+ * un histograma con un cubo por cada potencia de 2 de nanosegundos, por lo que los percentiles son
+ * aproximados: se devuelve el límite superior del cubo, como mucho el doble del valor real.
+ * </p>
+ *
+ * <p>
+ * Las métricas se pueden consultar directamente, por JMX con {@link #registrarMBean(String)} o
+ * enviarse periódicamente a un {@link ExportadorMetricas}.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public final class MetricasAlmacen implements MetricasAlmacenMXBean {
+
+  /**
+   * Operaciones del almacén de las que se mide la latencia
+   */
+  public enum Operacion {
+    /**
+     * Alta de un artículo
+     */
+    ADD,
+    /**
+     * Consulta de un artículo por código
+     */
+    GET,
+    /**
+     * Baja de un artículo
+     */
+    DELETE,
+    /**
+     * Entrada de unidades
+     */
+    ADD_UNIDADES,
+    /**
+     * Salida de unidades
+     */
+    REMOVE_UNIDADES,
+    /**
+     * Modificación de un artículo
+     */
+    MODIFICAR_ARTICULO
+  }
+
+  /**
+   * Tipos de fallo que se cuentan
+   */
+  public enum Fallo {
+    /**
+     * El código no corresponde a ningún artículo
+     */
+    CODIGO_NO_ENCONTRADO,
+    /**
+     * No hay unidades suficientes o se supera el stock máximo
+     */
+    STOCK,
+    /**
+     * Algún dato no es válido o el nombre y la marca ya existen
+     */
+    VALIDACION
+  }
+
+  /**
+   * Número de cubos del histograma de cada operación, uno por cada potencia de 2
+   */
+  private static final int CUBOS = 64;
+
+  /**
+   * Posiciones de los contadores de guardado y carga
+   */
+  private static final int GUARDADO = 0;
+  private static final int CARGA = 3;
+  private static final int BYTES = 0;
+  private static final int ARTICULOS = 1;
+  private static final int NANOS = 2;
+
+  /**
+   * Hilo que envía las métricas a los exportadores programados
+   */
+  private static final ScheduledExecutorService PROGRAMADOR =
+      Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread hilo = new Thread(r, "almacen-metricas");
+        hilo.setDaemon(true);
+        return hilo;
+      });
+
+  /**
+   * Histograma de latencias de cada operación, CUBOS posiciones por operación
+   */
+  private final AtomicLongArray histogramas =
+      new AtomicLongArray(Operacion.values().length * CUBOS);
+  /**
+   * Nanosegundos acumulados de cada operación
+   */
+  private final AtomicLongArray nanos = new AtomicLongArray(Operacion.values().length);
+  /**
+   * Número de fallos de cada tipo
+   */
+  private final AtomicLongArray fallos = new AtomicLongArray(Fallo.values().length);
+  /**
+   * Bytes, artículos y nanosegundos acumulados al guardar y al cargar
+   */
+  private final AtomicLongArray transferencias = new AtomicLongArray(6);
+
+  /**
+   * Crea unas métricas vacías. Las crea cada almacén.
+   */
+  MetricasAlmacen() {
+  }
+
+  /**
+   *
+   * Registra una llamada a una operación
+   *
+   * @param operacion Operación
+   * @param inicio Valor de {@link System#nanoTime()} al empezar la operación
+   */
+  void registrar(Operacion operacion, long inicio) {
+    long duracion = Math.max(System.nanoTime() - inicio, 1);
+    int cubo = 63 - Long.numberOfLeadingZeros(duracion);
+    histogramas.incrementAndGet(operacion.ordinal() * CUBOS + cubo);
+    nanos.addAndGet(operacion.ordinal(), duracion);
+  }
+
+  /**
+   *
+   * Cuenta un fallo
+   *
+   * @param fallo Tipo de fallo
+   */
+  void fallo(Fallo fallo) {
+    fallos.incrementAndGet(fallo.ordinal());
+  }
+
+  /**
+   *
+   * Cuenta el fallo que corresponde a una excepción del almacén
+   *
+   * @param e Excepción lanzada por una operación
+   */
+  void fallo(Exception e) {
+    if (e instanceof CodigoNotFound) {
+      fallo(Fallo.CODIGO_NO_ENCONTRADO);
+    } else if (e instanceof ArticuloStockException) {
+      fallo(Fallo.STOCK);
+    } else if (e instanceof ArticuloIllegalErrorArgumentException
+        || e instanceof AlmacenNombreMarcaException) {
+      fallo(Fallo.VALIDACION);
+    }
+  }
+
+  /**
+   *
+   * Cuenta el fallo que corresponde al resultado rechazado de un movimiento de stock
+   *
+   * @param resultado Resultado del movimiento
+   */
+  void fallo(ResultadoStock resultado) {
+    switch (resultado) {
+      case OK -> {
+      }
+      case CODIGO_NO_ENCONTRADO -> fallo(Fallo.CODIGO_NO_ENCONTRADO);
+      case STOCK_INSUFICIENTE, STOCK_MAXIMO_SUPERADO -> fallo(Fallo.STOCK);
+      case UNIDADES_NEGATIVAS -> fallo(Fallo.VALIDACION);
+    }
+  }
+
+  /**
+   *
+   * Registra un guardado
+   *
+   * @param bytes Bytes escritos
+   * @param articulos Artículos escritos
+   * @param inicio Valor de {@link System#nanoTime()} al empezar a guardar
+   */
+  void guardado(long bytes, long articulos, long inicio) {
+    transferencia(GUARDADO, bytes, articulos, inicio);
+  }
+
+  /**
+   *
+   * Registra una carga
+   *
+   * @param bytes Bytes leídos
+   * @param articulos Artículos leídos
+   * @param inicio Valor de {@link System#nanoTime()} al empezar a cargar
+   */
+  void carga(long bytes, long articulos, long inicio) {
+    transferencia(CARGA, bytes, articulos, inicio);
+  }
+
+  /**
+   *
+   * @param base Posición de los contadores del guardado o de la carga
+   * @param bytes Bytes transferidos
+   * @param articulos Artículos transferidos
+   * @param inicio Valor de {@link System#nanoTime()} al empezar
+   */
+  private void transferencia(int base, long bytes, long articulos, long inicio) {
+    transferencias.addAndGet(base + BYTES, bytes);
+    transferencias.addAndGet(base + ARTICULOS, articulos);
+    transferencias.addAndGet(base + NANOS, Math.max(System.nanoTime() - inicio, 1));
+  }
+
+  /**
+   *
+   * @param operacion Operación
+   * @return Devuelve el número de llamadas a la operación
+   */
+  public long getNumero(Operacion operacion) {
+    long total = 0;
+    for (int cubo = 0; cubo < CUBOS; cubo++) {
+      total += histogramas.get(operacion.ordinal() * CUBOS + cubo);
+    }
+    return total;
+  }
+
+  /**
+   *
+   * @param operacion Operación
+   * @return Devuelve la latencia media en nanosegundos, 0 si no se ha llamado
+   */
+  public double getMediaNs(Operacion operacion) {
+    long numero = getNumero(operacion);
+    return numero == 0 ? 0 : (double) nanos.get(operacion.ordinal()) / numero;
+  }
+
+  /**
+   *
+   * @param operacion Operación
+   * @param percentil Percentil entre 0 y 100
+   * @return Devuelve el percentil aproximado de la latencia en nanosegundos, 0 si no se ha llamado
+   * @throws IllegalArgumentException Se lanza si el percentil no está entre 0 y 100
+   */
+  public long getPercentilNs(Operacion operacion, double percentil) {
+    if (!(percentil >= 0 && percentil <= 100)) {
+      throw new IllegalArgumentException("El percentil debe estar entre 0 y 100.");
+    }
+    long[] cuentas = new long[CUBOS];
+    long total = 0;
+    for (int cubo = 0; cubo < CUBOS; cubo++) {
+      cuentas[cubo] = histogramas.get(operacion.ordinal() * CUBOS + cubo);
+      total += cuentas[cubo];
+    }
+    long rango = Math.max((long) Math.ceil(percentil / 100 * total), 1);
+    long acumulado = 0;
+    for (int cubo = 0; cubo < CUBOS; cubo++) {
+      acumulado += cuentas[cubo];
+      if (acumulado >= rango) {
+        return cubo == 63 ? Long.MAX_VALUE : (1L << (cubo + 1)) - 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   *
+   * @param fallo Tipo de fallo
+   * @return Devuelve el número de fallos de ese tipo
+   */
+  public long getFallos(Fallo fallo) {
+    return fallos.get(fallo.ordinal());
+  }
+
+  @Override
+  public Map<String, Long> getOperaciones() {
+    return porOperacion(this::getNumero);
+  }
+
+  @Override
+  public Map<String, Double> getLatenciaMediaNs() {
+    Map<String, Double> mapa = new LinkedHashMap<>();
+    for (Operacion operacion : Operacion.values()) {
+      mapa.put(operacion.name(), getMediaNs(operacion));
+    }
+    return Collections.unmodifiableMap(mapa);
+  }
+
+  @Override
+  public Map<String, Long> getLatenciaP50Ns() {
+    return porOperacion(operacion -> getPercentilNs(operacion, 50));
+  }
+
+  @Override
+  public Map<String, Long> getLatenciaP99Ns() {
+    return porOperacion(operacion -> getPercentilNs(operacion, 99));
+  }
+
+  @Override
+  public Map<String, Long> getFallos() {
+    Map<String, Long> mapa = new LinkedHashMap<>();
+    for (Fallo fallo : Fallo.values()) {
+      mapa.put(fallo.name(), getFallos(fallo));
+    }
+    return Collections.unmodifiableMap(mapa);
+  }
+
+  @Override
+  public double getBytesPorSegundoGuardado() {
+    return porSegundo(GUARDADO, BYTES);
+  }
+
+  @Override
+  public double getArticulosPorSegundoGuardado() {
+    return porSegundo(GUARDADO, ARTICULOS);
+  }
+
+  @Override
+  public double getBytesPorSegundoCarga() {
+    return porSegundo(CARGA, BYTES);
+  }
+
+  @Override
+  public double getArticulosPorSegundoCarga() {
+    return porSegundo(CARGA, ARTICULOS);
+  }
+
+  @Override
+  public void reiniciar() {
+    for (int i = 0; i < histogramas.length(); i++) {
+      histogramas.set(i, 0);
+    }
+    for (int i = 0; i < nanos.length(); i++) {
+      nanos.set(i, 0);
+    }
+    for (int i = 0; i < fallos.length(); i++) {
+      fallos.set(i, 0);
+    }
+    for (int i = 0; i < transferencias.length(); i++) {
+      transferencias.set(i, 0);
+    }
+  }
+
+  /**
+   *
+   * Registra las métricas en el servidor de MBeans de la plataforma con el nombre
+   * "almacen:type=Almacen,name=" seguido del nombre pasado
+   *
+   * @param nombre Nombre que distingue a este almacén de otros
+   * @return Devuelve el nombre con el que se ha registrado
+   * @throws JMException Se lanza si el nombre no es válido o ya está registrado
+   */
+  public ObjectName registrarMBean(String nombre) throws JMException {
+    ObjectName objeto = new ObjectName("almacen:type=Almacen,name=" + ObjectName.quote(nombre));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objeto);
+    return objeto;
+  }
+
+  /**
+   *
+   * Envía periódicamente las métricas a un exportador. Si el exportador lanza una excepción deja de
+   * llamarse.
+   *
+   * @param exportador Destino de las métricas
+   * @param periodo Tiempo entre dos envíos
+   * @param unidad Unidad del periodo
+   * @return Devuelve la tarea programada, que se cancela para dejar de enviar
+   */
+  public ScheduledFuture<?> exportarCada(ExportadorMetricas exportador, long periodo,
+      TimeUnit unidad) {
+    return PROGRAMADOR.scheduleAtFixedRate(() -> exportador.exportar(this), periodo, periodo,
+        unidad);
+  }
+
+  /**
+   *
+   * @param valor Valor de cada operación
+   * @return Devuelve un mapa con el valor de cada operación, en el orden de {@link Operacion}
+   */
+  private Map<String, Long> porOperacion(ToLongFunction<Operacion> valor) {
+    Map<String, Long> mapa = new LinkedHashMap<>();
+    for (Operacion operacion : Operacion.values()) {
+      mapa.put(operacion.name(), valor.applyAsLong(operacion));
+    }
+    return Collections.unmodifiableMap(mapa);
+  }
+
+  /**
+   *
+   * @param base Posición de los contadores del guardado o de la carga
+   * @param contador Contador de bytes o de artículos
+   * @return Devuelve el contador por segundo, 0 si no se ha guardado o cargado nada
+   */
+  private double porSegundo(int base, int contador) {
+    long tiempo = transferencias.get(base + NANOS);
+    return tiempo == 0 ? 0 : transferencias.get(base + contador) * 1e9 / tiempo;
+  }
+
+  @Override
+  public String toString() {
+    return "MetricasAlmacen [operaciones=" + getOperaciones() + ", latenciaMediaNs="
+        + getLatenciaMediaNs() + ", fallos=" + getFallos() + "]";
+  }
+
+}
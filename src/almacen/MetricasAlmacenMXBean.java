@@ -0,0 +1,74 @@
+package almacen;
+
+import java.util.Map;
+
+/**
+ * Interfaz de gestión por JMX de las métricas de un almacén. Se registra con
+ * {@link MetricasAlmacen#registrarMBean(String)} y se consulta con cualquier consola JMX, como
+ * JConsole o VisualVM.
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public interface MetricasAlmacenMXBean {
+
+  /**
+   *
+   * @return Devuelve el número de llamadas de cada operación
+   */
+  Map<String, Long> getOperaciones();
+
+  /**
+   *
+   * @return Devuelve la latencia media en nanosegundos de cada operación
+   */
+  Map<String, Double> getLatenciaMediaNs();
+
+  /**
+   *
+   * @return Devuelve la mediana aproximada de la latencia en nanosegundos de cada operación
+   */
+  Map<String, Long> getLatenciaP50Ns();
+
+  /**
+   *
+   * @return Devuelve el percentil 99 aproximado de la latencia en nanosegundos de cada operación
+   */
+  Map<String, Long> getLatenciaP99Ns();
+
+  /**
+   *
+   * @return Devuelve el número de fallos de cada tipo
+   */
+  Map<String, Long> getFallos();
+
+  /**
+   *
+   * @return Devuelve los bytes por segundo escritos al guardar
+   */
+  double getBytesPorSegundoGuardado();
+
+  /**
+   *
+   * @return Devuelve los artículos por segundo escritos al guardar
+   */
+  double getArticulosPorSegundoGuardado();
+
+  /**
+   *
+   * @return Devuelve los bytes por segundo leídos al cargar
+   */
+  double getBytesPorSegundoCarga();
+
+  /**
+   *
+   * @return Devuelve los artículos por segundo leídos al cargar
+   */
+  double getArticulosPorSegundoCarga();
+
+  /**
+   * Pone todas las métricas a 0
+   */
+  void reiniciar();
+
+}
@@ -0,0 +1,57 @@
+package almacen;
+
+/**
+ * Movimiento de stock de un artículo dentro de un lote.
+ *
+ * <p>
+ * Las unidades positivas son entradas de mercancía y las negativas salidas.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public final class Movimiento {
+
+  /**
+   * Código del artículo
+   */
+  private final int codigo;
+  /**
+   * Unidades que entran, negativas si salen
+   */
+  private final int unidades;
+
+  /**
+   *
+   * Crea un movimiento
+   *
+   * @param codigo Código del artículo
+   * @param unidades Unidades que entran, negativas si salen
+   */
+  public Movimiento(int codigo, int unidades) {
+    this.codigo = codigo;
+    this.unidades = unidades;
+  }
+
+  /**
+   *
+   * @return Devuelve el código del artículo
+   */
+  public int getCodigo() {
+    return codigo;
+  }
+
+  /**
+   *
+   * @return Devuelve las unidades que entran, negativas si salen
+   */
+  public int getUnidades() {
+    return unidades;
+  }
+
+  @Override
+  public String toString() {
+    return "Movimiento [codigo=" + codigo + ", unidades=" + unidades + "]";
+  }
+
+}
@@ -0,0 +1,62 @@
+package almacen;
+
+import java.util.Collection;
+
+/**
+ * Estructura derivada del contenido del almacén que se mantiene al día con cada cambio.
+ *
+ * <p>
+ * {@link Almacen} avisa a sus observadores después de cada alta, baja o cambio de un artículo, de
+ * modo que índices y resúmenes se actualizan de forma incremental sin recorrer todo el almacén.
+ * Cuando se sustituye todo el contenido, por ejemplo al cargar un archivo, se les pide que se
+ * reconstruyan.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+interface ObservadorArticulos {
+
+  /**
+   *
+   * Se llama después de añadir un artículo al almacén
+   *
+   * @param articulo Artículo añadido
+   */
+  void alta(Articulo articulo);
+
+  /**
+   *
+   * Se llama después de quitar un artículo del almacén
+   *
+   * @param articulo Artículo quitado
+   */
+  void baja(Articulo articulo);
+
+  /**
+   *
+   * Se llama después de modificar un artículo o sus unidades
+   *
+   * @param articulo Artículo con su estado nuevo
+   */
+  void cambio(Articulo articulo);
+
+  /**
+   *
+   * Se llama antes de modificar un artículo o sus unidades, mientras aún tiene su estado anterior.
+   * Puede llamarse aunque al final el cambio se rechace.
+   *
+   * @param articulo Artículo con su estado anterior
+   */
+  default void antesDeCambio(Articulo articulo) {
+  }
+
+  /**
+   *
+   * Descarta el estado anterior y lo reconstruye con el nuevo contenido del almacén
+   *
+   * @param articulos Todos los artículos del almacén
+   */
+  void reconstruir(Collection<Articulo> articulos);
+
+}
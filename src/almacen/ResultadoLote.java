@@ -0,0 +1,79 @@
+package almacen;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Resultado de aplicar un lote de movimientos de stock.
+ *
+ * <p>
+ * Contiene el resultado de cada línea en el mismo orden que los movimientos del lote. Si el lote
+ * se aplica con la opción de todo o nada y alguna línea no es válida, no se aplica ninguna y
+ * {@link #isAplicado()} devuelve falso. Si se ha aplicado, las líneas aceptadas son exactamente
+ * las que se han aplicado.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public final class ResultadoLote {
+
+  /**
+   * Indica si se han aplicado los movimientos válidos
+   */
+  private final boolean aplicado;
+  /**
+   * Resultado de cada línea del lote
+   */
+  private final List<ResultadoStock> resultados;
+  /**
+   * Número de líneas rechazadas
+   */
+  private final int rechazados;
+
+  /**
+   *
+   * Crea el resultado de un lote
+   *
+   * @param aplicado Verdadero si se han aplicado los movimientos válidos
+   * @param resultados Resultado de cada línea del lote
+   * @param rechazados Número de líneas rechazadas
+   */
+  ResultadoLote(boolean aplicado, ResultadoStock[] resultados, int rechazados) {
+    this.aplicado = aplicado;
+    this.resultados = Collections.unmodifiableList(Arrays.asList(resultados));
+    this.rechazados = rechazados;
+  }
+
+  /**
+   *
+   * @return Devuelve verdadero si se han aplicado los movimientos válidos del lote
+   */
+  public boolean isAplicado() {
+    return aplicado;
+  }
+
+  /**
+   *
+   * @return Devuelve el resultado de cada línea, en el orden del lote
+   */
+  public List<ResultadoStock> getResultados() {
+    return resultados;
+  }
+
+  /**
+   *
+   * @return Devuelve el número de líneas rechazadas
+   */
+  public int getRechazados() {
+    return rechazados;
+  }
+
+  @Override
+  public String toString() {
+    return "ResultadoLote [aplicado=" + aplicado + ", rechazados=" + rechazados + ", resultados="
+        + resultados + "]";
+  }
+
+}
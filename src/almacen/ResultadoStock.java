@@ -0,0 +1,45 @@
+package almacen;
+
+/**
+ * Resultado de un movimiento de stock que no lanza excepciones.
+ *
+ * <p>
+ * Los métodos que devuelven este valor no crean ninguna excepción cuando el movimiento se
+ * rechaza, por lo que pueden usarse en caminos muy frecuentes sin coste de asignación.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public enum ResultadoStock {
+
+  /**
+   * El movimiento se ha aplicado
+   */
+  OK,
+  /**
+   * El código no corresponde a ningún artículo del almacén
+   */
+  CODIGO_NO_ENCONTRADO,
+  /**
+   * Las unidades del movimiento son negativas
+   */
+  UNIDADES_NEGATIVAS,
+  /**
+   * No hay unidades suficientes para decrementar
+   */
+  STOCK_INSUFICIENTE,
+  /**
+   * Las unidades superarían el stock máximo del artículo
+   */
+  STOCK_MAXIMO_SUPERADO;
+
+  /**
+   *
+   * @return Devuelve verdadero si el movimiento se ha aplicado
+   */
+  public boolean isOk() {
+    return this == OK;
+  }
+
+}
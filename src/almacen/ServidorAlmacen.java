@@ -0,0 +1,378 @@
+package almacen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Servidor local que da acceso a un {@link Almacen} por un socket TCP de la interfaz de loopback,
+ * para los terminales de venta del mismo equipo.
+ *
+ * <p>
+ * El protocolo es binario, con enteros de 4 bytes en orden de red. Cada petición empieza por un
+ * byte con la operación:
+ * <ul>
+ * <li>{@link #CONSULTAR}: código. Responde el estado y, si es {@link ResultadoStock#OK}, las
+ * unidades del artículo.</li>
+ * <li>{@link #ANADIR}: código y unidades. Responde el estado de
+ * {@link Almacen#tryAddUnidades(int, int)}.</li>
+ * <li>{@link #RETIRAR}: código y unidades. Responde el estado de
+ * {@link Almacen#tryRemoveUnidades(int, int)}.</li>
+ * <li>{@link #LOTE}: un byte que vale 1 para todo o nada, el número de movimientos y cada
+ * movimiento con su código y sus unidades. Responde un byte que vale 1 si se ha aplicado, el
+ * número de movimientos y el estado de cada uno, ver
+ * {@link Almacen#aplicarMovimientos(List, boolean)}.</li>
+ * </ul>
+ * Los estados son el ordinal de {@link ResultadoStock} en un byte. Una petición no válida cierra
+ * la conexión.
+ * </p>
+ *
+ * <p>
+ * El cliente puede enviar varias peticiones sin esperar las respuestas, que llegan en el mismo
+ * orden. El servidor lee todas las peticiones que ya han llegado por la conexión, hasta
+ * {@link #MAX_PETICIONES}, las ejecuta seguidas con un único cerrojo compartido por todas las
+ * conexiones y envía todas las respuestas de una vez. Así el coste de sincronizar y de escribir en
+ * el socket se reparte entre todas las peticiones de la ráfaga.
+ * </p>
+ *
+ * <p>
+ * Cada conexión tiene su propio hilo. Si la máquina virtual tiene hilos virtuales se usa uno por
+ * conexión, y si no un hilo de plataforma. Mientras el servidor está abierto solo se deben mover
+ * unidades del almacén desde el servidor o con {@link #ejecutar(Runnable)}.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public final class ServidorAlmacen implements AutoCloseable {
+
+  /**
+   * Operación que consulta las unidades de un artículo
+   */
+  public static final byte CONSULTAR = 1;
+  /**
+   * Operación que añade unidades a un artículo
+   */
+  public static final byte ANADIR = 2;
+  /**
+   * Operación que retira unidades de un artículo
+   */
+  public static final byte RETIRAR = 3;
+  /**
+   * Operación que aplica un lote de movimientos
+   */
+  public static final byte LOTE = 4;
+  /**
+   * Número máximo de peticiones que se ejecutan de una vez por conexión
+   */
+  public static final int MAX_PETICIONES = 256;
+  /**
+   * Número máximo de movimientos de un lote
+   */
+  public static final int MAX_MOVIMIENTOS = 65536;
+
+  /**
+   * Tamaño de los búferes de lectura y escritura de cada conexión
+   */
+  private static final int TAMANO_BUFER = 1 << 16;
+
+  /**
+   * Almacén al que se da acceso
+   */
+  private final Almacen almacen;
+  /**
+   * Socket que acepta las conexiones
+   */
+  private final ServerSocket servidor;
+  /**
+   * Ejecuta un hilo por conexión
+   */
+  private final ExecutorService conexiones = crearEjecutor();
+  /**
+   * Sockets de las conexiones abiertas, para cerrarlos al cerrar el servidor
+   */
+  private final Set<Socket> abiertas = ConcurrentHashMap.newKeySet();
+  /**
+   * Cerrojo con el que se ejecuta cada ráfaga de peticiones
+   */
+  private final ReentrantLock cerrojo = new ReentrantLock();
+  /**
+   * Hilo que acepta las conexiones
+   */
+  private final Thread aceptador;
+
+  /**
+   *
+   * Crea un servidor y empieza a aceptar conexiones
+   *
+   * @param almacen Almacén al que se da acceso
+   * @param puerto Puerto de loopback en el que escucha, 0 para uno libre cualquiera
+   * @throws IOException Se lanza si no se puede abrir el puerto
+   */
+  private ServidorAlmacen(Almacen almacen, int puerto) throws IOException {
+    this.almacen = almacen;
+    this.servidor = new ServerSocket(puerto, 128, InetAddress.getLoopbackAddress());
+    this.aceptador = new Thread(this::aceptar, "almacen-servidor-" + getPuerto());
+    aceptador.setDaemon(true);
+    aceptador.start();
+  }
+
+  /**
+   *
+   * Abre un servidor para el almacén en un puerto de loopback
+   *
+   * @param almacen Almacén al que se da acceso
+   * @param puerto Puerto en el que escucha, 0 para uno libre cualquiera
+   * @return Devuelve el servidor, ya aceptando conexiones
+   * @throws IOException Se lanza si no se puede abrir el puerto
+   */
+  public static ServidorAlmacen iniciar(Almacen almacen, int puerto) throws IOException {
+    return new ServidorAlmacen(almacen, puerto);
+  }
+
+  /**
+   *
+   * @return Devuelve el puerto en el que escucha el servidor
+   */
+  public int getPuerto() {
+    return servidor.getLocalPort();
+  }
+
+  /**
+   *
+   * Ejecuta una acción sobre el almacén sin que se ejecuten peticiones a la vez, por ejemplo para
+   * dar de alta artículos mientras el servidor está abierto
+   *
+   * @param accion Acción que se ejecuta
+   */
+  public void ejecutar(Runnable accion) {
+    cerrojo.lock();
+    try {
+      accion.run();
+    } finally {
+      cerrojo.unlock();
+    }
+  }
+
+  /**
+   * Cierra el servidor y todas sus conexiones
+   */
+  @Override
+  public void close() throws IOException {
+    servidor.close();
+    for (Socket socket : abiertas) {
+      socket.close();
+    }
+    conexiones.shutdown();
+    try {
+      aceptador.join();
+      conexiones.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Acepta conexiones hasta que se cierra el servidor
+   */
+  private void aceptar() {
+    while (!servidor.isClosed()) {
+      try {
+        Socket socket = servidor.accept();
+        socket.setTcpNoDelay(true);
+        abiertas.add(socket);
+        conexiones.execute(() -> atender(socket));
+      } catch (IOException e) {
+        // el servidor se ha cerrado o la conexión ha fallado antes de atenderla
+      }
+    }
+  }
+
+  /**
+   *
+   * Atiende las peticiones de una conexión hasta que el cliente la cierra
+   *
+   * @param socket Socket de la conexión
+   */
+  private void atender(Socket socket) {
+    try (socket) {
+      new Conexion(socket).atender();
+    } catch (EOFException | SocketException e) {
+      // el cliente ha cerrado la conexión o se ha cerrado el servidor
+    } catch (IOException e) {
+      System.err.println("Conexión cerrada por una petición no válida: " + e.getMessage());
+    } finally {
+      abiertas.remove(socket);
+    }
+  }
+
+  /**
+   *
+   * @return Devuelve un ejecutor con un hilo virtual por tarea si la máquina virtual los tiene, o
+   *         con un hilo de plataforma por tarea si no
+   */
+  private static ExecutorService crearEjecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+      return Executors.newCachedThreadPool(tarea -> {
+        Thread hilo = new Thread(tarea, "almacen-conexion");
+        hilo.setDaemon(true);
+        return hilo;
+      });
+    }
+  }
+
+  /**
+   * Estado de una conexión. Las peticiones de una ráfaga se guardan en arrays que se reutilizan.
+   */
+  private final class Conexion {
+
+    private final DataInputStream entrada;
+    private final DataOutputStream salida;
+    private final byte[] operaciones = new byte[MAX_PETICIONES];
+    private final int[] codigos = new int[MAX_PETICIONES];
+    private final int[] unidades = new int[MAX_PETICIONES];
+    private final ResultadoStock[] estados = new ResultadoStock[MAX_PETICIONES];
+    private final List<List<Movimiento>> movimientos = new ArrayList<>();
+    private final List<ResultadoLote> lotes = new ArrayList<>();
+
+    /**
+     *
+     * @param socket Socket de la conexión
+     * @throws IOException Se lanza si no se pueden abrir los flujos del socket
+     */
+    Conexion(Socket socket) throws IOException {
+      entrada = new DataInputStream(new BufferedInputStream(socket.getInputStream(), TAMANO_BUFER));
+      salida =
+          new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), TAMANO_BUFER));
+    }
+
+    /**
+     *
+     * Lee, ejecuta y responde ráfagas de peticiones hasta que se cierra la conexión
+     *
+     * @throws IOException Se lanza si falla la conexión o una petición no es válida
+     */
+    void atender() throws IOException {
+      while (true) {
+        int n = 0;
+        do {
+          leer(n++);
+        } while (n < MAX_PETICIONES && entrada.available() > 0);
+
+        cerrojo.lock();
+        try {
+          for (int i = 0; i < n; i++) {
+            ejecutar(i);
+          }
+        } finally {
+          cerrojo.unlock();
+        }
+
+        for (int i = 0; i < n; i++) {
+          responder(i);
+        }
+        salida.flush();
+        movimientos.clear();
+        lotes.clear();
+      }
+    }
+
+    /**
+     *
+     * Lee una petición, esperando a que llegue
+     *
+     * @param i Posición de la petición en la ráfaga
+     * @throws IOException Se lanza si falla la conexión o la petición no es válida
+     */
+    private void leer(int i) throws IOException {
+      byte operacion = entrada.readByte();
+      operaciones[i] = operacion;
+      switch (operacion) {
+        case CONSULTAR -> codigos[i] = entrada.readInt();
+        case ANADIR, RETIRAR -> {
+          codigos[i] = entrada.readInt();
+          unidades[i] = entrada.readInt();
+        }
+        case LOTE -> {
+          unidades[i] = entrada.readByte();
+          int numero = entrada.readInt();
+          if (numero < 0 || numero > MAX_MOVIMIENTOS) {
+            throw new IOException("Número de movimientos no válido: " + numero);
+          }
+          List<Movimiento> lote = new ArrayList<>(numero);
+          for (int m = 0; m < numero; m++) {
+            lote.add(new Movimiento(entrada.readInt(), entrada.readInt()));
+          }
+          codigos[i] = movimientos.size();
+          movimientos.add(lote);
+        }
+        default -> throw new IOException("Operación desconocida: " + operacion);
+      }
+    }
+
+    /**
+     *
+     * Ejecuta una petición leída, con el cerrojo cogido
+     *
+     * @param i Posición de la petición en la ráfaga
+     */
+    private void ejecutar(int i) {
+      switch (operaciones[i]) {
+        case CONSULTAR -> {
+          Articulo articulo = almacen.find(codigos[i]).orElse(null);
+          estados[i] =
+              articulo == null ? ResultadoStock.CODIGO_NO_ENCONTRADO : ResultadoStock.OK;
+          unidades[i] = articulo == null ? 0 : articulo.getNumeroDeUnidades();
+        }
+        case ANADIR -> estados[i] = almacen.tryAddUnidades(codigos[i], unidades[i]);
+        case RETIRAR -> estados[i] = almacen.tryRemoveUnidades(codigos[i], unidades[i]);
+        default -> {
+          codigos[i] = lotes.size();
+          lotes.add(almacen.aplicarMovimientos(movimientos.get(lotes.size()), unidades[i] == 1));
+        }
+      }
+    }
+
+    /**
+     *
+     * Escribe la respuesta de una petición ejecutada en el búfer de salida
+     *
+     * @param i Posición de la petición en la ráfaga
+     * @throws IOException Se lanza si falla la conexión
+     */
+    private void responder(int i) throws IOException {
+      if (operaciones[i] == LOTE) {
+        ResultadoLote lote = lotes.get(codigos[i]);
+        salida.writeByte(lote.isAplicado() ? 1 : 0);
+        salida.writeInt(lote.getResultados().size());
+        for (ResultadoStock estado : lote.getResultados()) {
+          salida.writeByte(estado.ordinal());
+        }
+        return;
+      }
+      salida.writeByte(estados[i].ordinal());
+      if (operaciones[i] == CONSULTAR && estados[i].isOk()) {
+        salida.writeInt(unidades[i]);
+      }
+    }
+  }
+
+}
@@ -4,9 +4,6 @@ import static menuUtilArrayList.Util.*;
 
 
 import java.io.IOException;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactoryConfigurationError;
 import menuUtilArrayList.Menu;
 
 /**
@@ -27,7 +24,7 @@ public class TestAlmacen {
     for (int i = 1; i <= 5; i++) {
       try {
         almacen.add("Artículo" + i, "Marca" + i, randomInt(1, 100), 
-            randomInt(10, 100), randomInt(50, 500), 0, 50);
+            randomInt(10, 100), randomInt(50, 500), 0, 1000);
       } 
       catch (AlmacenNombreMarcaException e) {
         e.printStackTrace();
@@ -62,13 +59,17 @@ public class TestAlmacen {
       }
 
     } while (choice != 11);
+    // los guardados se hacen en segundo plano, hay que esperar a que terminen antes de salir
+    almacen.cerrarGuardados();
     System.out.println("Adiós :D");
   }
 
   private static void loadXML() {
 
       try {
-        almacen.loadFromXml(readStr("Introduce el nombre del fichero: "));
+        for (String error : almacen.loadFromXml(readStr("Introduce el nombre del fichero: "))) {
+          System.err.println("ERROR: " + error);
+        }
       } catch (IOException e) {
         
         e.printStackTrace();
@@ -78,18 +79,14 @@ public class TestAlmacen {
 
   private static void makeXML() {
   
-      try {
-        almacen.changeFormatToXml(readStr("Introduce el nombre del fichero: "));
-      } catch (ParserConfigurationException e) {
-        
-        e.printStackTrace();
-      } catch (TransformerFactoryConfigurationError e) {
-        
-        e.printStackTrace();
-      } catch (TransformerException e) {
-        
-        e.printStackTrace();
-      }
+      String fichero = readStr("Introduce el nombre del fichero: ");
+      almacen.changeFormatToXmlAsync(fichero).whenComplete((hecho, e) -> {
+        if (e != null) {
+          e.printStackTrace();
+        } else {
+          System.out.println("Guardado " + fichero);
+        }
+      });
 
   }
 
@@ -106,11 +103,14 @@ public class TestAlmacen {
   private static void saveJSON() {
     
     
-      try {
-        almacen.save(readStr("Introduce el nombre del fichero: "));
-      } catch (IOException e) {
-        System.err.println("ERROR: Al crear el fichero.");
-      }
+      String fichero = readStr("Introduce el nombre del fichero: ");
+      almacen.saveAsync(fichero, false).whenComplete((hecho, e) -> {
+        if (e != null) {
+          System.err.println("ERROR: Al crear el fichero.");
+        } else {
+          System.out.println("Guardado " + fichero);
+        }
+      });
    
     
   }
@@ -165,7 +165,7 @@ public class TestAlmacen {
     catch (CodigoNotFound e) {
       System.err.println("Ese código no pertenece a ningún artículo");
     }
-    catch (ArticuloIllegalErrorArgumentException e) {
+    catch (ArticuloIllegalErrorArgumentException | ArticuloStockException e) {
       System.err.println("ERROR: " + e.getMessage());
     }
   }
@@ -178,7 +178,7 @@ public class TestAlmacen {
     catch (CodigoNotFound e) {
       System.err.println("Ese código no pertenece a ningún artículo");
     }
-    catch (ArticuloIllegalErrorArgumentException e) {
+    catch (ArticuloIllegalErrorArgumentException | ArticuloStockException e) {
       System.err.println("ERROR: " + e.getMessage());
     }
   }
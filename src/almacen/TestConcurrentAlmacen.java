@@ -0,0 +1,152 @@
+package almacen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Clase test que somete a la clase {@link ConcurrentAlmacen} a movimientos de stock desde muchos
+ * hilos a la vez.
+ *
+ * <p>
+ * Varios hilos suman y restan unidades al azar sobre un conjunto de artículos mientras otro hilo
+ * da de alta y de baja artículos y otro consulta. Al terminar comprueba que ningún artículo tiene
+ * unidades negativas ni por encima del stock máximo y que las unidades de cada artículo coinciden
+ * con las iniciales más las añadidas menos las eliminadas con éxito, es decir, que no se ha
+ * perdido ninguna actualización. Falla también si algún hilo termina con una excepción, por
+ * ejemplo porque la consulta ha visto unidades fuera de rango.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public class TestConcurrentAlmacen {
+
+  private static final int ARTICULOS = 64;
+  private static final int UNIDADES_INICIALES = 100;
+  private static final int STOCK_MAXIMO = 150;
+  private static final int OPERACIONES_POR_HILO = 200_000;
+
+  public static void main(String[] args) throws Exception {
+
+    ConcurrentAlmacen almacen = new ConcurrentAlmacen();
+    int[] codigos = new int[ARTICULOS];
+    for (int i = 0; i < ARTICULOS; i++) {
+      codigos[i] = almacen.add("Artículo" + i, "Marca" + i, 10, 20, UNIDADES_INICIALES, 0,
+          STOCK_MAXIMO);
+    }
+
+    int numHilos = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    AtomicLong[] netos = new AtomicLong[ARTICULOS];
+    for (int i = 0; i < ARTICULOS; i++) {
+      netos[i] = new AtomicLong();
+    }
+    AtomicLong rechazadas = new AtomicLong();
+    AtomicLong consultas = new AtomicLong();
+    CountDownLatch salida = new CountDownLatch(1);
+    CountDownLatch movimientos = new CountDownLatch(numHilos);
+    List<Thread> hilos = new ArrayList<>();
+
+    for (int h = 0; h < numHilos; h++) {
+      hilos.add(new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+          salida.await();
+          for (int op = 0; op < OPERACIONES_POR_HILO; op++) {
+            int i = random.nextInt(ARTICULOS);
+            int unidades = random.nextInt(1, 5);
+            try {
+              if (random.nextBoolean()) {
+                almacen.addUnidades(codigos[i], unidades);
+                netos[i].addAndGet(unidades);
+              } else {
+                almacen.removeUnidades(codigos[i], unidades);
+                netos[i].addAndGet(-unidades);
+              }
+            } catch (ArticuloStockException e) {
+              rechazadas.incrementAndGet();
+            }
+          }
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        } finally {
+          movimientos.countDown();
+        }
+      }));
+    }
+
+    // altas y bajas de otros artículos mientras hay movimientos
+    hilos.add(new Thread(() -> {
+      try {
+        salida.await();
+        for (int i = 0; movimientos.getCount() > 0; i++) {
+          int codigo = almacen.add("Temporal" + i, "Marca", 1, 2, 1, 0, 0);
+          almacen.delete(codigo);
+        }
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    }));
+
+    // consultas que no deben bloquearse ni ver unidades negativas
+    hilos.add(new Thread(() -> {
+      try {
+        salida.await();
+        while (movimientos.getCount() > 0) {
+          for (int codigo : codigos) {
+            int unidades = almacen.get(codigo).getNumeroDeUnidades();
+            if (unidades < 0 || unidades > STOCK_MAXIMO) {
+              throw new IllegalStateException("Unidades fuera de rango en " + codigo);
+            }
+            consultas.incrementAndGet();
+          }
+        }
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    }));
+
+    // los errores de los hilos no llegan a main: se recogen para que el test falle
+    Queue<Throwable> fallos = new ConcurrentLinkedQueue<>();
+    for (Thread hilo : hilos) {
+      hilo.setUncaughtExceptionHandler((h, e) -> fallos.add(e));
+      hilo.start();
+    }
+    long inicio = System.nanoTime();
+    salida.countDown();
+    for (Thread hilo : hilos) {
+      hilo.join();
+    }
+    long ms = (System.nanoTime() - inicio) / 1_000_000;
+
+    int errores = 0;
+    for (Throwable fallo : fallos) {
+      System.err.println("ERROR: " + fallo);
+      errores++;
+    }
+    for (int i = 0; i < ARTICULOS; i++) {
+      int esperadas = (int) (UNIDADES_INICIALES + netos[i].get());
+      int unidades = almacen.get(codigos[i]).getNumeroDeUnidades();
+      if (unidades != esperadas || unidades < 0 || unidades > STOCK_MAXIMO) {
+        System.err.println("ERROR: El artículo " + codigos[i] + " tiene " + unidades
+            + " unidades y debería tener " + esperadas);
+        errores++;
+      }
+    }
+
+    System.out.println(numHilos + " hilos, " + (long) numHilos * OPERACIONES_POR_HILO
+        + " movimientos en " + ms + " ms (" + rechazadas.get() + " rechazados por stock, "
+        + consultas.get() + " consultas)");
+    System.out.println(errores == 0 ? "OK: No se ha perdido ninguna actualización."
+        : "ERROR: " + errores + " hilos fallidos o artículos con unidades incorrectas.");
+    if (errores != 0) {
+      System.exit(1);
+    }
+  }
+
+}
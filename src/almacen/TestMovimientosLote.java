@@ -0,0 +1,199 @@
+package almacen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Clase test de los lotes de movimientos de {@link Almacen} con la opción de todo o nada cuando
+ * otros hilos mueven stock a la vez.
+ *
+ * <p>
+ * Varios hilos traspasan unidades entre dos artículos con lotes de todo o nada mientras otros
+ * hilos suman y restan unidades sueltas a esos mismos artículos, de forma que muchos lotes se
+ * rechazan por el stock máximo o por falta de unidades. Comprueba que cada lote se aplica entero
+ * o no cambia nada y que las unidades finales coinciden con los movimientos aceptados. A la vez,
+ * otros hilos traspasan unidades entre otros dos artículos y un hilo toma vistas del almacén
+ * comprobando que nunca ven un traspaso a medias.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public class TestMovimientosLote {
+
+  private static final int UNIDADES_INICIALES = 50;
+  private static final int STOCK_MAXIMO = 100;
+  private static final int LOTES_POR_HILO = 100_000;
+
+  public static void main(String[] args) throws Exception {
+
+    Almacen almacen = new Almacen();
+    almacen.add("Origen", "Marca", 1, 2, UNIDADES_INICIALES, 0, STOCK_MAXIMO);
+    almacen.add("Destino", "Marca", 1, 2, UNIDADES_INICIALES, 0, STOCK_MAXIMO);
+    almacen.add("Izquierda", "Marca", 1, 2, UNIDADES_INICIALES, 0, STOCK_MAXIMO);
+    almacen.add("Derecha", "Marca", 1, 2, UNIDADES_INICIALES, 0, STOCK_MAXIMO);
+    int origen = almacen.findByNombreMarca("Origen", "Marca").orElseThrow().getCodigo();
+    int destino = almacen.findByNombreMarca("Destino", "Marca").orElseThrow().getCodigo();
+    int izquierda = almacen.findByNombreMarca("Izquierda", "Marca").orElseThrow().getCodigo();
+    int derecha = almacen.findByNombreMarca("Derecha", "Marca").orElseThrow().getCodigo();
+
+    int numHilos = Math.max(2, Runtime.getRuntime().availableProcessors());
+    AtomicLong netoOrigen = new AtomicLong();
+    AtomicLong netoDestino = new AtomicLong();
+    AtomicLong aplicados = new AtomicLong();
+    AtomicLong rechazados = new AtomicLong();
+    AtomicLong vistas = new AtomicLong();
+    CountDownLatch salida = new CountDownLatch(1);
+    CountDownLatch lotes = new CountDownLatch(2 * numHilos);
+    ExecutorService hilos = Executors.newFixedThreadPool(3 * numHilos + 1);
+    List<Future<?>> tareas = new ArrayList<>();
+
+    for (int h = 0; h < numHilos; h++) {
+      // traspasos de todo o nada que compiten con los movimientos sueltos
+      tareas.add(hilos.submit(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        salida.await();
+        try {
+          for (int i = 0; i < LOTES_POR_HILO; i++) {
+            int unidades = random.nextInt(1, 30);
+            int desde = random.nextBoolean() ? origen : destino;
+            int hacia = desde == origen ? destino : origen;
+            ResultadoLote resultado = almacen.aplicarMovimientos(
+                List.of(new Movimiento(desde, -unidades), new Movimiento(hacia, unidades)), true);
+            if (resultado.isAplicado() != (resultado.getRechazados() == 0)) {
+              throw new IllegalStateException("Lote de todo o nada a medias: " + resultado);
+            }
+            if (resultado.isAplicado()) {
+              (desde == origen ? netoOrigen : netoDestino).addAndGet(-unidades);
+              (hacia == origen ? netoOrigen : netoDestino).addAndGet(unidades);
+              aplicados.incrementAndGet();
+            } else {
+              rechazados.incrementAndGet();
+            }
+          }
+        } finally {
+          lotes.countDown();
+        }
+        return null;
+      }));
+
+      // traspasos entre otros dos artículos, que solo cambian con lotes
+      tareas.add(hilos.submit(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        salida.await();
+        try {
+          for (int i = 0; i < LOTES_POR_HILO; i++) {
+            int unidades = random.nextInt(1, 30);
+            int desde = random.nextBoolean() ? izquierda : derecha;
+            int hacia = desde == izquierda ? derecha : izquierda;
+            almacen.aplicarMovimientos(
+                List.of(new Movimiento(desde, -unidades), new Movimiento(hacia, unidades)), true);
+          }
+        } finally {
+          lotes.countDown();
+        }
+        return null;
+      }));
+
+      // movimientos sueltos sobre los artículos de los lotes
+      tareas.add(hilos.submit(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        salida.await();
+        while (lotes.getCount() > 0) {
+          boolean esOrigen = random.nextBoolean();
+          int codigo = esOrigen ? origen : destino;
+          AtomicLong neto = esOrigen ? netoOrigen : netoDestino;
+          int unidades = random.nextInt(1, 30);
+          if (random.nextBoolean()) {
+            if (almacen.tryAddUnidades(codigo, unidades).isOk()) {
+              neto.addAndGet(unidades);
+            }
+          } else if (almacen.tryRemoveUnidades(codigo, unidades).isOk()) {
+            neto.addAndGet(-unidades);
+          }
+        }
+        return null;
+      }));
+    }
+
+    // vistas que nunca deben ver un traspaso a medias
+    tareas.add(hilos.submit(() -> {
+      salida.await();
+      while (lotes.getCount() > 0) {
+        try (InstantaneaAlmacen vista = almacen.instantanea()) {
+          int total = 0;
+          for (Articulo art : vista) {
+            if (art.getCodigo() == izquierda || art.getCodigo() == derecha) {
+              total += art.getNumeroDeUnidades();
+            }
+          }
+          if (total != 2 * UNIDADES_INICIALES) {
+            throw new IllegalStateException("La vista ha visto un lote a medias: " + total);
+          }
+          vistas.incrementAndGet();
+        }
+      }
+      return null;
+    }));
+
+    long inicio = System.nanoTime();
+    salida.countDown();
+    int errores = 0;
+    for (Future<?> tarea : tareas) {
+      try {
+        tarea.get();
+      } catch (ExecutionException e) {
+        System.err.println("ERROR: " + e.getCause());
+        errores++;
+      }
+    }
+    hilos.shutdown();
+    long ms = (System.nanoTime() - inicio) / 1_000_000;
+
+    errores += comprobar(almacen, origen, UNIDADES_INICIALES + netoOrigen.get());
+    errores += comprobar(almacen, destino, UNIDADES_INICIALES + netoDestino.get());
+    int traspasadas = almacen.get(izquierda).getNumeroDeUnidades()
+        + almacen.get(derecha).getNumeroDeUnidades();
+    if (traspasadas != 2 * UNIDADES_INICIALES) {
+      System.err.println("ERROR: Los traspasos han creado o perdido unidades: " + traspasadas);
+      errores++;
+    }
+
+    System.out.println(2L * numHilos * LOTES_POR_HILO + " lotes en " + ms + " ms ("
+        + aplicados.get() + " traspasos aplicados y " + rechazados.get()
+        + " rechazados con movimientos sueltos a la vez, " + vistas.get() + " vistas)");
+    System.out.println(errores == 0 ? "OK: Ningún lote de todo o nada se ha aplicado a medias."
+        : "ERROR: " + errores + " comprobaciones fallidas.");
+    if (errores != 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   *
+   * @param almacen Almacén del test
+   * @param codigo Código del artículo
+   * @param esperadas Unidades que debería tener
+   * @return Devuelve 0 si el artículo tiene las unidades esperadas y 1 si no
+   * @throws CodigoNotFound Se lanza si el artículo no está en el almacén
+   */
+  private static int comprobar(Almacen almacen, int codigo, long esperadas)
+      throws CodigoNotFound {
+    int unidades = almacen.get(codigo).getNumeroDeUnidades();
+    if (unidades != esperadas) {
+      System.err.println("ERROR: El artículo " + codigo + " tiene " + unidades
+          + " unidades y debería tener " + esperadas);
+      return 1;
+    }
+    return 0;
+  }
+
+}
@@ -0,0 +1,163 @@
+package almacen;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletionException;
+
+/**
+ *
+ * Clase test de la recuperación de {@link Almacen} con el diario de movimientos.
+ *
+ * <p>
+ * Simula una caída en mitad de una compactación, después de escribir el snapshot nuevo y antes de
+ * borrar el diario anterior, y comprueba que al recuperar no se vuelven a aplicar los movimientos
+ * que el snapshot ya incluye. Después comprueba que el almacén sigue registrando movimientos y
+ * que una segunda recuperación llega al mismo estado.
+ * </p>
+ *
+ * <p>
+ * También hace fallar una compactación, de forma que el diario anterior se queda en disco, y
+ * comprueba que la siguiente compactación lo aprovecha sin cerrar el diario y sin perder
+ * movimientos.
+ * </p>
+ *
+ * <p>
+ * Argumento opcional: directorio en el que se crean los archivos, por defecto uno temporal.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public class TestRecuperacion {
+
+  public static void main(String[] args) throws Exception {
+
+    Path directorio = args.length > 0 ? Path.of(args[0])
+        : Files.createTempDirectory("almacen-recuperacion");
+    Path snapshot = directorio.resolve("almacen.snap");
+    Path diario = directorio.resolve("almacen.diario");
+    Path anterior = directorio.resolve("almacen.diario.old");
+    Path copia = directorio.resolve("almacen.diario.copia");
+    Files.deleteIfExists(snapshot);
+    Files.deleteIfExists(diario);
+    Files.deleteIfExists(anterior);
+
+    Almacen almacen = new Almacen();
+    almacen.recuperar(snapshot.toString(), diario.toString(), 1, 10);
+    almacen.add("Tornillo", "Marca", 1, 2, 10, 0, 100);
+    almacen.add("Tuerca", "Marca", 1, 2, 20, 0, 100);
+    int tornillo = almacen.findByNombreMarca("Tornillo", "Marca").orElseThrow().getCodigo();
+    int tuerca = almacen.findByNombreMarca("Tuerca", "Marca").orElseThrow().getCodigo();
+    almacen.addUnidades(tornillo, 5);
+    almacen.removeUnidades(tuerca, 3);
+
+    // el diario tal y como lo renombra la compactación, que lo sincroniza antes
+    Files.copy(diario, copia, StandardCopyOption.REPLACE_EXISTING);
+    almacen.compactar().join();
+    almacen.cerrarDiario();
+    // la caída: el snapshot nuevo está en disco pero el diario anterior no se ha borrado
+    Files.move(copia, anterior, StandardCopyOption.REPLACE_EXISTING);
+
+    int errores = 0;
+    Almacen recuperado = new Almacen();
+    recuperado.recuperar(snapshot.toString(), diario.toString(), 1, 10);
+    errores += comprobar(recuperado, tornillo, 15);
+    errores += comprobar(recuperado, tuerca, 17);
+    if (Files.exists(anterior)) {
+      System.err.println("ERROR: La recuperación no ha terminado la compactación.");
+      errores++;
+    }
+
+    recuperado.addUnidades(tornillo, 1);
+    recuperado.cerrarDiario();
+    Almacen otraVez = new Almacen();
+    otraVez.recuperar(snapshot.toString(), diario.toString(), 1, 10);
+    errores += comprobar(otraVez, tornillo, 16);
+    errores += comprobar(otraVez, tuerca, 17);
+    otraVez.cerrarDiario();
+
+    errores += compactarConDiarioAnterior(directorio);
+
+    System.out.println(errores == 0 ? "OK: La recuperación tras una compactación a medias no"
+        + " repite movimientos ni pierde el diario anterior."
+        : "ERROR: " + errores + " comprobaciones fallidas.");
+    if (errores != 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   *
+   * Hace fallar una compactación ocupando la ruta del snapshot con un directorio y vuelve a
+   * compactar con el diario anterior todavía en disco
+   *
+   * @param directorio Directorio en el que se crean los archivos
+   * @return Devuelve el número de comprobaciones fallidas
+   * @throws Exception Se lanza si hay un error inesperado
+   */
+  private static int compactarConDiarioAnterior(Path directorio) throws Exception {
+    Path snapshot = directorio.resolve("fallida.snap");
+    Path diario = directorio.resolve("fallida.diario");
+    Path anterior = directorio.resolve("fallida.diario.old");
+    Path ocupado = snapshot.resolve("ocupado");
+    Files.deleteIfExists(ocupado);
+    Files.deleteIfExists(snapshot);
+    Files.deleteIfExists(diario);
+    Files.deleteIfExists(anterior);
+
+    int errores = 0;
+    Almacen almacen = new Almacen();
+    almacen.recuperar(snapshot.toString(), diario.toString(), 1, 10);
+    almacen.add("Arandela", "Marca", 1, 2, 10, 0, 100);
+    int arandela = almacen.findByNombreMarca("Arandela", "Marca").orElseThrow().getCodigo();
+    almacen.addUnidades(arandela, 5);
+
+    // un directorio no vacío en la ruta del snapshot impide sustituirlo
+    Files.createDirectories(snapshot);
+    Files.createFile(ocupado);
+    try {
+      almacen.compactar().join();
+      System.err.println("ERROR: La compactación debería haber fallado.");
+      errores++;
+    } catch (CompletionException e) {
+      // el diario anterior se queda en disco
+    }
+    Files.delete(ocupado);
+    Files.delete(snapshot);
+
+    almacen.addUnidades(arandela, 1);
+    almacen.compactar().join();
+    if (Files.exists(anterior)) {
+      System.err.println("ERROR: La compactación no ha borrado el diario anterior.");
+      errores++;
+    }
+    almacen.removeUnidades(arandela, 2);
+    almacen.cerrarDiario();
+
+    Almacen recuperado = new Almacen();
+    recuperado.recuperar(snapshot.toString(), diario.toString(), 1, 10);
+    errores += comprobar(recuperado, arandela, 14);
+    recuperado.cerrarDiario();
+    return errores;
+  }
+
+  /**
+   *
+   * @param almacen Almacén recuperado
+   * @param codigo Código del artículo
+   * @param esperadas Unidades que debería tener
+   * @return Devuelve 0 si el artículo tiene las unidades esperadas y 1 si no
+   * @throws CodigoNotFound Se lanza si el artículo no está en el almacén
+   */
+  private static int comprobar(Almacen almacen, int codigo, int esperadas) throws CodigoNotFound {
+    int unidades = almacen.get(codigo).getNumeroDeUnidades();
+    if (unidades != esperadas) {
+      System.err.println("ERROR: El artículo " + codigo + " tiene " + unidades
+          + " unidades y debería tener " + esperadas);
+      return 1;
+    }
+    return 0;
+  }
+
+}
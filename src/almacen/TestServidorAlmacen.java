@@ -0,0 +1,152 @@
+package almacen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Clase test y generador de carga de {@link ServidorAlmacen}.
+ *
+ * <p>
+ * Abre un servidor local sobre un almacén y lanza varios clientes que encadenan peticiones al
+ * azar (consultas, entradas y salidas de unidades y algún lote) durante un tiempo, enviando cada
+ * vez una ventana de peticiones antes de leer sus respuestas. Muestra las operaciones por segundo
+ * y al terminar comprueba que las unidades de cada artículo coinciden con las iniciales más los
+ * movimientos aceptados por el servidor.
+ * </p>
+ *
+ * <p>
+ * Argumentos opcionales: número de conexiones, peticiones por ventana y segundos.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public class TestServidorAlmacen {
+
+  private static final int ARTICULOS = 1024;
+  private static final int UNIDADES_INICIALES = 100;
+  private static final int STOCK_MAXIMO = 150;
+
+  public static void main(String[] args) throws Exception {
+
+    int numConexiones = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int ventana = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+    int segundos = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    Almacen almacen = new Almacen();
+    int[] codigos = new int[ARTICULOS];
+    for (int i = 0; i < ARTICULOS; i++) {
+      almacen.add("Artículo" + i, "Marca", 10, 20, UNIDADES_INICIALES, 0, STOCK_MAXIMO);
+      codigos[i] = almacen.findByNombreMarca("Artículo" + i, "Marca").orElseThrow().getCodigo();
+    }
+
+    AtomicLong[] netos = new AtomicLong[ARTICULOS];
+    for (int i = 0; i < ARTICULOS; i++) {
+      netos[i] = new AtomicLong();
+    }
+    AtomicLong operaciones = new AtomicLong();
+    AtomicLong rechazadas = new AtomicLong();
+    CountDownLatch salida = new CountDownLatch(1);
+    List<Thread> hilos = new ArrayList<>();
+    long fin = System.nanoTime() + segundos * 1_000_000_000L;
+
+    try (ServidorAlmacen servidor = ServidorAlmacen.iniciar(almacen, 0)) {
+      for (int h = 0; h < numConexiones; h++) {
+        hilos.add(new Thread(() -> {
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          byte[] tipos = new byte[ventana];
+          int[] articulos = new int[ventana];
+          int[] cantidades = new int[ventana];
+          try (ClienteAlmacen cliente = new ClienteAlmacen(servidor.getPuerto())) {
+            salida.await();
+            while (System.nanoTime() < fin) {
+              for (int p = 0; p < ventana; p++) {
+                int i = random.nextInt(ARTICULOS);
+                int unidades = random.nextInt(1, 5);
+                int tipo = random.nextInt(100);
+                articulos[p] = i;
+                cantidades[p] = unidades;
+                if (tipo < 50) {
+                  tipos[p] = ServidorAlmacen.CONSULTAR;
+                  cliente.enviarConsulta(codigos[i]);
+                } else if (tipo < 75) {
+                  tipos[p] = ServidorAlmacen.ANADIR;
+                  cliente.enviarAddUnidades(codigos[i], unidades);
+                } else if (tipo < 99) {
+                  tipos[p] = ServidorAlmacen.RETIRAR;
+                  cliente.enviarRemoveUnidades(codigos[i], unidades);
+                } else {
+                  tipos[p] = ServidorAlmacen.LOTE;
+                  cliente.enviarMovimientos(List.of(new Movimiento(codigos[i], unidades),
+                      new Movimiento(codigos[i], -unidades)), true);
+                }
+              }
+              for (int p = 0; p < ventana; p++) {
+                int i = articulos[p];
+                switch (tipos[p]) {
+                  case ServidorAlmacen.CONSULTAR -> {
+                    int unidades = cliente.recibirUnidades();
+                    if (unidades < 0 || unidades > STOCK_MAXIMO) {
+                      throw new IllegalStateException("Unidades fuera de rango en " + i);
+                    }
+                  }
+                  case ServidorAlmacen.ANADIR, ServidorAlmacen.RETIRAR -> {
+                    if (cliente.recibirResultado().isOk()) {
+                      netos[i].addAndGet(
+                          tipos[p] == ServidorAlmacen.ANADIR ? cantidades[p] : -cantidades[p]);
+                    } else {
+                      rechazadas.incrementAndGet();
+                    }
+                  }
+                  default -> {
+                    if (!cliente.recibirLote().isAplicado()) {
+                      rechazadas.incrementAndGet();
+                    }
+                  }
+                }
+              }
+              operaciones.addAndGet(ventana);
+            }
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        }));
+      }
+
+      for (Thread hilo : hilos) {
+        hilo.start();
+      }
+      long inicio = System.nanoTime();
+      salida.countDown();
+      for (Thread hilo : hilos) {
+        hilo.join();
+      }
+      double tiempo = (System.nanoTime() - inicio) / 1e9;
+
+      int errores = 0;
+      for (int i = 0; i < ARTICULOS; i++) {
+        int esperadas = (int) (UNIDADES_INICIALES + netos[i].get());
+        int unidades = almacen.get(codigos[i]).getNumeroDeUnidades();
+        if (unidades != esperadas) {
+          System.err.println("ERROR: El artículo " + codigos[i] + " tiene " + unidades
+              + " unidades y debería tener " + esperadas);
+          errores++;
+        }
+      }
+
+      System.out.printf("%d conexiones, ventana de %d: %d peticiones en %.1f s, %.0f ops/s"
+          + " (%d rechazadas)%n", numConexiones, ventana, operaciones.get(), tiempo,
+          operaciones.get() / tiempo, rechazadas.get());
+      System.out.println(errores == 0 ? "OK: Las unidades coinciden con los movimientos aceptados."
+          : "ERROR: " + errores + " artículos con unidades incorrectas.");
+      if (errores != 0) {
+        System.exit(1);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,91 @@
+package almacen;
+
+/**
+ * Totales de un conjunto de artículos: número de artículos, unidades y valor del stock a precio
+ * de compra y de venta.
+ *
+ * @author Javier Sánchez López
+ *
+ */
+public final class Totales {
+
+  /**
+   * Número de artículos
+   */
+  private final int articulos;
+  /**
+   * Suma de las unidades
+   */
+  private final long unidades;
+  /**
+   * Suma de unidades por precio de compra
+   */
+  private final double valorInventario;
+  /**
+   * Suma de unidades por precio de venta
+   */
+  private final double valorVenta;
+
+  /**
+   *
+   * Crea unos totales
+   *
+   * @param articulos Número de artículos
+   * @param unidades Suma de las unidades
+   * @param valorInventario Suma de unidades por precio de compra
+   * @param valorVenta Suma de unidades por precio de venta
+   */
+  Totales(int articulos, long unidades, double valorInventario, double valorVenta) {
+    this.articulos = articulos;
+    this.unidades = unidades;
+    this.valorInventario = valorInventario;
+    this.valorVenta = valorVenta;
+  }
+
+  /**
+   *
+   * @return Devuelve el número de artículos
+   */
+  public int getArticulos() {
+    return articulos;
+  }
+
+  /**
+   *
+   * @return Devuelve la suma de las unidades de los artículos
+   */
+  public long getUnidades() {
+    return unidades;
+  }
+
+  /**
+   *
+   * @return Devuelve el valor del stock a precio de compra
+   */
+  public double getValorInventario() {
+    return valorInventario;
+  }
+
+  /**
+   *
+   * @return Devuelve el valor del stock a precio de venta, lo que se ingresaría vendiéndolo todo
+   */
+  public double getValorVenta() {
+    return valorVenta;
+  }
+
+  /**
+   *
+   * @return Devuelve el margen del stock, valor de venta menos valor de inventario
+   */
+  public double getMargen() {
+    return valorVenta - valorInventario;
+  }
+
+  @Override
+  public String toString() {
+    return "Totales [articulos=" + articulos + ", unidades=" + unidades + ", valorInventario="
+        + valorInventario + ", valorVenta=" + valorVenta + "]";
+  }
+
+}
@@ -0,0 +1,359 @@
+package almacen;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Totales del inventario que se mantienen al día con cada alta, baja y cambio de un artículo.
+ *
+ * <p>
+ * De cada artículo se guarda lo que aportó a los totales la última vez, en arrays seguidos con su
+ * posición en un {@link MapaIntInt}, así que cada aviso cuesta O(1): se resta lo que aportaba y se
+ * suma lo que aporta ahora. Los totales por marca se guardan en arrays indexados por un número de
+ * marca.
+ * </p>
+ *
+ * <p>
+ * Las actualizaciones se protegen con un {@link StampedLock}. Las consultas leen con una lectura
+ * optimista que no bloquea a nadie y solo si coinciden con una actualización repiten la lectura
+ * con el cerrojo de lectura, así que siempre devuelven los totales de un mismo instante. Como las
+ * sumas son de números reales, tras muchos cambios pueden diferir en los últimos decimales de
+ * sumar los artículos desde cero.
+ * </p>
+ *
+ * @author Javier Sánchez López
+ *
+ */
+class TotalesInventario implements ObservadorArticulos {
+
+  /**
+   * Protege los totales frente a lecturas durante una actualización
+   */
+  private final StampedLock cerrojo = new StampedLock();
+
+  /**
+   * Posición en los arrays de cada artículo, por código
+   */
+  private MapaIntInt posiciones = new MapaIntInt();
+  /**
+   * Código de cada artículo, solo son válidas las primeras size posiciones
+   */
+  private int[] codigos = new int[16];
+  /**
+   * Unidades que aportó cada artículo
+   */
+  private int[] unidades = new int[16];
+  /**
+   * Precio de compra con el que aportó cada artículo
+   */
+  private double[] compras = new double[16];
+  /**
+   * Precio de venta con el que aportó cada artículo
+   */
+  private double[] ventas = new double[16];
+  /**
+   * Número de marca con el que aportó cada artículo
+   */
+  private int[] marcas = new int[16];
+  /**
+   * Número de artículos
+   */
+  private int size;
+
+  /**
+   * Número de cada marca
+   */
+  private final Map<String, Integer> numerosDeMarca = new HashMap<>();
+  /**
+   * Nombre de cada marca, por número
+   */
+  private String[] nombresDeMarca = new String[16];
+  /**
+   * Número de artículos de cada marca
+   */
+  private int[] articulosMarca = new int[16];
+  /**
+   * Unidades de cada marca
+   */
+  private long[] unidadesMarca = new long[16];
+  /**
+   * Valor a precio de compra de cada marca
+   */
+  private double[] inventarioMarca = new double[16];
+  /**
+   * Valor a precio de venta de cada marca
+   */
+  private double[] ventaMarca = new double[16];
+
+  /**
+   * Unidades de todo el almacén
+   */
+  private long unidadesTotal;
+  /**
+   * Valor a precio de compra de todo el almacén
+   */
+  private double inventarioTotal;
+  /**
+   * Valor a precio de venta de todo el almacén
+   */
+  private double ventaTotal;
+
+  @Override
+  public void alta(Articulo articulo) {
+    long sello = cerrojo.writeLock();
+    try {
+      insertar(articulo);
+    } finally {
+      cerrojo.unlockWrite(sello);
+    }
+  }
+
+  @Override
+  public void baja(Articulo articulo) {
+    long sello = cerrojo.writeLock();
+    try {
+      int pos = posiciones.remove(articulo.getCodigo());
+      if (pos == MapaIntInt.NO_ENCONTRADO) {
+        return;
+      }
+      restar(pos);
+      int ultima = --size;
+      if (pos != ultima) {
+        codigos[pos] = codigos[ultima];
+        unidades[pos] = unidades[ultima];
+        compras[pos] = compras[ultima];
+        ventas[pos] = ventas[ultima];
+        marcas[pos] = marcas[ultima];
+        posiciones.put(codigos[pos], pos);
+      }
+    } finally {
+      cerrojo.unlockWrite(sello);
+    }
+  }
+
+  @Override
+  public void cambio(Articulo articulo) {
+    long sello = cerrojo.writeLock();
+    try {
+      int pos = posiciones.get(articulo.getCodigo());
+      if (pos == MapaIntInt.NO_ENCONTRADO) {
+        return;
+      }
+      // los datos se leen del artículo con el cerrojo cogido, así que si dos hilos lo cambian a
+      // la vez el último aviso deja los totales con su estado más reciente
+      restar(pos);
+      sumar(pos, articulo);
+    } finally {
+      cerrojo.unlockWrite(sello);
+    }
+  }
+
+  @Override
+  public void reconstruir(Collection<Articulo> articulos) {
+    long sello = cerrojo.writeLock();
+    try {
+      posiciones = new MapaIntInt();
+      size = 0;
+      Arrays.fill(articulosMarca, 0);
+      Arrays.fill(unidadesMarca, 0);
+      Arrays.fill(inventarioMarca, 0);
+      Arrays.fill(ventaMarca, 0);
+      unidadesTotal = 0;
+      inventarioTotal = 0;
+      ventaTotal = 0;
+      for (Articulo articulo : articulos) {
+        insertar(articulo);
+      }
+    } finally {
+      cerrojo.unlockWrite(sello);
+    }
+  }
+
+  /**
+   *
+   * @return Devuelve los totales de todo el almacén en un mismo instante
+   */
+  Totales getTotales() {
+    long sello = cerrojo.tryOptimisticRead();
+    Totales totales = new Totales(size, unidadesTotal, inventarioTotal, ventaTotal);
+    if (!cerrojo.validate(sello)) {
+      sello = cerrojo.readLock();
+      try {
+        totales = new Totales(size, unidadesTotal, inventarioTotal, ventaTotal);
+      } finally {
+        cerrojo.unlockRead(sello);
+      }
+    }
+    return totales;
+  }
+
+  /**
+   *
+   * @param marca Marca
+   * @return Devuelve los totales de la marca, a 0 si no tiene artículos
+   */
+  Totales getTotales(String marca) {
+    long sello = cerrojo.readLock();
+    try {
+      Integer numero = numerosDeMarca.get(marca);
+      return numero == null ? new Totales(0, 0, 0, 0) : totalesMarca(numero);
+    } finally {
+      cerrojo.unlockRead(sello);
+    }
+  }
+
+  /**
+   *
+   * @return Devuelve los totales de cada marca con artículos en un mismo instante, ordenados por
+   *         marca
+   */
+  Map<String, Totales> getPorMarca() {
+    long sello = cerrojo.tryOptimisticRead();
+    Map<String, Totales> porMarca = copiarPorMarca();
+    if (porMarca == null || !cerrojo.validate(sello)) {
+      sello = cerrojo.readLock();
+      try {
+        porMarca = copiarPorMarca();
+      } finally {
+        cerrojo.unlockRead(sello);
+      }
+    }
+    return Collections.unmodifiableMap(porMarca);
+  }
+
+  /**
+   *
+   * Copia los totales de las marcas. Durante una lectura optimista los arrays pueden cambiar por
+   * debajo, en ese caso devuelve null o un resultado que no pasará la validación.
+   *
+   * @return Devuelve los totales de cada marca o null si la lectura no ha sido coherente
+   */
+  private Map<String, Totales> copiarPorMarca() {
+    String[] nombres = nombresDeMarca;
+    int[] articulosPorMarca = articulosMarca;
+    long[] unidadesPorMarca = unidadesMarca;
+    double[] inventarioPorMarca = inventarioMarca;
+    double[] ventaPorMarca = ventaMarca;
+    int n = Math.min(nombres.length, articulosPorMarca.length);
+    if (unidadesPorMarca.length < n || inventarioPorMarca.length < n
+        || ventaPorMarca.length < n) {
+      return null;
+    }
+    Map<String, Totales> porMarca = new TreeMap<>();
+    for (int i = 0; i < n; i++) {
+      if (articulosPorMarca[i] > 0 && nombres[i] != null) {
+        porMarca.put(nombres[i], new Totales(articulosPorMarca[i], unidadesPorMarca[i],
+            inventarioPorMarca[i], ventaPorMarca[i]));
+      }
+    }
+    return porMarca;
+  }
+
+  /**
+   *
+   * @param numero Número de marca
+   * @return Devuelve los totales de la marca
+   */
+  private Totales totalesMarca(int numero) {
+    return new Totales(articulosMarca[numero], unidadesMarca[numero], inventarioMarca[numero],
+        ventaMarca[numero]);
+  }
+
+  /**
+   *
+   * Añade un artículo al final de los arrays y suma lo que aporta
+   *
+   * @param articulo Artículo a añadir
+   */
+  private void insertar(Articulo articulo) {
+    if (size == codigos.length) {
+      int capacidad = size * 2;
+      codigos = Arrays.copyOf(codigos, capacidad);
+      unidades = Arrays.copyOf(unidades, capacidad);
+      compras = Arrays.copyOf(compras, capacidad);
+      ventas = Arrays.copyOf(ventas, capacidad);
+      marcas = Arrays.copyOf(marcas, capacidad);
+    }
+    int pos = size++;
+    codigos[pos] = articulo.getCodigo();
+    posiciones.put(codigos[pos], pos);
+    sumar(pos, articulo);
+  }
+
+  /**
+   *
+   * Guarda en una posición lo que aporta un artículo y lo suma a los totales
+   *
+   * @param pos Posición del artículo
+   * @param articulo Artículo
+   */
+  private void sumar(int pos, Articulo articulo) {
+    int u = articulo.getNumeroDeUnidades();
+    double compra = articulo.getPrecioDeCompra();
+    double venta = articulo.getPrecioDeVenta();
+    int marca = numeroDeMarca(articulo.getMarca());
+    unidades[pos] = u;
+    compras[pos] = compra;
+    ventas[pos] = venta;
+    marcas[pos] = marca;
+    unidadesTotal += u;
+    inventarioTotal += u * compra;
+    ventaTotal += u * venta;
+    articulosMarca[marca]++;
+    unidadesMarca[marca] += u;
+    inventarioMarca[marca] += u * compra;
+    ventaMarca[marca] += u * venta;
+  }
+
+  /**
+   *
+   * Resta de los totales lo que aportaba el artículo de una posición
+   *
+   * @param pos Posición del artículo
+   */
+  private void restar(int pos) {
+    int u = unidades[pos];
+    int marca = marcas[pos];
+    unidadesTotal -= u;
+    inventarioTotal -= u * compras[pos];
+    ventaTotal -= u * ventas[pos];
+    articulosMarca[marca]--;
+    unidadesMarca[marca] -= u;
+    inventarioMarca[marca] -= u * compras[pos];
+    ventaMarca[marca] -= u * ventas[pos];
+  }
+
+  /**
+   *
+   * Devuelve el número de una marca, dándole uno nuevo si es la primera vez que aparece
+   *
+   * @param marca Marca
+   * @return Devuelve el número de la marca
+   */
+  private int numeroDeMarca(String marca) {
+    Integer numero = numerosDeMarca.get(marca);
+    if (numero != null) {
+      return numero;
+    }
+    int nuevo = numerosDeMarca.size();
+    if (nuevo == nombresDeMarca.length) {
+      int capacidad = nuevo * 2;
+      // los arrays nuevos se rellenan antes de publicarlos para que una lectura optimista nunca
+      // vea uno a medias
+      articulosMarca = Arrays.copyOf(articulosMarca, capacidad);
+      unidadesMarca = Arrays.copyOf(unidadesMarca, capacidad);
+      inventarioMarca = Arrays.copyOf(inventarioMarca, capacidad);
+      ventaMarca = Arrays.copyOf(ventaMarca, capacidad);
+      nombresDeMarca = Arrays.copyOf(nombresDeMarca, capacidad);
+    }
+    numerosDeMarca.put(marca, nuevo);
+    nombresDeMarca[nuevo] = marca;
+    return nuevo;
+  }
+
+}